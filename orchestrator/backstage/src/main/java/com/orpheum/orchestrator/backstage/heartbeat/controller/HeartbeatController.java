@@ -1,17 +1,20 @@
 package com.orpheum.orchestrator.backstage.heartbeat.controller;
 
+import com.orpheum.orchestrator.backstage.heartbeat.model.GatewayMetricsSummary;
 import com.orpheum.orchestrator.backstage.heartbeat.model.HeartbeatType;
 import com.orpheum.orchestrator.backstage.heartbeat.service.HeartbeatService;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
 /**
  * Controller for receiving and processing heartbeat signals.
- * It accepts heartbeat type and identifier and refreshes the heartbeat record.
+ * It accepts heartbeat type and identifier and refreshes the heartbeat record. Gateway heartbeats may additionally
+ * carry a metrics summary as their body, which is stored alongside.
  */
 @RestController
 @Slf4j
@@ -25,13 +28,15 @@ public class HeartbeatController {
      *
      * @param heartbeatType The type of heartbeat (DATABASE, GATEWAY)
      * @param identifier The identifier for the heartbeat
+     * @param metrics An optional summary of the gateway agent's metrics since its previous heartbeat
      * @return A response entity indicating success
      */
     @PostMapping("/heartbeat/refresh")
     public ResponseEntity<String> refreshHeartbeat(
             @RequestParam("type") HeartbeatType heartbeatType,
-            @RequestParam("identifier") String identifier) {
-        heartbeatService.refresh(heartbeatType, identifier);
+            @RequestParam("identifier") String identifier,
+            @RequestBody(required = false) GatewayMetricsSummary metrics) {
+        heartbeatService.refresh(heartbeatType, identifier, metrics);
         
         return ResponseEntity.ok("");
     }
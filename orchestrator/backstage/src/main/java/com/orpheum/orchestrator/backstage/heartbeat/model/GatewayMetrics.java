@@ -0,0 +1,61 @@
+package com.orpheum.orchestrator.backstage.heartbeat.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.relational.core.mapping.Table;
+
+import java.time.LocalDateTime;
+
+/**
+ * A gateway agent's metrics summary as received at the given timestamp, making up a time series per site.
+ */
+@Table("gateway_metrics")
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class GatewayMetrics {
+    @Id
+    Long            id;
+    String          identifier;
+    LocalDateTime   timestamp;
+    long            intervalMs;
+    long            capportRequests;
+    double          capportRequestsPerSecond;
+    long            capportThrottled;
+    long            capportErrors;
+    long            authorisations;
+    long            authorisationFailures;
+    double          authorisationP50Ms;
+    double          authorisationP99Ms;
+    double          connectionWaitP50Ms;
+    double          connectionWaitP99Ms;
+    double          connectionUtilisation;
+    long            connectionBorrowTimeouts;
+    long            cachedDevices;
+    long            gatewayErrors;
+
+    public static GatewayMetrics from(String identifier, LocalDateTime timestamp, GatewayMetricsSummary summary) {
+        return new GatewayMetrics(
+                null,
+                identifier,
+                timestamp,
+                summary.intervalMs(),
+                summary.capportRequests(),
+                summary.capportRequestsPerSecond(),
+                summary.capportThrottled(),
+                summary.capportErrors(),
+                summary.authorisations(),
+                summary.authorisationFailures(),
+                summary.authorisationP50Ms(),
+                summary.authorisationP99Ms(),
+                summary.connectionWaitP50Ms(),
+                summary.connectionWaitP99Ms(),
+                summary.connectionUtilisation(),
+                summary.connectionBorrowTimeouts(),
+                summary.cachedDevices(),
+                summary.gatewayErrors()
+        );
+    }
+}
@@ -0,0 +1,21 @@
+package com.orpheum.orchestrator.backstage.heartbeat.model;
+
+/**
+ * An aggregated summary of a gateway agent's metrics over a single heartbeat interval, as sent with its heartbeat.
+ * Counts cover the interval only, whereas latencies are the interval's quantiles in milliseconds.
+ */
+public record GatewayMetricsSummary(long intervalMs,
+                                    long capportRequests,
+                                    double capportRequestsPerSecond,
+                                    long capportThrottled,
+                                    long capportErrors,
+                                    long authorisations,
+                                    long authorisationFailures,
+                                    double authorisationP50Ms,
+                                    double authorisationP99Ms,
+                                    double connectionWaitP50Ms,
+                                    double connectionWaitP99Ms,
+                                    double connectionUtilisation,
+                                    long connectionBorrowTimeouts,
+                                    long cachedDevices,
+                                    long gatewayErrors) { }
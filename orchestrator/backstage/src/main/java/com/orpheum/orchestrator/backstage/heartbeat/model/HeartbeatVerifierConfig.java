@@ -15,6 +15,7 @@ public class HeartbeatVerifierConfig {
 
     private Long periodMs;
     private Long warningIntervalMs;
+    private Long metricsRetentionMs;
     private Map<HeartbeatType, HeartbeatTypeConfigDetails> verifier;
 
     @NoArgsConstructor
@@ -0,0 +1,11 @@
+package com.orpheum.orchestrator.backstage.heartbeat.repository;
+
+import com.orpheum.orchestrator.backstage.heartbeat.model.GatewayMetrics;
+import org.springframework.data.repository.CrudRepository;
+
+import java.time.LocalDateTime;
+
+public interface GatewayMetricsRepository extends CrudRepository<GatewayMetrics, Long> {
+
+    void deleteByTimestampBefore(LocalDateTime timestamp);
+}
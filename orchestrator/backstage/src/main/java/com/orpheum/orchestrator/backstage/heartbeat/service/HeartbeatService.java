@@ -1,8 +1,11 @@
 package com.orpheum.orchestrator.backstage.heartbeat.service;
 
+import com.orpheum.orchestrator.backstage.heartbeat.model.GatewayMetrics;
+import com.orpheum.orchestrator.backstage.heartbeat.model.GatewayMetricsSummary;
 import com.orpheum.orchestrator.backstage.heartbeat.model.Heartbeat;
 import com.orpheum.orchestrator.backstage.heartbeat.model.HeartbeatType;
 import com.orpheum.orchestrator.backstage.heartbeat.model.HeartbeatVerifierConfig;
+import com.orpheum.orchestrator.backstage.heartbeat.repository.GatewayMetricsRepository;
 import com.orpheum.orchestrator.backstage.heartbeat.repository.HeartbeatRepository;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -10,6 +13,7 @@ import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.time.Duration;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.util.Map;
@@ -18,6 +22,9 @@ import java.util.concurrent.ConcurrentHashMap;
 /**
  * A simple heartbeat service meant to both keep the free Supabase project alive (deleted after 1 week of inactivity),
  * as well as a simple external heartbeat evidence of the backstage portal.
+ *
+ * Gateway heartbeats additionally carry a summary of the agent's metrics since its previous heartbeat, which are stored
+ * as a time series per site and retained for the configured retention period.
  */
 @Component
 @Slf4j
@@ -29,13 +36,33 @@ public class HeartbeatService {
     @Autowired
     private HeartbeatRepository heartbeatRepository;
 
+    @Autowired
+    private GatewayMetricsRepository gatewayMetricsRepository;
+
     @Autowired
     private HeartbeatVerifierConfig heartbeatVerifierConfig;
 
     @Transactional
     public void refresh(HeartbeatType heartbeatType, String identifier) {
+        refresh(heartbeatType, identifier, null);
+    }
+
+    @Transactional
+    public void refresh(HeartbeatType heartbeatType, String identifier, GatewayMetricsSummary metrics) {
+        LocalDateTime now = LocalDateTime.now();
         heartbeatRepository.deleteHeartbeatByTypeAndIdentifier(heartbeatType, identifier);
-        heartbeatRepository.save(new Heartbeat(null, heartbeatType, identifier, LocalDateTime.now(), true));
+        heartbeatRepository.save(new Heartbeat(null, heartbeatType, identifier, now, true));
+
+        if (metrics != null) {
+            gatewayMetricsRepository.save(GatewayMetrics.from(identifier, now, metrics));
+            log.trace("Stored gateway metrics. [Identifier: {}, Metrics: {}]", identifier, metrics);
+        }
+    }
+
+    @Scheduled(fixedRateString = "#{heartbeatVerifierConfig.periodMs}")
+    @Transactional
+    public void purgeExpiredGatewayMetrics() {
+        gatewayMetricsRepository.deleteByTimestampBefore(LocalDateTime.now().minus(Duration.ofMillis(heartbeatVerifierConfig.getMetricsRetentionMs())));
     }
 
     @Scheduled(fixedRateString = "#{heartbeatVerifierConfig.periodMs}")
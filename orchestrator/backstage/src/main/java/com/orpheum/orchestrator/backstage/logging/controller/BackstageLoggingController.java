@@ -2,6 +2,7 @@ package com.orpheum.orchestrator.backstage.logging.controller;
 
 import com.orpheum.orchestrator.backstage.logging.model.LogEntry;
 import com.orpheum.orchestrator.backstage.logging.service.BackstageLoggingService;
+import com.orpheum.orchestrator.backstage.logging.support.CompactLogBatchDecoder;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.ResponseEntity;
@@ -10,11 +11,14 @@ import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RestController;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.List;
 
 /**
  * Controller for receiving and processing log entries from third parties, namely gateways.
- * It receives a list of log entries and triggers logback logs that replicate the received parameters.
+ * It receives a list of log entries, either as JSON or in the compact log batch format, and triggers logback logs that
+ * replicate the received parameters.
  */
 @RestController
 @Slf4j
@@ -39,4 +43,23 @@ public class BackstageLoggingController {
         return ResponseEntity.ok("");
     }
 
+    /**
+     * Receives a batch of log entries from a gateway in the compact log batch format, and logs them using logback.
+     *
+     * @param body The compact log batch
+     * @return A response entity indicating success, or bad request if the batch is malformed
+     */
+    @PostMapping(value = "/gateway/logs", consumes = CompactLogBatchDecoder.CONTENT_TYPE)
+    public ResponseEntity<String> receiveCompactLogs(@RequestHeader("X-Auth-Token") String authToken,
+                                                     InputStream body) {
+        try {
+            backstageLoggingService.processCompactLogBatch(authToken, body);
+        } catch (IOException e) {
+            log.warn("Received malformed compact log batch. [Exception: {}]", e.getMessage());
+            return ResponseEntity.badRequest().body("");
+        }
+
+        return ResponseEntity.ok("");
+    }
+
 }
\ No newline at end of file
@@ -1,6 +1,7 @@
 package com.orpheum.orchestrator.backstage.logging.service;
 
 import com.orpheum.orchestrator.backstage.logging.model.LogEntry;
+import com.orpheum.orchestrator.backstage.logging.support.CompactLogBatchDecoder;
 import com.orpheum.orchestrator.backstage.portal.exception.AuthTokenNotFoundException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -8,6 +9,8 @@ import org.slf4j.MDC;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.List;
 
 @Component
@@ -19,6 +22,22 @@ public class BackstageLoggingService {
     @Value("${backstage.portal.api-tokens}")
     private List<String> apiTokens;
 
+    /**
+     * Decodes and processes a batch of log entries sent in the compact log batch format, see
+     * {@link CompactLogBatchDecoder}. The API token is validated once, before the batch is decoded.
+     *
+     * @param apiToken The received API token
+     * @param body     The compact log batch
+     * @throws IOException If the batch is malformed
+     */
+    public void processCompactLogBatch(String apiToken, InputStream body) throws IOException {
+        validateAuthToken(apiToken);
+
+        for (LogEntry logEntry : CompactLogBatchDecoder.decode(body)) {
+            logEntry(logEntry);
+        }
+    }
+
     /**
      * Processes a single log entry by adding the site-friendly name to MDC
      * and logging the message with the appropriate log level.
@@ -28,7 +47,10 @@ public class BackstageLoggingService {
      */
     public void processLogEntry(String apiToken, LogEntry logEntry) {
         validateAuthToken(apiToken);
+        logEntry(logEntry);
+    }
 
+    private void logEntry(LogEntry logEntry) {
         try {
             // Get a logger with the name from the log entry
             Logger logger = LoggerFactory.getLogger(logEntry.getLoggerName());
@@ -0,0 +1,183 @@
+package com.orpheum.orchestrator.backstage.logging.support;
+
+import com.orpheum.orchestrator.backstage.logging.model.LogEntry;
+
+import java.io.DataInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Decodes log batches sent by gateways in the compact log batch format, as an alternative to a JSON array of
+ * {@link LogEntry}. The format is gzip compressed, and laid out as
+ *
+ * <ul>
+ *     <li>A header, made up of a magic number and the format version;</li>
+ *     <li>A dictionary of the batch's distinct levels, logger names and site names;</li>
+ *     <li>A table of the batch's distinct stack traces;</li>
+ *     <li>The entries, each made up of its timestamp as a delta from the previous entry's, its level, logger name,
+ *     site name and stack trace as references into the above, and its message.</li>
+ * </ul>
+ *
+ * Integers are unsigned varints, with timestamp deltas zigzag encoded. Strings are their UTF-8 length followed by their
+ * bytes. References and nullable strings are offset by one, with zero standing for null. Must be kept in line with the
+ * agent's encoder. Since batches are decompressed on receipt, the decoder bounds every count and length it reads, as
+ * well as the batch's total decompressed size.
+ */
+public final class CompactLogBatchDecoder {
+
+    public static final String CONTENT_TYPE = "application/vnd.orpheum.log-batch.v1";
+
+    private static final int MAGIC = 0x4F4C4200; // OLB
+    private static final byte FORMAT_VERSION = 1;
+
+    private static final int MAX_COUNT = 100_000;
+    private static final int MAX_STRING_BYTES = 1 << 20;
+    private static final long MAX_DECOMPRESSED_BYTES = 16L << 20;
+
+    private CompactLogBatchDecoder() {
+    }
+
+    public static List<LogEntry> decode(final InputStream body) throws IOException {
+        final DataInputStream input = new DataInputStream(new LimitedInputStream(new GZIPInputStream(body), MAX_DECOMPRESSED_BYTES));
+
+        if (input.readInt() != MAGIC) {
+            throw new IOException("Unrecognised compact log batch.");
+        }
+        final byte formatVersion = input.readByte();
+        if (formatVersion != FORMAT_VERSION) {
+            throw new IOException(String.format("Unsupported compact log batch version. [Version: %s]", formatVersion));
+        }
+
+        final List<String> dictionary = readTable(input);
+        final List<String> stacktraces = readTable(input);
+
+        final int count = readCount(input);
+        final List<LogEntry> entries = new ArrayList<>(count);
+        long timestamp = 0L;
+        for (int i = 0; i < count; i++) {
+            final long zigzagDelta = readVarint(input);
+            timestamp += (zigzagDelta >>> 1) ^ -(zigzagDelta & 1);
+
+            final LogEntry entry = new LogEntry();
+            entry.setTimestamp(Instant.ofEpochMilli(timestamp));
+            entry.setLogLevel(resolve(dictionary, readVarint(input)));
+            entry.setLoggerName(resolve(dictionary, readVarint(input)));
+            entry.setSiteFriendlyName(resolve(dictionary, readVarint(input)));
+            entry.setStacktrace(resolve(stacktraces, readVarint(input)));
+            entry.setMessage(readNullableString(input));
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    private static List<String> readTable(final DataInputStream input) throws IOException {
+        final int count = readCount(input);
+        final List<String> values = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            values.add(readNullableString(input));
+        }
+        return values;
+    }
+
+    private static String resolve(final List<String> table, final long reference) throws IOException {
+        if (reference == 0L) {
+            return null;
+        }
+        if (Long.compareUnsigned(reference, table.size()) > 0) {
+            throw new IOException(String.format("Invalid compact log batch reference. [Reference: %s, Table size: %s]", Long.toUnsignedString(reference), table.size()));
+        }
+        return table.get((int) reference - 1);
+    }
+
+    private static int readCount(final DataInputStream input) throws IOException {
+        final long count = readVarint(input);
+        if (Long.compareUnsigned(count, MAX_COUNT) > 0) {
+            throw new IOException(String.format("Compact log batch count exceeds limit. [Count: %s]", Long.toUnsignedString(count)));
+        }
+        return (int) count;
+    }
+
+    private static String readNullableString(final DataInputStream input) throws IOException {
+        final long length = readVarint(input);
+        if (length == 0L) {
+            return null;
+        }
+        if (Long.compareUnsigned(length - 1, MAX_STRING_BYTES) > 0) {
+            throw new IOException(String.format("Compact log batch string exceeds limit. [Length: %s]", Long.toUnsignedString(length - 1)));
+        }
+
+        final byte[] encoded = new byte[(int) length - 1];
+        input.readFully(encoded);
+        return new String(encoded, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads an unsigned varint, which is negative as a long should its most significant bit be set. Bounds are hence
+     * always checked as unsigned.
+     */
+    private static long readVarint(final DataInputStream input) throws IOException {
+        long value = 0L;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final byte b = input.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint within compact log batch.");
+    }
+
+    /**
+     * Fails reads once more than the limit has been read from the underlying stream.
+     */
+    private static final class LimitedInputStream extends FilterInputStream {
+
+        private final long limit;
+        private long read;
+
+        private LimitedInputStream(final InputStream in, final long limit) {
+            super(in);
+            this.limit = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if (b != -1) {
+                count(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            final int n = super.read(b, off, len);
+            if (n > 0) {
+                count(n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            final long skipped = super.skip(n);
+            count(skipped);
+            return skipped;
+        }
+
+        private void count(final long n) throws IOException {
+            read += n;
+            if (read > limit) {
+                throw new IOException(String.format("Compact log batch exceeds decompressed size limit. [Limit: %s bytes]", limit));
+            }
+        }
+
+    }
+
+}
@@ -9,14 +9,20 @@ import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * This controller implements the API integration with UniFi Orpheum agents across multiple sites. It exposes
  *
  * <ul>
  *     <li>An endpoint used by agents to retrieve any pending authorisation requests for their site.</li>
+ *     <li>A long poll variant of the above, used when the agent passes the last pending authorisation version it has
+ *     seen. The request is parked until a new authorisation request is registered for the site (or a timeout elapses),
+ *     and the site's current version is returned via the X-Pending-Version header.</li>
  *     <li>A callback webhook which signals the agent's outcome of a pending backstage authorisation. This webhook
  *     in turn completes a pending /authorise API call, therefore reporting the outcome back to the user.</li>
+ *     <li>A batch variant of the above, used by agents to signal multiple outcomes in a single request during
+ *     check-in surges.</li>
  * </ul>
  *
  */
@@ -24,6 +30,8 @@ import java.util.List;
 @Slf4j
 public class CaptivePortalApiController {
 
+    private static final String PENDING_VERSION_HEADER = "X-Pending-Version";
+
     @Autowired
     AuthService authService;
 
@@ -35,6 +43,19 @@ public class CaptivePortalApiController {
         return ResponseEntity.ok(authService.getPendingAuthorisations(siteIdentifier, authToken));
     }
 
+    @GetMapping(value = "/portal", params = "version")
+    public CompletableFuture<ResponseEntity<List<BackstageAuthorisationRequest>>> awaitList(@RequestHeader("X-Auth-Token") String authToken,
+                                                                                         @RequestParam(name = "site_identifier") String siteIdentifier,
+                                                                                         @RequestParam(name = "version") Long version,
+                                                                                         @RequestParam(name = "timeout_ms", required = false) Long timeoutMs) {
+        log.trace("Received gateway long poll list request. [Site Identifier: {}, Version: {}]", siteIdentifier, version);
+
+        return authService.awaitPendingAuthorisations(siteIdentifier, version, timeoutMs, authToken)
+                .thenApply(pending -> ResponseEntity.ok()
+                        .header(PENDING_VERSION_HEADER, String.valueOf(pending.version()))
+                        .body(pending.requests()));
+    }
+
     @PostMapping("/portal")
     public ResponseEntity<String> postOutcome(@RequestHeader("X-Auth-Token") String authToken,
                                               @RequestBody GatewayAuthorisationOutcome outcome) {
@@ -44,4 +65,13 @@ public class CaptivePortalApiController {
         return ResponseEntity.ok("");
     }
 
+    @PostMapping("/portal/batch")
+    public ResponseEntity<String> postOutcomes(@RequestHeader("X-Auth-Token") String authToken,
+                                               @RequestBody List<GatewayAuthorisationOutcome> outcomes) {
+        log.debug("Received gateway authorization outcome batch notification. [Outcomes: {}]", outcomes);
+
+        authService.onAuthorizationOutcomes(outcomes, authToken);
+        return ResponseEntity.ok("");
+    }
+
 }
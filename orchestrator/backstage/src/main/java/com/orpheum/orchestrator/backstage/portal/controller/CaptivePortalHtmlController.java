@@ -14,7 +14,7 @@ import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 
 import java.util.Optional;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 
 import static com.orpheum.orchestrator.backstage.portal.model.auth.GatewayAuthorisationOutcomeStatus.FAILED;
@@ -27,6 +27,9 @@ import static com.orpheum.orchestrator.backstage.portal.model.auth.GatewayAuthor
  * turn exposes a pending backstage authorisation for the respective agent to consume and execute. The latter endpoint
  * also captures any identifiable information exposed by the user (such as names and emails), thus completing the intent
  * of the captive portal.
+ *
+ * The authorisation endpoint is handled asynchronously, i.e. the servlet thread is released while the agent's outcome
+ * is awaited, so that a burst of guests at check-in time does not exhaust the server's worker threads.
  */
 @Controller
 @Slf4j
@@ -92,48 +95,50 @@ public class CaptivePortalHtmlController {
     }
 
     @PostMapping(value = "/authorise")
-    public String authorise(Model model,
-                            @RequestParam(name="firstName", required = false) String firstName,
-                            @RequestParam(name="lastName", required = false) String lastName,
-                            @RequestParam(name="email", required = false) String email,
-                            @RequestParam(name="id", required = false) String macAddress,
-                            @RequestParam(name="ap", required = false) String accessPointMacAddress,
-                            @RequestParam(name="ip", required = false) String ip,
-                            @RequestParam(name="ssid") String siteIdentifier,
-                            @RequestParam(name="t", required = false) Long timestamp) throws ExecutionException, InterruptedException {
+    public CompletableFuture<String> authorise(Model model,
+                                               @RequestParam(name="firstName", required = false) String firstName,
+                                               @RequestParam(name="lastName", required = false) String lastName,
+                                               @RequestParam(name="email", required = false) String email,
+                                               @RequestParam(name="id", required = false) String macAddress,
+                                               @RequestParam(name="ap", required = false) String accessPointMacAddress,
+                                               @RequestParam(name="ip", required = false) String ip,
+                                               @RequestParam(name="ssid") String siteIdentifier,
+                                               @RequestParam(name="t", required = false) Long timestamp) {
         log.debug("Received portal authorise request. [MAC Address: {}, Access Point MAC Address: {}, IP: {}, Site Identifier: {}, First name: {}, last name: {}, email: {}]",
                 macAddress, accessPointMacAddress, ip, siteIdentifier, firstName, lastName, email);
 
         Optional<GatewayAuthorisationOutcome> validationOutcome = validate(macAddress, accessPointMacAddress, ip);
         if (validationOutcome.isPresent()) {
-            return processFailureOutcome(model, validationOutcome.get());
+            return CompletableFuture.completedFuture(processFailureOutcome(model, validationOutcome.get()));
         }
         Optional<SiteConfigDetails> siteConfigDetails = portalConfig.getSiteConfigBySiteIdentifier(siteIdentifier);
         if (siteConfigDetails.isEmpty()) {
-            return processFailureOutcome(model, new GatewayAuthorisationOutcome(null, FAILED, "Missing site configuration for " + siteIdentifier));
+            return CompletableFuture.completedFuture(processFailureOutcome(model, new GatewayAuthorisationOutcome(null, FAILED, "Missing site configuration for " + siteIdentifier)));
         }
 
-        final GatewayAuthorisationOutcome authOutcome = authService.startAuthorisation(macAddress,
-                                                                                       accessPointMacAddress,
-                                                                                       timestamp,
-                                                                                       ip,
-                                                                                       siteIdentifier,
-                                                                                       firstName,
-                                                                                       lastName,
-                                                                                       email,
-                                                                                       siteConfigDetails.get())
+        return authService.startAuthorisation(macAddress,
+                                              accessPointMacAddress,
+                                              timestamp,
+                                              ip,
+                                              siteIdentifier,
+                                              firstName,
+                                              lastName,
+                                              email,
+                                              siteConfigDetails.get())
+                // A copy is used since the pending future may be shared with duplicate submissions for the same device
+                .copy()
                 .completeOnTimeout(new GatewayAuthorisationOutcome(null, FAILED, "Authentication request timed out. Please try again later."), authorisationRequestTimeoutMs, TimeUnit.MILLISECONDS)
-                .get();
-
-        if (SUCCESS.equals(authOutcome.outcome())) {
-            log.info("Successfully completed gateway authentication request with outcome {}", authOutcome);
-            model.addAttribute("redirectUrl", siteConfigDetails.get().getRedirectUrl());
-            model.addAttribute("siteIdentifier", siteConfigDetails.get().getSiteIdentifier());
-
-            return "success";
-        } else {
-            return processFailureOutcome(model, authOutcome);
-        }
+                .thenApply(authOutcome -> {
+                    if (SUCCESS.equals(authOutcome.outcome())) {
+                        log.info("Successfully completed gateway authentication request with outcome {}", authOutcome);
+                        model.addAttribute("redirectUrl", siteConfigDetails.get().getRedirectUrl());
+                        model.addAttribute("siteIdentifier", siteConfigDetails.get().getSiteIdentifier());
+
+                        return "success";
+                    } else {
+                        return processFailureOutcome(model, authOutcome);
+                    }
+                });
     }
 
     @GetMapping(value = "/privacy-policy")
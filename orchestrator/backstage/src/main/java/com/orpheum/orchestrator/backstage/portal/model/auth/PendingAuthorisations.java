@@ -0,0 +1,14 @@
+package com.orpheum.orchestrator.backstage.portal.model.auth;
+
+import java.util.List;
+
+/**
+ * A snapshot of the pending authorisation requests for a single site.
+ *
+ * @param version  the site's pending authorisation version at the time of the snapshot. This is bumped every time a new
+ *                 authorisation request is registered for the site, allowing long polling agents to detect changes.
+ * @param requests the pending authorisation requests for the site
+ */
+public record PendingAuthorisations(long version, List<BackstageAuthorisationRequest> requests) {
+
+}
@@ -2,8 +2,11 @@ package com.orpheum.orchestrator.backstage.portal.repository;
 
 import com.github.benmanes.caffeine.cache.Cache;
 import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.github.benmanes.caffeine.cache.Scheduler;
 import com.orpheum.orchestrator.backstage.portal.model.auth.BackstageAuthorisationRequest;
 import com.orpheum.orchestrator.backstage.portal.model.auth.GatewayAuthorisationOutcome;
+import com.orpheum.orchestrator.backstage.portal.model.auth.PendingAuthorisations;
 import jakarta.annotation.PostConstruct;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
@@ -11,7 +14,20 @@ import org.springframework.stereotype.Component;
 
 import java.util.*;
 import java.util.concurrent.*;
-
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-memory store of ongoing authorisation requests. Alongside the id-keyed cache, a per-site index is kept so that
+ * an agent's poll only ever touches the pending requests of its own site. The index is kept consistent with the cache
+ * on registration, on outcome resolution, and on expiry via the cache's eviction listener.
+ *
+ * No repository-wide lock is taken. Registration and outcome resolution rely on the cache's atomic per-key operations,
+ * so a check-in wave at one site never stalls outcome delivery for another.
+ *
+ * A site's index, version and waiters are only kept while in use, so that sites which are no longer polled or have
+ * no pending authorisations do not accumulate state. Versions are drawn from a repository-wide sequence, so that a
+ * site's version never repeats once its state has been dropped.
+ */
 @Component
 @Slf4j
 public final class AuthRepository {
@@ -19,15 +35,40 @@ public final class AuthRepository {
     @Value("${backstage.portal.auth-thread-pool}")
     private Integer authThreadPoolSize;
 
+    // Beyond this age, the portal request which registered an authorisation request has timed out
+    @Value("${backstage.portal.auth-timeout-ms}")
+    private Long authorisationRequestTimeoutMs;
+
+    // Per-site index of the ongoing authorisations, keyed by site identifier and then by request id
+    private final Map<String, Map<String, PendingAuthorisationData>> ongoingAuthorisationsBySite = new ConcurrentHashMap<>();
+
     private final Cache<String, PendingAuthorisationData> ongoingAuthorisations = Caffeine.newBuilder()
             .expireAfterWrite(5, TimeUnit.MINUTES)
+            // Expired entries are evicted promptly rather than lingering in the per-site index until the next cache write
+            .scheduler(Scheduler.systemScheduler())
+            // The eviction listener runs atomically with the eviction itself, keeping the per-site index consistent
+            .evictionListener((String id, PendingAuthorisationData data, RemovalCause cause) -> removeFromSiteIndex(data))
             .build();
     private ExecutorService threadPool;
 
+    private final AtomicLong versionSequence = new AtomicLong();
+    // Per-site versions, bumped whenever a new authorisation request is registered for the site. Only kept while the
+    // site has pending authorisations, and updated atomically with the site's index
+    private final Map<String, Long> siteVersions = new ConcurrentHashMap<>();
+    // Per-site agent long poll requests waiting for a new authorisation request to be registered. Only mutated via
+    // atomic per-site operations, so that an emptied set is never dropped while a waiter is being added to it
+    private final Map<String, Set<CompletableFuture<PendingAuthorisations>>> siteWaiters = new ConcurrentHashMap<>();
+
     public List<BackstageAuthorisationRequest> getPendingAuthorisations(String siteIdentifier) {
-        final List<BackstageAuthorisationRequest> authorisedRequests = ongoingAuthorisations.asMap().values().stream()
+        final Map<String, PendingAuthorisationData> siteAuthorisations = ongoingAuthorisationsBySite.get(siteIdentifier);
+        if (siteAuthorisations == null) {
+            return List.of();
+        }
+
+        final List<BackstageAuthorisationRequest> authorisedRequests = siteAuthorisations.values().stream()
+                // Skip entries which have expired but have not been evicted yet, without affecting the cache's statistics
+                .filter(data -> ongoingAuthorisations.policy().getIfPresentQuietly(data.pendingRequest().id()) == data)
                 .map(PendingAuthorisationData::pendingRequest)
-                .filter(request -> siteIdentifier.equals(request.siteIdentifier()))
                 .toList();
 
         log.trace("Resolved the following authorised requests for gateway authentication. [Requests: {}, Site Identifier: {}]", authorisedRequests, siteIdentifier);
@@ -35,37 +76,152 @@ public final class AuthRepository {
         return authorisedRequests;
     }
 
-    public synchronized CompletableFuture<GatewayAuthorisationOutcome> startAuthorisation(String macAddress, String accessPointMacAddress, String siteIdentifier, String ip, Long timestamp) {
+    /**
+     * Resolves the site's pending authorisation requests as soon as the site's version differs from the version known
+     * by the caller. If the versions match, the returned future is parked until either a new authorisation request is
+     * registered for the site, or the timeout elapses - in which case it completes with the site's current snapshot.
+     *
+     * @param siteIdentifier the site identifier
+     * @param knownVersion   the last version seen by the caller
+     * @param timeoutMs      the maximum time the future is parked for
+     * @return a future completing with the site's pending authorisation requests
+     */
+    public CompletableFuture<PendingAuthorisations> awaitPendingAuthorisations(String siteIdentifier, long knownVersion, long timeoutMs) {
+        final CompletableFuture<PendingAuthorisations> waiter = new CompletableFuture<>();
+        siteWaiters.compute(siteIdentifier, (key, waiters) -> {
+            final Set<CompletableFuture<PendingAuthorisations>> siteWaiterSet = (waiters != null) ? waiters : ConcurrentHashMap.newKeySet();
+            siteWaiterSet.add(waiter);
+            return siteWaiterSet;
+        });
+
+        // The version is checked only after registering the waiter, so that a request registered concurrently is never missed
+        if (getVersion(siteIdentifier) != knownVersion) {
+            if (removeWaiter(siteIdentifier, waiter)) {
+                waiter.complete(getPendingAuthorisationsSnapshot(siteIdentifier));
+            }
+            return waiter;
+        }
+
+        log.trace("Parked long poll request. [Site Identifier: {}, Version: {}]", siteIdentifier, knownVersion);
+        CompletableFuture.delayedExecutor(timeoutMs, TimeUnit.MILLISECONDS, threadPool).execute(() -> {
+            if (removeWaiter(siteIdentifier, waiter)) {
+                waiter.complete(getPendingAuthorisationsSnapshot(siteIdentifier));
+            }
+        });
+
+        return waiter;
+    }
+
+    /**
+     * Registers a new authorisation request. Registration is atomic per request id, so a duplicate submission for the
+     * same device (e.g. a double click on the portal) joins the ongoing authorisation rather than orphaning it. Only
+     * authorisations still awaiting their outcome within the portal's timeout are joined. A retry after the portal
+     * request timed out replaces the stale authorisation, and is picked up by the agent as a new request.
+     */
+    public CompletableFuture<GatewayAuthorisationOutcome> startAuthorisation(String macAddress, String accessPointMacAddress, String siteIdentifier, String ip, Long timestamp) {
         BackstageAuthorisationRequest pendingAuthRequest = new BackstageAuthorisationRequest(macAddress, accessPointMacAddress, siteIdentifier, ip, timestamp);
 
         CompletableFuture<GatewayAuthorisationOutcome> pendingRequestOutcome = new CompletableFuture<>();
-        ongoingAuthorisations.put(pendingAuthRequest.id(), new PendingAuthorisationData(pendingAuthRequest, pendingRequestOutcome));
+        final long nowMs = System.currentTimeMillis();
+        PendingAuthorisationData pendingAuthorisationData = ongoingAuthorisations.asMap().compute(pendingAuthRequest.id(), (id, existing) -> {
+            if (existing != null) {
+                if (!existing.pendingCompletableFuture().isDone() && nowMs - existing.registeredAtMs() < authorisationRequestTimeoutMs) {
+                    return existing;
+                }
+                // The site index entry is overwritten below
+                log.debug("Replacing stale authorisation request. [Request: {}]", existing.pendingRequest());
+            }
+
+            PendingAuthorisationData created = new PendingAuthorisationData(pendingAuthRequest, pendingRequestOutcome, nowMs);
+            ongoingAuthorisationsBySite.compute(siteIdentifier, (key, siteAuthorisations) -> {
+                final Map<String, PendingAuthorisationData> updated = (siteAuthorisations != null) ? siteAuthorisations : new ConcurrentHashMap<>();
+                updated.put(id, created);
+                siteVersions.put(key, versionSequence.incrementAndGet());
+                return updated;
+            });
+            return created;
+        });
+
+        if (pendingAuthorisationData.pendingCompletableFuture() != pendingRequestOutcome) {
+            log.debug("Joined ongoing authorisation request. [Request: {}]", pendingAuthorisationData.pendingRequest());
+            return pendingAuthorisationData.pendingCompletableFuture();
+        }
+
+        notifyWaiters(siteIdentifier);
 
         return pendingRequestOutcome;
     }
 
-    public synchronized void onAuthorizationOutcome(GatewayAuthorisationOutcome outcome) {
-        PendingAuthorisationData request = ongoingAuthorisations.getIfPresent(outcome.request().id());
+    /**
+     * Resolves the ongoing authorisation request matching the outcome, signalling the outcome to any pending HTML
+     * request. The request is claimed via an atomic removal from the store, so duplicate or concurrent outcome
+     * notifications for the same request complete it exactly once.
+     *
+     * @return true if the outcome resolved an ongoing authorisation request, false otherwise
+     */
+    public boolean onAuthorizationOutcome(GatewayAuthorisationOutcome outcome) {
+        PendingAuthorisationData request = ongoingAuthorisations.asMap().remove(outcome.request().id());
+
+        if (request == null) {
+            log.warn("Unable to resolve corresponding backstage authorisation request. Any associated pending authorization request will time out. [Outcome: {}]", outcome);
+            return false;
+        }
 
-        if (request != null) {
-            CompletableFuture<GatewayAuthorisationOutcome> pendingCompletableFuture = request.pendingCompletableFuture;
+        removeFromSiteIndex(request);
+        log.debug("Resolved outcome notification and removed authorisation request. Pending HTML request to be notified of outcome. [Outcome: {}]", outcome);
 
-            if (pendingCompletableFuture != null) {
-                log.debug("Resolved outcome notification. Pending HTML request to be notified of outcome. [Outcome: {}]", outcome);
+        // Signal to any pending HTTP request that the outcome has been received
+        threadPool.execute(() -> request.pendingCompletableFuture().complete(outcome));
+        return true;
+    }
 
-                threadPool.execute(() -> {
-                    // Signal to any pending HTTP request that the outcome has been received
-                    pendingCompletableFuture.complete(outcome);
-                    // Remove the ongoing authorisation from the store
-                    ongoingAuthorisations.invalidate(request.pendingRequest.id());
-                    log.debug("Removed authorisation request. [Request = {}, Set = {}]", request, ongoingAuthorisations);
-                });
-            } else {
-                log.debug("Unable to resolve corresponding completable future for outcome. Any associated pending authorization request will time out. [Outcome: {}]", outcome);
+    private void removeFromSiteIndex(PendingAuthorisationData data) {
+        ongoingAuthorisationsBySite.computeIfPresent(data.pendingRequest().siteIdentifier(), (key, siteAuthorisations) -> {
+            // Only remove the exact entry, since the same request id may have been registered again in the meantime
+            siteAuthorisations.remove(data.pendingRequest().id(), data);
+            if (!siteAuthorisations.isEmpty()) {
+                return siteAuthorisations;
             }
-        } else {
-            log.warn("Unable to resolve corresponding backstage authorisation request. Any associated pending authorization request will time out. [Outcome: {}]", outcome);
+            siteVersions.remove(key);
+            return null;
+        });
+    }
+
+    /**
+     * @return true if the waiter was still parked, in which case the caller is the only one allowed to complete it
+     */
+    private boolean removeWaiter(String siteIdentifier, CompletableFuture<PendingAuthorisations> waiter) {
+        final boolean[] removed = new boolean[1];
+        siteWaiters.computeIfPresent(siteIdentifier, (key, waiters) -> {
+            removed[0] = waiters.remove(waiter);
+            return waiters.isEmpty() ? null : waiters;
+        });
+        return removed[0];
+    }
+
+    private void notifyWaiters(String siteIdentifier) {
+        // The site's waiters are claimed as a whole, so that only this thread may complete them, avoiding races with
+        // the timeout. Any waiter parking from now on sees the bumped version and completes straight away
+        final Set<CompletableFuture<PendingAuthorisations>> waiters = siteWaiters.remove(siteIdentifier);
+        if (waiters == null || waiters.isEmpty()) {
+            return;
+        }
+
+        final PendingAuthorisations snapshot = getPendingAuthorisationsSnapshot(siteIdentifier);
+        for (CompletableFuture<PendingAuthorisations> waiter : waiters) {
+            threadPool.execute(() -> waiter.complete(snapshot));
         }
+        log.trace("Notified long poll requests of new pending authorisations. [Site Identifier: {}, Snapshot: {}]", siteIdentifier, snapshot);
+    }
+
+    private PendingAuthorisations getPendingAuthorisationsSnapshot(String siteIdentifier) {
+        // The version is read before the requests, so that a concurrent registration can only ever cause a redundant poll
+        final long version = getVersion(siteIdentifier);
+        return new PendingAuthorisations(version, getPendingAuthorisations(siteIdentifier));
+    }
+
+    private long getVersion(String siteIdentifier) {
+        return siteVersions.getOrDefault(siteIdentifier, 0L);
     }
 
     @PostConstruct
@@ -73,6 +229,6 @@ public final class AuthRepository {
         threadPool = Executors.newFixedThreadPool(authThreadPoolSize);
     }
 
-    private record PendingAuthorisationData(BackstageAuthorisationRequest pendingRequest, CompletableFuture<GatewayAuthorisationOutcome> pendingCompletableFuture) {}
+    private record PendingAuthorisationData(BackstageAuthorisationRequest pendingRequest, CompletableFuture<GatewayAuthorisationOutcome> pendingCompletableFuture, long registeredAtMs) {}
 
 }
@@ -3,6 +3,7 @@ package com.orpheum.orchestrator.backstage.portal.service;
 import com.orpheum.orchestrator.backstage.portal.exception.AuthTokenNotFoundException;
 import com.orpheum.orchestrator.backstage.portal.model.auth.BackstageAuthorisationRequest;
 import com.orpheum.orchestrator.backstage.portal.model.auth.GatewayAuthorisationOutcome;
+import com.orpheum.orchestrator.backstage.portal.model.auth.PendingAuthorisations;
 import com.orpheum.orchestrator.backstage.portal.model.user.UserData;
 import com.orpheum.orchestrator.backstage.portal.repository.AuthRepository;
 import com.orpheum.orchestrator.backstage.portal.repository.UserDataRepository;
@@ -29,6 +30,9 @@ public class AuthService {
     @Value("${backstage.portal.api-tokens}")
     private List<String> apiTokens;
 
+    @Value("${backstage.portal.long-poll-max-timeout-ms}")
+    private Long longPollMaxTimeoutMs;
+
     @Autowired
     PortalConfig portalConfig;
 
@@ -41,11 +45,25 @@ public class AuthService {
         return resolvedPendingAuthorisations;
     }
 
+    public CompletableFuture<PendingAuthorisations> awaitPendingAuthorisations(String siteIdentifier, Long knownVersion, Long timeoutMs, String authToken) {
+        validateAuthToken(authToken);
+
+        final long resolvedTimeoutMs = (timeoutMs != null) ? Math.min(timeoutMs, longPollMaxTimeoutMs) : longPollMaxTimeoutMs;
+        return authRepository.awaitPendingAuthorisations(siteIdentifier, knownVersion, resolvedTimeoutMs);
+    }
+
     public void onAuthorizationOutcome(GatewayAuthorisationOutcome outcome, String authToken) {
         validateAuthToken(authToken);
         authRepository.onAuthorizationOutcome(outcome);
     }
 
+    public void onAuthorizationOutcomes(List<GatewayAuthorisationOutcome> outcomes, String authToken) {
+        validateAuthToken(authToken);
+        for (GatewayAuthorisationOutcome outcome : outcomes) {
+            authRepository.onAuthorizationOutcome(outcome);
+        }
+    }
+
     public CompletableFuture<GatewayAuthorisationOutcome> startAuthorisation(String macAddress,
                                                                              String accessPointMacAddress,
                                                                              Long timestamp,
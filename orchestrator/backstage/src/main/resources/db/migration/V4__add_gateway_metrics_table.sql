@@ -0,0 +1,22 @@
+-- Time series of the metrics summaries sent by gateway agents with their heartbeat
+CREATE TABLE gateway_metrics (
+    id BIGSERIAL PRIMARY KEY,
+    identifier VARCHAR(255) NOT NULL,
+    timestamp TIMESTAMP DEFAULT CURRENT_TIMESTAMP NOT NULL,
+    interval_ms BIGINT NOT NULL,
+    capport_requests BIGINT NOT NULL,
+    capport_requests_per_second DOUBLE PRECISION NOT NULL,
+    capport_throttled BIGINT NOT NULL,
+    capport_errors BIGINT NOT NULL,
+    authorisations BIGINT NOT NULL,
+    authorisation_failures BIGINT NOT NULL,
+    authorisation_p50_ms DOUBLE PRECISION NOT NULL,
+    authorisation_p99_ms DOUBLE PRECISION NOT NULL,
+    connection_wait_p50_ms DOUBLE PRECISION NOT NULL,
+    connection_wait_p99_ms DOUBLE PRECISION NOT NULL,
+    cached_devices BIGINT NOT NULL,
+    gateway_errors BIGINT NOT NULL
+);
+
+CREATE INDEX gateway_metrics_identifier_timestamp_idx ON gateway_metrics (identifier, timestamp);
+CREATE INDEX gateway_metrics_timestamp_idx ON gateway_metrics (timestamp);
@@ -0,0 +1,3 @@
+-- Gateway admin connection pool utilisation, used to size the credentials configured per site
+ALTER TABLE gateway_metrics ADD COLUMN connection_utilisation DOUBLE PRECISION DEFAULT 0 NOT NULL;
+ALTER TABLE gateway_metrics ADD COLUMN connection_borrow_timeouts BIGINT DEFAULT 0 NOT NULL;
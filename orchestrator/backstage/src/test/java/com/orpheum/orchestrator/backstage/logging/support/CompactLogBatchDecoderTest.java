@@ -0,0 +1,133 @@
+package com.orpheum.orchestrator.backstage.logging.support;
+
+import com.orpheum.orchestrator.backstage.logging.model.LogEntry;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class CompactLogBatchDecoderTest {
+
+    @Test
+    void decodesBatch() throws IOException {
+        final byte[] batch = batch(output -> {
+            // Dictionary
+            writeVarint(output, 2);
+            writeString(output, "INFO");
+            writeString(output, "com.orpheum.Agent");
+            // Stack traces
+            writeVarint(output, 0);
+            // Entries
+            writeVarint(output, 1);
+            writeVarint(output, 2_000L << 1);
+            writeVarint(output, 1);
+            writeVarint(output, 2);
+            writeVarint(output, 0);
+            writeVarint(output, 0);
+            writeString(output, "Started");
+        });
+
+        final List<LogEntry> entries = CompactLogBatchDecoder.decode(new ByteArrayInputStream(batch));
+
+        assertThat(entries).singleElement().satisfies(entry -> {
+            assertThat(entry.getTimestamp().toEpochMilli()).isEqualTo(2_000L);
+            assertThat(entry.getLogLevel()).isEqualTo("INFO");
+            assertThat(entry.getLoggerName()).isEqualTo("com.orpheum.Agent");
+            assertThat(entry.getSiteFriendlyName()).isNull();
+            assertThat(entry.getStacktrace()).isNull();
+            assertThat(entry.getMessage()).isEqualTo("Started");
+        });
+    }
+
+    @Test
+    void rejectsBatchDecompressingBeyondLimit() throws IOException {
+        // Each string is within the per-string limit, yet the batch decompresses to well over the total limit while
+        // compressing down to a few KB
+        final byte[] zeros = new byte[1 << 20];
+        final byte[] batch = batch(output -> {
+            writeVarint(output, 64);
+            for (int i = 0; i < 64; i++) {
+                writeVarint(output, zeros.length + 1L);
+                output.write(zeros);
+            }
+        });
+
+        assertThat(batch.length).isLessThan(1 << 20);
+        assertThatThrownBy(() -> CompactLogBatchDecoder.decode(new ByteArrayInputStream(batch)))
+                .isInstanceOf(IOException.class)
+                .hasMessageContaining("decompressed size limit");
+    }
+
+    @Test
+    void rejectsValuesBeyondSignedRange() throws IOException {
+        // Varints of 2^63 and above read as negative longs, which must still fail the bounds checks
+        final long huge = Long.MIN_VALUE;
+        final List<Body> bodies = List.of(
+                // Table count
+                output -> writeVarint(output, huge),
+                // String length
+                output -> {
+                    writeVarint(output, 1);
+                    writeVarint(output, -1L);
+                },
+                // Entry count
+                output -> {
+                    writeVarint(output, 0);
+                    writeVarint(output, 0);
+                    writeVarint(output, -1L);
+                },
+                // Dictionary reference
+                output -> {
+                    writeVarint(output, 0);
+                    writeVarint(output, 0);
+                    writeVarint(output, 1);
+                    writeVarint(output, 0);
+                    writeVarint(output, huge);
+                }
+        );
+
+        for (Body body : bodies) {
+            final byte[] batch = batch(body);
+            assertThatThrownBy(() -> CompactLogBatchDecoder.decode(new ByteArrayInputStream(batch)))
+                    .isInstanceOf(IOException.class)
+                    .hasMessageMatching(".*(exceeds limit|Invalid compact log batch reference).*");
+        }
+    }
+
+    private interface Body {
+        void write(DataOutputStream output) throws IOException;
+    }
+
+    private static byte[] batch(final Body body) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream output = new DataOutputStream(new GZIPOutputStream(bytes))) {
+            output.writeInt(0x4F4C4200);
+            output.writeByte(1);
+            body.write(output);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeString(final DataOutputStream output, final String value) throws IOException {
+        final byte[] encoded = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(output, encoded.length + 1L);
+        output.write(encoded);
+    }
+
+    private static void writeVarint(final DataOutputStream output, long value) throws IOException {
+        while ((value & ~0x7FL) != 0L) {
+            output.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        output.writeByte((int) value);
+    }
+
+}
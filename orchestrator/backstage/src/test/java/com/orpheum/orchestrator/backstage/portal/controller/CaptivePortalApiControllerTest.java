@@ -0,0 +1,57 @@
+package com.orpheum.orchestrator.backstage.portal.controller;
+
+import com.orpheum.orchestrator.backstage.portal.model.auth.BackstageAuthorisationRequest;
+import com.orpheum.orchestrator.backstage.portal.model.auth.PendingAuthorisations;
+import com.orpheum.orchestrator.backstage.portal.service.AuthService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+class CaptivePortalApiControllerTest {
+
+    private final AuthService authService = mock(AuthService.class);
+
+    private MockMvc mockMvc;
+
+    @BeforeEach
+    void setUp() {
+        final CaptivePortalApiController controller = new CaptivePortalApiController();
+        controller.authService = authService;
+        mockMvc = MockMvcBuilders.standaloneSetup(controller).build();
+    }
+
+    @Test
+    void longPollReturnsSiteVersionHeader() throws Exception {
+        final BackstageAuthorisationRequest request = new BackstageAuthorisationRequest(null, null, "Site", "192.168.1.10", 1L);
+        when(authService.awaitPendingAuthorisations("Site", 3L, 1000L, "token"))
+                .thenReturn(CompletableFuture.completedFuture(new PendingAuthorisations(7L, List.of(request))));
+
+        final MvcResult result = mockMvc.perform(get("/portal")
+                        .header("X-Auth-Token", "token")
+                        .param("site_identifier", "Site")
+                        .param("version", "3")
+                        .param("timeout_ms", "1000"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        mockMvc.perform(asyncDispatch(result))
+                .andExpect(status().isOk())
+                .andExpect(header().string("X-Pending-Version", "7"))
+                .andExpect(jsonPath("$[0].ip").value("192.168.1.10"));
+    }
+
+}
@@ -0,0 +1,199 @@
+package com.orpheum.orchestrator.backstage.portal.repository;
+
+import com.orpheum.orchestrator.backstage.portal.model.auth.BackstageAuthorisationRequest;
+import com.orpheum.orchestrator.backstage.portal.model.auth.GatewayAuthorisationOutcome;
+import com.orpheum.orchestrator.backstage.portal.model.auth.PendingAuthorisations;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.orpheum.orchestrator.backstage.portal.model.auth.GatewayAuthorisationOutcomeStatus.FAILED;
+import static com.orpheum.orchestrator.backstage.portal.model.auth.GatewayAuthorisationOutcomeStatus.SUCCESS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AuthRepositoryTest {
+
+    private AuthRepository authRepository;
+
+    @BeforeEach
+    void setUp() {
+        authRepository = new AuthRepository();
+        ReflectionTestUtils.setField(authRepository, "authThreadPoolSize", 2);
+        ReflectionTestUtils.setField(authRepository, "authorisationRequestTimeoutMs", 30_000L);
+        authRepository.postConstruct();
+    }
+
+    @Test
+    void pendingAuthorisationsAreResolvedPerSite() {
+        for (int site = 0; site < 50; site++) {
+            for (int guest = 0; guest < 20; guest++) {
+                authRepository.startAuthorisation(null, null, "Site " + site, "192.168.1." + guest, 0L);
+            }
+        }
+
+        List<BackstageAuthorisationRequest> pendingAuthorisations = authRepository.getPendingAuthorisations("Site 7");
+
+        assertThat(pendingAuthorisations).hasSize(20);
+        assertThat(pendingAuthorisations).allMatch(request -> "Site 7".equals(request.siteIdentifier()));
+        assertThat(authRepository.getPendingAuthorisations("Unknown Site")).isEmpty();
+    }
+
+    @Test
+    void resolvedAuthorisationsAreRemovedFromSiteIndex() throws Exception {
+        CompletableFuture<GatewayAuthorisationOutcome> pendingOutcome = authRepository.startAuthorisation(null, null, "Site", "192.168.1.10", 0L);
+        authRepository.startAuthorisation(null, null, "Site", "192.168.1.11", 0L);
+        BackstageAuthorisationRequest request = new BackstageAuthorisationRequest(null, null, "Site", "192.168.1.10", 0L);
+
+        authRepository.onAuthorizationOutcome(new GatewayAuthorisationOutcome(request, SUCCESS));
+
+        assertThat(pendingOutcome.get(5, TimeUnit.SECONDS).outcome()).isEqualTo(SUCCESS);
+        // Removal from the store happens asynchronously after the outcome is signalled
+        long deadline = System.currentTimeMillis() + 5000L;
+        while (authRepository.getPendingAuthorisations("Site").size() != 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        assertThat(authRepository.getPendingAuthorisations("Site"))
+                .extracting(BackstageAuthorisationRequest::ip)
+                .containsExactly("192.168.1.11");
+    }
+
+    @Test
+    void concurrentStartsAndDuplicateOutcomesCompleteEachRequestExactlyOnce() throws Exception {
+        final int siteCount = 20;
+        final int guestCount = 200;
+        final ExecutorService executor = Executors.newFixedThreadPool(16);
+        final AtomicInteger resolvedOutcomes = new AtomicInteger();
+        final List<Future<CompletableFuture<GatewayAuthorisationOutcome>>> pendingOutcomes = new ArrayList<>();
+
+        try {
+            for (int site = 0; site < siteCount; site++) {
+                for (int guest = 0; guest < guestCount; guest++) {
+                    final BackstageAuthorisationRequest request = new BackstageAuthorisationRequest(null, null, "Site " + site, "192.168.1." + guest, 0L);
+                    pendingOutcomes.add(executor.submit(() -> {
+                        CompletableFuture<GatewayAuthorisationOutcome> pendingOutcome = authRepository.startAuthorisation(null, null, request.siteIdentifier(), request.ip(), 0L);
+                        // Each outcome is delivered twice and concurrently, mimicking an agent retrying a notification
+                        executor.execute(() -> deliver(new GatewayAuthorisationOutcome(request, SUCCESS), resolvedOutcomes));
+                        executor.execute(() -> deliver(new GatewayAuthorisationOutcome(request, FAILED), resolvedOutcomes));
+                        return pendingOutcome;
+                    }));
+                }
+            }
+
+            for (Future<CompletableFuture<GatewayAuthorisationOutcome>> pendingOutcome : pendingOutcomes) {
+                assertThat(pendingOutcome.get(10, TimeUnit.SECONDS).get(10, TimeUnit.SECONDS)).isNotNull();
+            }
+            executor.shutdown();
+            assertThat(executor.awaitTermination(10, TimeUnit.SECONDS)).isTrue();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertThat(resolvedOutcomes.get()).isEqualTo(siteCount * guestCount);
+        for (int site = 0; site < siteCount; site++) {
+            assertThat(authRepository.getPendingAuthorisations("Site " + site)).isEmpty();
+        }
+    }
+
+    @Test
+    void duplicateSubmissionJoinsOngoingAuthorisation() throws Exception {
+        CompletableFuture<GatewayAuthorisationOutcome> first = authRepository.startAuthorisation(null, null, "Site", "192.168.1.10", 1L);
+        long version = authRepository.awaitPendingAuthorisations("Site", -1L, 0L).get(5, TimeUnit.SECONDS).version();
+
+        CompletableFuture<GatewayAuthorisationOutcome> duplicate = authRepository.startAuthorisation(null, null, "Site", "192.168.1.10", 2L);
+
+        assertThat(duplicate).isSameAs(first);
+        assertThat(authRepository.awaitPendingAuthorisations("Site", -1L, 0L).get(5, TimeUnit.SECONDS).version()).isEqualTo(version);
+        assertThat(authRepository.getPendingAuthorisations("Site")).extracting(BackstageAuthorisationRequest::timestamp).containsExactly(1L);
+    }
+
+    @Test
+    void retryAfterPortalTimeoutReplacesStaleAuthorisation() throws Exception {
+        ReflectionTestUtils.setField(authRepository, "authorisationRequestTimeoutMs", 50L);
+        CompletableFuture<GatewayAuthorisationOutcome> first = authRepository.startAuthorisation(null, null, "Site", "192.168.1.10", 1L);
+        long version = authRepository.awaitPendingAuthorisations("Site", -1L, 0L).get(5, TimeUnit.SECONDS).version();
+        CompletableFuture<PendingAuthorisations> longPoll = authRepository.awaitPendingAuthorisations("Site", version, 10_000L);
+
+        // The guest's portal request times out, after which they submit again
+        Thread.sleep(100L);
+        CompletableFuture<GatewayAuthorisationOutcome> retry = authRepository.startAuthorisation(null, null, "Site", "192.168.1.10", 2L);
+
+        assertThat(retry).isNotSameAs(first);
+        PendingAuthorisations pending = longPoll.get(5, TimeUnit.SECONDS);
+        assertThat(pending.version()).isGreaterThan(version);
+        assertThat(pending.requests()).extracting(BackstageAuthorisationRequest::timestamp).containsExactly(2L);
+
+        BackstageAuthorisationRequest request = new BackstageAuthorisationRequest(null, null, "Site", "192.168.1.10", 2L);
+        assertThat(authRepository.onAuthorizationOutcome(new GatewayAuthorisationOutcome(request, SUCCESS))).isTrue();
+        assertThat(retry.get(5, TimeUnit.SECONDS).outcome()).isEqualTo(SUCCESS);
+    }
+
+    @Test
+    void longPollIsParkedUntilNewAuthorisationIsRegistered() throws Exception {
+        final long version = authRepository.awaitPendingAuthorisations("Site", -1L, 0L).get(5, TimeUnit.SECONDS).version();
+
+        final CompletableFuture<PendingAuthorisations> longPoll = authRepository.awaitPendingAuthorisations("Site", version, 10_000L);
+        Thread.sleep(100L);
+        assertThat(longPoll).isNotDone();
+
+        authRepository.startAuthorisation(null, null, "Site", "192.168.1.10", 1L);
+
+        final PendingAuthorisations pending = longPoll.get(5, TimeUnit.SECONDS);
+        assertThat(pending.version()).isNotEqualTo(version);
+        assertThat(pending.requests()).extracting(BackstageAuthorisationRequest::ip).containsExactly("192.168.1.10");
+        assertThat(siteWaiters()).doesNotContainKey("Site");
+    }
+
+    @Test
+    void longPollTimesOutWithUnchangedVersion() throws Exception {
+        authRepository.startAuthorisation(null, null, "Site", "192.168.1.10", 1L);
+        final long version = authRepository.awaitPendingAuthorisations("Site", -1L, 0L).get(5, TimeUnit.SECONDS).version();
+
+        final CompletableFuture<PendingAuthorisations> longPoll = authRepository.awaitPendingAuthorisations("Site", version, 100L);
+        // Registrations for other sites must not wake the site's long poll
+        authRepository.startAuthorisation(null, null, "Other Site", "192.168.1.10", 1L);
+
+        final PendingAuthorisations pending = longPoll.get(5, TimeUnit.SECONDS);
+        assertThat(pending.version()).isEqualTo(version);
+        assertThat(pending.requests()).extracting(BackstageAuthorisationRequest::ip).containsExactly("192.168.1.10");
+        assertThat(siteWaiters()).doesNotContainKey("Site");
+    }
+
+    @Test
+    void siteStateIsDroppedOnceSiteHasNoPendingAuthorisations() throws Exception {
+        final CompletableFuture<GatewayAuthorisationOutcome> pendingOutcome = authRepository.startAuthorisation(null, null, "Site", "192.168.1.10", 1L);
+        final long version = authRepository.awaitPendingAuthorisations("Site", -1L, 0L).get(5, TimeUnit.SECONDS).version();
+
+        authRepository.onAuthorizationOutcome(new GatewayAuthorisationOutcome(new BackstageAuthorisationRequest(null, null, "Site", "192.168.1.10", 1L), SUCCESS));
+        pendingOutcome.get(5, TimeUnit.SECONDS);
+
+        assertThat((Map<?, ?>) ReflectionTestUtils.getField(authRepository, "siteVersions")).isEmpty();
+        assertThat((Map<?, ?>) ReflectionTestUtils.getField(authRepository, "ongoingAuthorisationsBySite")).isEmpty();
+
+        // An agent still holding the dropped version is answered straight away, and a later registration never reuses it
+        assertThat(authRepository.awaitPendingAuthorisations("Site", version, 10_000L).get(5, TimeUnit.SECONDS).requests()).isEmpty();
+        authRepository.startAuthorisation(null, null, "Site", "192.168.1.11", 2L);
+        assertThat(authRepository.awaitPendingAuthorisations("Site", -1L, 0L).get(5, TimeUnit.SECONDS).version()).isGreaterThan(version);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, ?> siteWaiters() {
+        return (Map<String, ?>) ReflectionTestUtils.getField(authRepository, "siteWaiters");
+    }
+
+    private void deliver(GatewayAuthorisationOutcome outcome, AtomicInteger resolvedOutcomes) {
+        if (authRepository.onAuthorizationOutcome(outcome)) {
+            resolvedOutcomes.incrementAndGet();
+        }
+    }
+
+}
@@ -4,12 +4,15 @@ package com.orpheum.orchestrator.unifiAgent;
 import com.orpheum.orchestrator.unifiAgent.auth.GatewayAuthConnectionManager;
 import com.orpheum.orchestrator.unifiAgent.gateway.GatewayAuthorisationService;
 import com.orpheum.orchestrator.unifiAgent.heartbeat.HeartbeatService;
+import com.orpheum.orchestrator.unifiAgent.spool.BackstageSpool;
 import com.orpheum.orchestrator.unifiAgent.support.AgentControlManager;
+import com.orpheum.orchestrator.unifiAgent.support.AgentExecutors;
 import com.orpheum.orchestrator.unifiAgent.support.ApplicationProperties;
 import com.orpheum.orchestrator.unifiAgent.capport.CaptivePortalDeviceStateServer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 
@@ -17,6 +20,9 @@ public class UnifiAgentApplication {
     private static final Logger LOGGER = LoggerFactory.getLogger(UnifiAgentApplication.class);
 
     private static final ScheduledExecutorService THREAD_POOL = Executors.newScheduledThreadPool(ApplicationProperties.getInteger("thread_pool_size"));
+    private static final ExecutorService AUTHORISATION_THREAD_POOL = AgentExecutors.newAuthorisationExecutor();
+    private static final ScheduledExecutorService GATEWAY_CONNECTION_THREAD_POOL = AgentExecutors.newScheduler("gateway-connection", ApplicationProperties.getInteger("gateway_auth_connection_thread_pool_size"));
+    private static final ScheduledExecutorService OUTCOME_NOTIFIER_THREAD = AgentExecutors.newSingleThreadScheduler("backstage-outcome-notifier");
 
     public static void main(String[] args) {
         System.out.println("""
@@ -31,13 +37,16 @@ public class UnifiAgentApplication {
         LOGGER.info("Initializing Orpheum UniFi Agent");
         LOGGER.debug("Loaded properties {}", ApplicationProperties.getProperties());
 
-        GatewayAuthConnectionManager.start(THREAD_POOL);
+        GatewayAuthConnectionManager.start(GATEWAY_CONNECTION_THREAD_POOL);
+        // Restore the authorised devices before the capport server starts answering captive portal state requests
+        GatewayAuthorisationService.restoreCache();
         CaptivePortalDeviceStateServer.start(THREAD_POOL);
         AgentControlManager.start(THREAD_POOL);
         HeartbeatService.start(THREAD_POOL);
+        BackstageSpool.start(THREAD_POOL);
 
         // This should always be last since it occupies the main thread
-        GatewayAuthorisationService.start(THREAD_POOL);
+        GatewayAuthorisationService.start(THREAD_POOL, AUTHORISATION_THREAD_POOL, OUTCOME_NOTIFIER_THREAD);
     }
 
 }
@@ -1,58 +1,72 @@
 package com.orpheum.orchestrator.unifiAgent.auth;
 
+import com.orpheum.orchestrator.unifiAgent.metrics.AgentMetrics;
 import com.orpheum.orchestrator.unifiAgent.model.GatewayAuthConnection;
 import com.orpheum.orchestrator.unifiAgent.support.ApplicationProperties;
 import com.orpheum.orchestrator.unifiAgent.support.UnifiGatewayClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Class responsible for managing a pool of gateway authentication connections.
- * Includes automatic refreshing of stale connections.
+ * Class responsible for managing a pool of gateway authentication connections, see {@link GatewayAuthConnectionPool}.
+ * Includes refreshing of sessions ahead of their expiry without taking connections out of circulation, renewing
+ * sessions found to have expired by the gateway on demand, along with logging connections in and out as demand changes.
+ *
+ * Callers either borrow a connection exclusively, or borrow a shared session for read only calls, such as retrieving
+ * the gateway's active devices. Both wait up to `gateway_auth_connection_borrow_timeout_ms` for a connection.
  */
 public class GatewayAuthConnectionManager {
     private static final Logger LOGGER = LoggerFactory.getLogger(GatewayAuthConnectionManager.class);
 
-    private static final BlockingQueue<GatewayAuthConnection> CONNECTION_POOL = new LinkedBlockingQueue<>();
-
-    private static AtomicInteger connectionCount = new AtomicInteger();
+    private static final GatewayAuthConnectionPool POOL = new GatewayAuthConnectionPool(
+            parseAuthCredentials(),
+            ApplicationProperties.getInteger("gateway_auth_connection_pool_min_size"),
+            ApplicationProperties.getLong("gateway_auth_connection_borrow_timeout_ms"),
+            ApplicationProperties.getLong("gateway_auth_connection_idle_timeout_ms")
+    );
+
+    static {
+        AgentMetrics.gauge("gateway_connections_available", "Gateway admin connections currently idle within the pool", POOL::idle);
+        AgentMetrics.gauge("gateway_connections", "Gateway admin connections logged in, whether idle or in use", POOL::connected);
+        AgentMetrics.gauge("gateway_connections_busy", "Gateway admin connections currently in use, whether borrowed exclusively or shared", POOL::busy);
+        AgentMetrics.gauge("gateway_connections_unhealthy", "Gateway admin connections which failed to log in, pending retry", POOL::unhealthy);
+        AgentMetrics.gauge("gateway_connection_utilisation", "The ratio of logged in gateway admin connections currently in use", () -> {
+            final int connected = POOL.connected();
+            return (connected > 0) ? (double) POOL.busy() / connected : 0D;
+        });
+    }
 
     /**
-     * Starts the connection manager with the provided executor service.
-     * The executor service will be used to schedule periodic refreshing of expired connections.
+     * Starts the connection manager with the provided executor service, logging in the pool's minimum number of
+     * connections before returning. The executor service will be used to schedule the refreshing of sessions ahead of
+     * their expiry, the periodic maintenance of the pool, and to log connections in and out as needed. It should be
+     * dedicated to the connection manager, since callers waiting for a connection on a shared executor could otherwise
+     * starve the very logins which would hand them one.
      *
      * @param executorService The scheduled executor service to use
      */
     public static void start(ScheduledExecutorService executorService) {
-        GatewayAuthConnectionRefresherRunnable runnable = new GatewayAuthConnectionRefresherRunnable();
-        runnable.initialiseConnections(parseAuthCredentials());
-        connectionCount.set(CONNECTION_POOL.size());
-
-        executorService.scheduleAtFixedRate(
-                runnable,
-                0,
-                ApplicationProperties.getInteger("gateway_auth_connection_manager_delay_ms"),
-                TimeUnit.MILLISECONDS
-        );
+        GatewayAuthConnectionRefresherRunnable runnable = new GatewayAuthConnectionRefresherRunnable(POOL, executorService);
+        POOL.setConnector(slot -> executorService.execute(() -> runnable.connect(slot)));
+        POOL.setRetirer(runnable::retire);
+        UnifiGatewayClient.setSessionRenewer(runnable::renew);
+        runnable.run();
+
+        final Integer delayMs = ApplicationProperties.getInteger("gateway_auth_connection_manager_delay_ms");
+        executorService.scheduleAtFixedRate(runnable, delayMs, delayMs, TimeUnit.MILLISECONDS);
         LOGGER.info("Connection manager started");
     }
 
-    public static void shutdown() throws InterruptedException, IOException {
-        for (int i = 0; i < connectionCount.get(); i++) {
-            GatewayAuthConnection connection = borrowConnection();
-
+    public static void shutdown() throws InterruptedException {
+        for (GatewayAuthConnection connection : POOL.close()) {
             try {
                 UnifiGatewayClient.logout(connection);
-            } catch (IllegalStateException e) {
+            } catch (Exception e) {
                 LOGGER.error("Failed to process connection logout during shutdown. Skipping. [Username: {}]", connection.username(), e);
             }
         }
@@ -60,15 +74,15 @@ public class GatewayAuthConnectionManager {
     }
 
     /**
-     * Loans out a connection from the pool.
-     * If no connections are available, this method blocks until one becomes available.
+     * Loans out a connection from the pool for exclusive use.
+     * If no connections are available, this method blocks until one becomes available, up to the borrow timeout.
      *
      * @return An authentication connection
      * @throws InterruptedException if the thread is interrupted while waiting
+     * @throws IllegalStateException if no connection became available within the borrow timeout
      */
     public static GatewayAuthConnection borrowConnection() throws InterruptedException {
-        GatewayAuthConnection gatewayAuthConnection = CONNECTION_POOL.take();// Blocks if the queue is empty
-        return gatewayAuthConnection;
+        return POOL.borrow();
     }
 
     /**
@@ -77,19 +91,35 @@ public class GatewayAuthConnectionManager {
      * @param connection The connection to return to the pool
      */
     public static void returnConnection(GatewayAuthConnection connection) {
-        CONNECTION_POOL.add(connection);
+        POOL.giveBack(connection);
     }
 
-    public static void onConnectionFailure() {
-        connectionCount.set(connectionCount.get() - 1);
+    /**
+     * Loans out a logged in session which may be in use by other callers at the same time. Only to be used for read only
+     * calls, which are multiplexed onto the same session rather than tying up a connection each.
+     *
+     * @return An authentication connection
+     * @throws InterruptedException if the thread is interrupted while waiting
+     * @throws IllegalStateException if no session became available within the borrow timeout
+     */
+    public static GatewayAuthConnection borrowSharedConnection() throws InterruptedException {
+        return POOL.borrowShared();
     }
 
-    static BlockingQueue<GatewayAuthConnection> getConnectionPool() {
-        return CONNECTION_POOL;
+    /**
+     * Returns a previously borrowed shared session to the pool.
+     *
+     * @param connection The session to return to the pool
+     */
+    public static void returnSharedConnection(GatewayAuthConnection connection) {
+        POOL.giveBackShared(connection);
     }
 
-    public static List<GatewayAuthConnection> getConnectionsView() {
-        return CONNECTION_POOL.stream().toList();
+    /**
+     * @return a description of every pooled connection's state
+     */
+    public static List<String> getConnectionsView() {
+        return POOL.describe();
     }
 
     public static List<AuthCredentials> parseAuthCredentials() {
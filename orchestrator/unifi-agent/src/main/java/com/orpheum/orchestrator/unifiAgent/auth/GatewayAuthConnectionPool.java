@@ -0,0 +1,645 @@
+package com.orpheum.orchestrator.unifiAgent.auth;
+
+import com.orpheum.orchestrator.unifiAgent.auth.GatewayAuthConnectionManager.AuthCredentials;
+import com.orpheum.orchestrator.unifiAgent.metrics.AgentMetrics;
+import com.orpheum.orchestrator.unifiAgent.metrics.Counter;
+import com.orpheum.orchestrator.unifiAgent.metrics.LatencyHistogram;
+import com.orpheum.orchestrator.unifiAgent.model.GatewayAuthConnection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * The pool of gateway admin connections, holding a slot per configured credential. Each slot tracks its credential's
+ * current session along with its health, i.e.
+ *
+ * <ul>
+ *     <li>DORMANT - not logged in, to be logged in on demand;</li>
+ *     <li>CONNECTING - being logged in by the refresher;</li>
+ *     <li>AVAILABLE - logged in, and either idle or in use;</li>
+ *     <li>DISCONNECTING - being logged out by the refresher, having been idle for too long;</li>
+ *     <li>UNHEALTHY - failed to log in, to be retried by the refresher.</li>
+ * </ul>
+ *
+ * The pool is demand sized. At least `minSize` slots are kept logged in, with dormant slots being logged in whenever
+ * borrowers are left waiting, and slots beyond the minimum being logged out once left idle for `idleTimeoutMs`. Idle
+ * slots are handed out most recently used first, so that any excess slots are left idle long enough to be logged out.
+ *
+ * Connections are either borrowed exclusively, waiting up to `borrowTimeoutMs` for an idle slot, or shared, in which
+ * case a logged in session is handed out without being taken out of circulation. Sharing is only meant for read only
+ * calls, which the gateway happily serves concurrently on the same session.
+ *
+ * Sessions are renewed without ever being taken out of circulation, whether ahead of their expiry or once found to have
+ * expired by a borrower. A replacement session is logged in in the background while the current session remains in
+ * use, and is then atomically swapped in. Only a single renewal is ever in flight per slot, which any concurrent
+ * renewals of the same session join. The replaced session is retired, i.e. handed over to be logged out, as soon as its
+ * last borrower returns it.
+ *
+ * All state is guarded by a single lock, which is only ever held for bookkeeping and never across gateway calls.
+ */
+class GatewayAuthConnectionPool {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(GatewayAuthConnectionPool.class);
+
+    private static final LatencyHistogram BORROW_WAIT = AgentMetrics.latency("gateway_connection_borrow_wait_seconds", "Time spent waiting for a gateway admin connection to become available");
+    private static final LatencyHistogram HOLD_TIME = AgentMetrics.latency("gateway_connection_hold_seconds", "Time gateway admin connections are held for by exclusive borrowers");
+    private static final Counter BORROW_TIMEOUTS = AgentMetrics.counter("gateway_connection_borrow_timeouts_total", "Borrowers which gave up waiting for a gateway admin connection");
+    private static final String BORROWS_METRIC = "gateway_connection_borrows_total";
+    private static final String BORROWS_HELP = "Gateway admin connections handed out, by mode";
+    private static final Counter EXCLUSIVE_BORROWS = AgentMetrics.counter(BORROWS_METRIC, BORROWS_HELP, "mode", "exclusive");
+    private static final Counter SHARED_BORROWS = AgentMetrics.counter(BORROWS_METRIC, BORROWS_HELP, "mode", "shared");
+
+    enum State { DORMANT, CONNECTING, AVAILABLE, DISCONNECTING, UNHEALTHY }
+
+    /**
+     * The maintenance claimed by the refresher for a slot.
+     */
+    enum Maintenance { NONE, CONNECT, DISCONNECT }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    private final Condition returned = lock.newCondition();
+
+    private final Map<String, Slot> slots = new LinkedHashMap<>();
+    // Idle, available slots, most recently used first
+    private final ArrayDeque<Slot> idle = new ArrayDeque<>();
+
+    private final int minSize;
+    private final long borrowTimeoutNanos;
+    private final long idleTimeoutMs;
+
+    private Consumer<Slot> connector;
+    private Consumer<GatewayAuthConnection> retirer;
+    private int waiters;
+    private int connecting;
+    private boolean isClosed;
+
+    /**
+     * @param credentials     the credentials to pool connections for, one slot each
+     * @param minSize         the number of slots kept logged in at all times
+     * @param borrowTimeoutMs the maximum time a borrower waits for a connection
+     * @param idleTimeoutMs   the time after which idle slots beyond the minimum are logged out
+     */
+    GatewayAuthConnectionPool(final List<AuthCredentials> credentials, final int minSize, final long borrowTimeoutMs, final long idleTimeoutMs) {
+        for (AuthCredentials credential : credentials) {
+            slots.put(credential.username(), new Slot(credential));
+        }
+        this.minSize = Math.min(Math.max(minSize, 1), credentials.size());
+        this.borrowTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(borrowTimeoutMs);
+        this.idleTimeoutMs = idleTimeoutMs;
+    }
+
+    /**
+     * @param connector asynchronously connects slots claimed on demand, reporting back via {@link #onConnected} or
+     *                  {@link #onConnectFailed}
+     */
+    void setConnector(final Consumer<Slot> connector) {
+        this.connector = connector;
+    }
+
+    /**
+     * @param retirer asynchronously logs out sessions which have been replaced, or which are no longer needed
+     */
+    void setRetirer(final Consumer<GatewayAuthConnection> retirer) {
+        this.retirer = retirer;
+    }
+
+    /**
+     * Borrows a connection exclusively, waiting up to the borrow timeout for one to become available.
+     *
+     * @throws IllegalStateException if no connection became available in time, or the pool has been closed
+     */
+    GatewayAuthConnection borrow() throws InterruptedException {
+        final long startNanos = System.nanoTime();
+        lock.lockInterruptibly();
+        try {
+            waiters++;
+            try {
+                long remainingNanos = borrowTimeoutNanos;
+                Slot slot;
+                while (isClosed || (slot = idle.pollFirst()) == null) {
+                    remainingNanos = awaitAvailable(remainingNanos);
+                }
+
+                slot.isBorrowed = true;
+                slot.borrowedAtNanos = System.nanoTime();
+                EXCLUSIVE_BORROWS.increment();
+                return slot.session;
+            } finally {
+                waiters--;
+            }
+        } finally {
+            lock.unlock();
+            BORROW_WAIT.recordSince(startNanos);
+        }
+    }
+
+    /**
+     * Returns an exclusively borrowed connection to the pool.
+     */
+    void giveBack(final GatewayAuthConnection connection) {
+        lock.lock();
+        try {
+            final Slot slot = slots.get(connection.username());
+            if (slot == null || !slot.isBorrowed) {
+                LOGGER.warn("Ignoring return of a connection which is not borrowed. [Username: {}]", connection.username());
+                return;
+            }
+
+            slot.isBorrowed = false;
+            slot.lastUsedMs = System.currentTimeMillis();
+            HOLD_TIME.recordSince(slot.borrowedAtNanos);
+            if (!connection.equals(slot.session)) {
+                // The session was swapped while borrowed
+                releaseRetired(slot, connection);
+            }
+            returned.signalAll();
+            if (slot.state == State.AVAILABLE && !isClosed) {
+                idle.addFirst(slot);
+                // Shared and exclusive borrowers wait on the same condition, and a single slot may satisfy several of
+                // them, so all are woken rather than risking the signal going to a borrower which leaves it unused
+                available.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Borrows a logged in session for read only calls, without taking it out of circulation. Sessions already shared
+     * are preferred, followed by idle ones, and lastly ones borrowed exclusively.
+     *
+     * @throws IllegalStateException if no session became available in time, or the pool has been closed
+     */
+    GatewayAuthConnection borrowShared() throws InterruptedException {
+        final long startNanos = System.nanoTime();
+        lock.lockInterruptibly();
+        try {
+            waiters++;
+            try {
+                long remainingNanos = borrowTimeoutNanos;
+                Slot slot;
+                while (isClosed || (slot = sharedCandidate()) == null) {
+                    remainingNanos = awaitAvailable(remainingNanos);
+                }
+
+                slot.sharedUsers++;
+                slot.lastUsedMs = System.currentTimeMillis();
+                SHARED_BORROWS.increment();
+                return slot.session;
+            } finally {
+                waiters--;
+            }
+        } finally {
+            lock.unlock();
+            BORROW_WAIT.recordSince(startNanos);
+        }
+    }
+
+    /**
+     * Returns a shared session to the pool.
+     */
+    void giveBackShared(final GatewayAuthConnection connection) {
+        lock.lock();
+        try {
+            final Slot slot = slots.get(connection.username());
+            if (slot == null) {
+                LOGGER.warn("Ignoring return of a session which is not shared. [Username: {}]", connection.username());
+                return;
+            }
+
+            if (connection.equals(slot.session) && slot.sharedUsers > 0) {
+                slot.sharedUsers--;
+            } else {
+                releaseRetired(slot, connection);
+            }
+            slot.lastUsedMs = System.currentTimeMillis();
+            returned.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void releaseRetired(final Slot slot, final GatewayAuthConnection connection) {
+        final Integer users = slot.retired.get(connection);
+        if (users == null) {
+            LOGGER.warn("Ignoring return of an unknown session. [Username: {}]", connection.username());
+            return;
+        }
+        if (users == 1) {
+            slot.retired.remove(connection);
+            retire(connection);
+        } else {
+            slot.retired.put(connection, users - 1);
+        }
+    }
+
+    private void retire(final GatewayAuthConnection session) {
+        if (retirer != null && !session.isNew()) {
+            retirer.accept(session);
+        }
+    }
+
+    private Slot sharedCandidate() {
+        Slot borrowed = null;
+        for (Slot slot : slots.values()) {
+            if (slot.state == State.AVAILABLE) {
+                if (slot.sharedUsers > 0) {
+                    return slot;
+                }
+                if (slot.isBorrowed && borrowed == null) {
+                    borrowed = slot;
+                }
+            }
+        }
+        return (idle.peekFirst() != null) ? idle.peekFirst() : borrowed;
+    }
+
+    /**
+     * Waits for a slot to become available, connecting a dormant slot should there be more waiters than slots being
+     * connected.
+     *
+     * @return the remaining wait
+     */
+    private long awaitAvailable(final long remainingNanos) throws InterruptedException {
+        if (isClosed) {
+            throw new IllegalStateException("Gateway admin connection pool has been closed.");
+        }
+        if (remainingNanos <= 0L) {
+            BORROW_TIMEOUTS.increment();
+            throw new IllegalStateException(String.format("Timed out waiting for a gateway admin connection. [Timeout: %sms, Connections: %s, Waiters: %s]",
+                    TimeUnit.NANOSECONDS.toMillis(borrowTimeoutNanos), connected(), waiters));
+        }
+
+        if (connecting < waiters && connector != null) {
+            for (Slot slot : slots.values()) {
+                if (slot.state == State.DORMANT) {
+                    LOGGER.debug("Connecting dormant connection on demand. [Username: {}, Waiters: {}]", slot.credentials.username(), waiters);
+                    slot.state = State.CONNECTING;
+                    connecting++;
+                    connector.accept(slot);
+                    break;
+                }
+            }
+        }
+        return available.awaitNanos(remainingNanos);
+    }
+
+    /**
+     * Claims the maintenance due for the slot, if any. A claimed slot is taken out of circulation until the refresher
+     * reports back, with the exception of slots being connected.
+     */
+    Maintenance claimMaintenance(final Slot slot) {
+        lock.lock();
+        try {
+            if (isClosed) {
+                return Maintenance.NONE;
+            }
+
+            switch (slot.state) {
+                case UNHEALTHY:
+                    slot.state = State.CONNECTING;
+                    connecting++;
+                    return Maintenance.CONNECT;
+                case DORMANT:
+                    if (connected() + connecting < minSize) {
+                        slot.state = State.CONNECTING;
+                        connecting++;
+                        return Maintenance.CONNECT;
+                    }
+                    return Maintenance.NONE;
+                case AVAILABLE:
+                    // Only idle slots are maintained, any others are left to the next run
+                    if (slot.isBorrowed || slot.sharedUsers > 0 || slot.renewal != null || !slot.retired.isEmpty()) {
+                        return Maintenance.NONE;
+                    }
+                    if ((System.currentTimeMillis() - slot.lastUsedMs) > idleTimeoutMs && connected() > minSize) {
+                        idle.remove(slot);
+                        slot.state = State.DISCONNECTING;
+                        return Maintenance.DISCONNECT;
+                    }
+                    return Maintenance.NONE;
+                default:
+                    return Maintenance.NONE;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Puts a connected slot into circulation with its new session.
+     */
+    void onConnected(final Slot slot, final GatewayAuthConnection session) {
+        lock.lock();
+        try {
+            connecting--;
+            slot.session = session;
+            slot.consecutiveFailures = 0;
+            slot.lastUsedMs = System.currentTimeMillis();
+            slot.state = State.AVAILABLE;
+            idle.addFirst(slot);
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the slot for the given username, or null if the username is not pooled
+     */
+    Slot slot(final String username) {
+        lock.lock();
+        try {
+            return slots.get(username);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Claims the renewal of the slot's given session, i.e. the login of its replacement. The slot remains in
+     * circulation throughout. Should the slot not have been reconnected or disconnected in the meantime, the renewal is
+     * claimed by the caller, who must then report back via {@link #swap} or {@link #onRenewalFailed}.
+     *
+     * @return null if the renewal was claimed by the caller. Otherwise, the renewal already in flight for the slot, a
+     *         completed future holding the slot's current session should the given session have been replaced already,
+     *         or a failed future should the slot no longer be logged in.
+     */
+    CompletableFuture<GatewayAuthConnection> claimRenewal(final Slot slot, final GatewayAuthConnection session) {
+        lock.lock();
+        try {
+            if (isClosed || slot.state != State.AVAILABLE) {
+                return CompletableFuture.failedFuture(new IllegalStateException(String.format("Gateway admin connection is no longer logged in. [Username: %s]", slot.credentials.username())));
+            }
+            if (slot.renewal != null) {
+                return slot.renewal;
+            }
+            if (!session.equals(slot.session)) {
+                return CompletableFuture.completedFuture(slot.session);
+            }
+            slot.renewal = new CompletableFuture<>();
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Atomically swaps the slot's session for its freshly logged in replacement, completing the slot's renewal. The
+     * replaced session is retired straight away if unused, or otherwise once returned by its last borrower.
+     *
+     * @return whether the replacement was swapped in. If not, the slot was disconnected in the meantime, and the
+     *         replacement is retired instead.
+     */
+    boolean swap(final Slot slot, final GatewayAuthConnection replacement) {
+        final CompletableFuture<GatewayAuthConnection> renewal;
+        final boolean isSwapped;
+        lock.lock();
+        try {
+            renewal = slot.renewal;
+            slot.renewal = null;
+            isSwapped = !isClosed && slot.state == State.AVAILABLE;
+            if (!isSwapped) {
+                retire(replacement);
+            } else {
+                final GatewayAuthConnection replaced = slot.session;
+                final int users = slot.sharedUsers + (slot.isBorrowed ? 1 : 0);
+                slot.session = replacement;
+                slot.consecutiveFailures = 0;
+                slot.sharedUsers = 0;
+                if (users == 0) {
+                    retire(replaced);
+                } else {
+                    slot.retired.merge(replaced, users, Integer::sum);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        // Completed outside of the lock, so that no joiner ever runs while holding it
+        if (renewal != null) {
+            if (isSwapped) {
+                renewal.complete(replacement);
+            } else {
+                renewal.completeExceptionally(new IllegalStateException(String.format("Gateway admin connection was logged out while being renewed. [Username: %s]", slot.credentials.username())));
+            }
+        }
+        return isSwapped;
+    }
+
+    /**
+     * Releases a slot whose replacement session failed to log in, leaving its current session in circulation and
+     * failing its renewal with the provided cause.
+     */
+    void onRenewalFailed(final Slot slot, final Exception cause) {
+        final CompletableFuture<GatewayAuthConnection> renewal;
+        lock.lock();
+        try {
+            renewal = slot.renewal;
+            slot.renewal = null;
+            slot.consecutiveFailures++;
+        } finally {
+            lock.unlock();
+        }
+
+        if (renewal != null) {
+            renewal.completeExceptionally(cause);
+        }
+    }
+
+    /**
+     * Marks a slot which failed to connect as unhealthy, leaving it out of circulation until retried by the refresher.
+     */
+    void onConnectFailed(final Slot slot) {
+        lock.lock();
+        try {
+            connecting--;
+            slot.reset();
+            slot.consecutiveFailures++;
+            slot.state = State.UNHEALTHY;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Marks a disconnected slot as dormant.
+     */
+    void onDisconnected(final Slot slot) {
+        lock.lock();
+        try {
+            slot.reset();
+            slot.state = State.DORMANT;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes the pool, failing any waiting borrowers. Waits up to the borrow timeout for borrowed connections to be
+     * returned.
+     *
+     * @return the sessions which were logged in, to be logged out
+     */
+    List<GatewayAuthConnection> close() throws InterruptedException {
+        lock.lock();
+        try {
+            isClosed = true;
+            available.signalAll();
+
+            long remainingNanos = borrowTimeoutNanos;
+            while (slots.values().stream().anyMatch(slot -> slot.isBorrowed || slot.sharedUsers > 0 || !slot.retired.isEmpty()) && remainingNanos > 0L) {
+                remainingNanos = returned.awaitNanos(remainingNanos);
+            }
+
+            final List<GatewayAuthConnection> sessions = new ArrayList<>();
+            for (Slot slot : slots.values()) {
+                if (!slot.session.isNew()) {
+                    sessions.add(slot.session);
+                }
+                sessions.addAll(slot.retired.keySet());
+                slot.retired.clear();
+                slot.reset();
+                slot.state = State.DORMANT;
+            }
+            idle.clear();
+            return sessions;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    List<Slot> slots() {
+        lock.lock();
+        try {
+            return new ArrayList<>(slots.values());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of logged in slots, whether idle or in use
+     */
+    int connected() {
+        return count(slot -> slot.state == State.AVAILABLE);
+    }
+
+    int idle() {
+        lock.lock();
+        try {
+            return idle.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of logged in slots currently in use, whether exclusively or shared
+     */
+    int busy() {
+        return count(slot -> slot.state == State.AVAILABLE && (slot.isBorrowed || slot.sharedUsers > 0 || !slot.retired.isEmpty()));
+    }
+
+    int unhealthy() {
+        return count(slot -> slot.state == State.UNHEALTHY);
+    }
+
+    private int count(final Predicate<Slot> predicate) {
+        lock.lock();
+        try {
+            int count = 0;
+            for (Slot slot : slots.values()) {
+                if (predicate.test(slot)) {
+                    count++;
+                }
+            }
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return a description of every slot, excluding its credentials' password
+     */
+    List<String> describe() {
+        lock.lock();
+        try {
+            final List<String> descriptions = new ArrayList<>();
+            for (Slot slot : slots.values()) {
+                descriptions.add(String.format("[Username: %s, State: %s, Borrowed: %s, Shared users: %s, Renewing: %s, Retiring: %s, Consecutive failures: %s, Authenticated at: %s]",
+                        slot.credentials.username(), slot.state, slot.isBorrowed, slot.sharedUsers, slot.renewal != null, slot.retired.size(), slot.consecutiveFailures,
+                        slot.session.isNew() ? null : slot.session.lastAuthenticatedTime()));
+            }
+            return descriptions;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A single credential's slot within the pool. Guarded by the pool's lock, with the exception of the credentials.
+     */
+    static final class Slot {
+
+        private final AuthCredentials credentials;
+
+        // Never null, logged out unless available
+        private GatewayAuthConnection session;
+        private State state = State.DORMANT;
+        // The renewal in flight for the session, if any
+        private CompletableFuture<GatewayAuthConnection> renewal;
+        // Sessions swapped out while still in use, along with their remaining users
+        private final Map<GatewayAuthConnection, Integer> retired = new HashMap<>();
+        private boolean isBorrowed;
+        private long borrowedAtNanos;
+        private int sharedUsers;
+        private int consecutiveFailures;
+        private long lastUsedMs;
+
+        private Slot(final AuthCredentials credentials) {
+            this.credentials = credentials;
+            reset();
+        }
+
+        /**
+         * Replaces the slot's session with a logged out one, from which a new session can be logged in.
+         */
+        private void reset() {
+            session = new GatewayAuthConnection(credentials.username(), credentials.password());
+        }
+
+        AuthCredentials credentials() {
+            return credentials;
+        }
+
+        /**
+         * @return the slot's session. Only safe to call while the slot is claimed by the refresher for connection or
+         *         disconnection.
+         */
+        GatewayAuthConnection session() {
+            return session;
+        }
+
+        int consecutiveFailures() {
+            return consecutiveFailures;
+        }
+
+    }
+
+}
@@ -1,6 +1,8 @@
 package com.orpheum.orchestrator.unifiAgent.auth;
 
-import com.orpheum.orchestrator.unifiAgent.auth.GatewayAuthConnectionManager.AuthCredentials;
+import com.orpheum.orchestrator.unifiAgent.auth.GatewayAuthConnectionPool.Slot;
+import com.orpheum.orchestrator.unifiAgent.metrics.AgentMetrics;
+import com.orpheum.orchestrator.unifiAgent.metrics.Counter;
 import com.orpheum.orchestrator.unifiAgent.model.GatewayAuthConnection;
 import com.orpheum.orchestrator.unifiAgent.support.ApplicationProperties;
 import com.orpheum.orchestrator.unifiAgent.support.UnifiGatewayClient;
@@ -8,31 +10,56 @@ import com.orpheum.orchestrator.unifiAgent.support.UnifiGatewayClient.UnifiGatew
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.io.IOException;
 import java.util.Random;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.stream.Collectors;
 
 /**
- * Periodically refreshes expired gateway authentication connections.
+ * Periodically maintains the gateway admin connection pool one connection at a time, i.e. (i) logs in connections
+ * needed to keep the pool at its minimum size, retrying any unhealthy ones, and (ii) logs out idle connections beyond
+ * the pool's minimum size. Every other connection remains in circulation throughout. Dormant connections needed by
+ * waiting borrowers are logged in on demand.
+ *
+ * Every logged in session additionally has its own refresh scheduled at a random point between the minimum and maximum
+ * session timeouts, so that sessions are never refreshed all at once. A refresh logs in a replacement session in the
+ * background, which is swapped in once ready, leaving the pool at its working size throughout. Should the replacement
+ * fail to log in, the current session remains in use and the refresh is retried on the refresher's delay.
+ *
+ * Sessions found to have expired by the gateway, e.g. having been invalidated ahead of their refresh, are renewed the
+ * same way on demand, see {@link #renew}. Any refresh or renewal already in flight for the same credential is joined
+ * rather than logging in again.
  */
 class GatewayAuthConnectionRefresherRunnable implements Runnable {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(GatewayAuthConnectionRefresherRunnable.class);
 
-    private static final Integer FAILURE_COUNT_LIMIT = 3;
+    private static final String RENEWALS_METRIC = "gateway_session_renewals_total";
+    private static final String RENEWALS_HELP = "Gateway admin sessions renewed, by trigger";
+    private static final Counter REFRESH_AHEAD_RENEWALS = AgentMetrics.counter(RENEWALS_METRIC, RENEWALS_HELP, "trigger", "refresh_ahead");
+    private static final Counter EXPIRED_RENEWALS = AgentMetrics.counter(RENEWALS_METRIC, RENEWALS_HELP, "trigger", "expired");
+    private static final Counter RENEWAL_FAILURES = AgentMetrics.counter("gateway_session_renewal_failures_total", "Gateway admin session renewals which failed to log in a replacement");
+    private static final Counter JOINED_RENEWALS = AgentMetrics.counter("gateway_session_renewals_joined_total", "Expired gateway admin sessions renewed by joining a renewal already in flight for the same credential");
 
     private final AtomicBoolean isRunning = new AtomicBoolean(false);
 
     private final Random random = new Random();
     private final Long gatewayMinAuthExpiry;
     private final Long gatewayMaxAuthExpiry;
+    private final Long retryDelayMs;
 
-    GatewayAuthConnectionRefresherRunnable() {
+    private final GatewayAuthConnectionPool pool;
+    private final ScheduledExecutorService service;
+
+    GatewayAuthConnectionRefresherRunnable(final GatewayAuthConnectionPool pool, final ScheduledExecutorService service) {
+        this.pool = pool;
+        this.service = service;
         gatewayMinAuthExpiry = ApplicationProperties.getLong("gateway_auth_connection_timeout_min_ms");
         gatewayMaxAuthExpiry = ApplicationProperties.getLong("gateway_auth_connection_timeout_max_ms");
+        retryDelayMs = ApplicationProperties.getLong("gateway_auth_connection_manager_delay_ms");
     }
 
     @Override
@@ -44,7 +71,9 @@ class GatewayAuthConnectionRefresherRunnable implements Runnable {
 
         try {
             isRunning.set(true);
-            refreshExpiredConnections();
+            for (Slot slot : pool.slots()) {
+                maintain(slot);
+            }
         } catch (Exception e) {
             LOGGER.error("Error encountered while refreshing connections. Skipping run.", e);
         } finally {
@@ -52,72 +81,151 @@ class GatewayAuthConnectionRefresherRunnable implements Runnable {
         }
     }
 
-    void initialiseConnections(List<AuthCredentials> authCredentials) {
-        executeSingleRun(
-            authCredentials.stream()
-                    .map(cred -> new GatewayAuthConnection(cred.username(), cred.password()))
-                    .collect(Collectors.toList()),
-            GatewayAuthConnectionManager.getConnectionPool()
-        );
+    private void maintain(final Slot slot) {
+        switch (pool.claimMaintenance(slot)) {
+            case CONNECT -> connect(slot);
+            case DISCONNECT -> disconnect(slot);
+            case NONE -> { }
+        }
+    }
+
+    /**
+     * Logs in a slot claimed for connection, putting it into circulation on success.
+     */
+    void connect(final Slot slot) {
+        try {
+            final GatewayAuthConnection session = login(slot.session());
+            pool.onConnected(slot, session);
+            scheduleRefresh(slot, session, getExpiryTimeout());
+
+            LOGGER.info("Successfully created connection for username {}", slot.credentials().username());
+        } catch (Exception e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            pool.onConnectFailed(slot);
+            LOGGER.warn("Error logging in connection. Will retry later. [Username: {}, Consecutive failures: {}]", slot.credentials().username(), slot.consecutiveFailures(), e);
+        }
+    }
+
+    /**
+     * Logs out a session which is no longer in use.
+     */
+    void retire(final GatewayAuthConnection session) {
+        service.execute(() -> logout(session));
+    }
+
+    private void scheduleRefresh(final Slot slot, final GatewayAuthConnection session, final long delayMs) {
+        service.schedule(() -> refresh(slot, session), delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void refresh(final Slot slot, final GatewayAuthConnection session) {
+        // The slot may have been disconnected, or reconnected with a different session, since the refresh was scheduled.
+        // Should a renewal already be in flight, the refresh is left to it.
+        if (pool.claimRenewal(slot, session) != null) {
+            return;
+        }
+
+        LOGGER.info("Refreshing connection ahead of expiry for username {}", slot.credentials().username());
+        final GatewayAuthConnection replacement;
+        try {
+            replacement = login(session);
+        } catch (Exception e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            RENEWAL_FAILURES.increment();
+            pool.onRenewalFailed(slot, e);
+            LOGGER.warn("Error refreshing connection. The current session remains in use, retrying in {}ms. [Username: {}]", retryDelayMs, slot.credentials().username(), e);
+            scheduleRefresh(slot, session, retryDelayMs);
+            return;
+        }
+
+        if (pool.swap(slot, replacement)) {
+            REFRESH_AHEAD_RENEWALS.increment();
+            scheduleRefresh(slot, replacement, getExpiryTimeout());
+            LOGGER.info("Successfully refreshed connection for username {}", slot.credentials().username());
+        }
     }
 
     /**
-     * Goes through the connection pool and refreshes any expired connections.
+     * Renews a session found to have expired by the gateway, on the calling thread. Concurrent renewals of the same
+     * session are coalesced into a single login, with the other callers waiting for its outcome. Should the session have
+     * been replaced in the meantime, its replacement is returned straight away.
+     *
+     * @return the slot's renewed session
+     * @throws IllegalStateException if the session's credential is no longer logged in, or its renewal failed
      */
-    private void refreshExpiredConnections() {
-        List<GatewayAuthConnection> connections = new ArrayList<>();
-        BlockingQueue<GatewayAuthConnection> connectionPool = GatewayAuthConnectionManager.getConnectionPool();
-        connectionPool.drainTo(connections);
+    GatewayAuthConnection renew(final GatewayAuthConnection expired) throws IOException, InterruptedException {
+        final Slot slot = pool.slot(expired.username());
+        if (slot == null) {
+            throw new IllegalStateException(String.format("Cannot renew a session which is not pooled. [Username: %s]", expired.username()));
+        }
 
-        executeSingleRun(connections, connectionPool);
+        final CompletableFuture<GatewayAuthConnection> ongoing = pool.claimRenewal(slot, expired);
+        if (ongoing != null) {
+            JOINED_RENEWALS.increment();
+            return await(ongoing);
+        }
+
+        LOGGER.info("Renewing expired connection for username {}", slot.credentials().username());
+        final GatewayAuthConnection replacement;
+        try {
+            replacement = login(expired);
+        } catch (Exception e) {
+            RENEWAL_FAILURES.increment();
+            pool.onRenewalFailed(slot, e);
+            throw e;
+        }
+
+        if (!pool.swap(slot, replacement)) {
+            throw new IllegalStateException(String.format("Gateway admin connection was logged out while being renewed. [Username: %s]", slot.credentials().username()));
+        }
+        EXPIRED_RENEWALS.increment();
+        scheduleRefresh(slot, replacement, getExpiryTimeout());
+        LOGGER.info("Successfully renewed expired connection for username {}", slot.credentials().username());
+        return replacement;
     }
 
-    private void executeSingleRun(final List<GatewayAuthConnection> connections, final BlockingQueue<GatewayAuthConnection> connectionPool) {
-        for (GatewayAuthConnection connection : connections) {
-            // An uninitialised connection will always be expired
-            if (connection.isExpired(getExpiryTimeout())) {
-                try {
-                    // We can't log out a session during initial creation
-                    if (!connection.isNew()) {
-                        LOGGER.info("Refreshing expired connection for username {}", connection.username());
-
-                        // Perform logout request
-                        try {
-                            UnifiGatewayClient.logout(connection);
-                        } catch (IllegalStateException e) {
-                            LOGGER.debug("Ignoring logout failure; it's possible that we can still log in again.", e);
-                        }
-                    }
-
-                    // Perform login request
-                    UnifiGatewayLoginResponse loginResponse = UnifiGatewayClient.login(connection);
-
-                    // Create a new connection with fresh details
-                    GatewayAuthConnection refreshedConnection = connection.refresh(loginResponse.cookie(), loginResponse.csrfToken());
-                    connectionPool.add(refreshedConnection);
-
-                    LOGGER.info("Successfully created/refreshed connection for username {}", connection.username());
-                } catch (Exception e) {
-                    // Return the original connection to the pool if an error occurred, incrementing the failure count
-
-                    if (connection.failureCount() < FAILURE_COUNT_LIMIT) {
-                        connectionPool.add(connection.failed(connection));
-                        LOGGER.warn("Error refreshing connection for connection {}. Incrementing failure count, will retry later.", connection, e);
-                    } else {
-                        LOGGER.error("Error refreshing connection for connection {}. Failure count limit exceeded, discarding connection.", connection, e);
-                    }
-                }
-            } else {
-                // Add non-expired connections back to the pool
-                connectionPool.add(connection);
+    private static GatewayAuthConnection await(final CompletableFuture<GatewayAuthConnection> renewal) throws IOException, InterruptedException {
+        try {
+            return renewal.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException cause) {
+                throw cause;
+            }
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw new IllegalStateException("Gateway admin session renewal failed.", e.getCause());
+        }
+    }
+
+    private void disconnect(final Slot slot) {
+        LOGGER.info("Logging out idle connection beyond the pool's minimum size. [Username: {}]", slot.credentials().username());
+        logout(slot.session());
+        pool.onDisconnected(slot);
+    }
+
+    private GatewayAuthConnection login(final GatewayAuthConnection session) throws IOException, InterruptedException {
+        UnifiGatewayLoginResponse loginResponse = UnifiGatewayClient.login(session);
+        return session.refresh(loginResponse.cookie(), loginResponse.csrfToken());
+    }
+
+    private void logout(final GatewayAuthConnection session) {
+        try {
+            UnifiGatewayClient.logout(session);
+        } catch (Exception e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
             }
+            LOGGER.debug("Ignoring logout failure; it's possible that we can still log in again.", e);
         }
     }
 
     private Long getExpiryTimeout() {
-        // A random element is added between a min and a max range to avoid making multiple calls at the same time.
-        // Given that login requests can take some time, this ensures that other connections are still available
-        // while an individual connection is being refreshed.
+        // A random element is added between a min and a max range to avoid making multiple calls at the same time,
+        // which would otherwise put a rush on the gateway to re-authenticate all sessions together.
         return gatewayMinAuthExpiry + random.nextLong(gatewayMaxAuthExpiry - gatewayMinAuthExpiry);
     }
 }
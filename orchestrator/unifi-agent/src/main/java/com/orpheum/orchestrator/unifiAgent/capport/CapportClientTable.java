@@ -0,0 +1,166 @@
+package com.orpheum.orchestrator.unifiAgent.capport;
+
+import java.util.Arrays;
+
+/**
+ * Per-client state of the captive portal state server, keyed by packed IPv4 address. For every client, the table keeps
+ *
+ * <ul>
+ *     <li>A token bucket, limiting the rate at which the client's probes are served;</li>
+ *     <li>A negative entry, recording that the client was recently not found within the authorised device cache. The
+ *     entry is only valid for as long as the cache has not changed since, as identified by the cache's version, and up
+ *     to a short TTL.</li>
+ * </ul>
+ *
+ * The table is bounded, and is made up of a fixed number of open addressing segments backed by primitive arrays, each
+ * guarded by its own lock. A client is only ever looked for within a short probe window from its hash. Should the window
+ * be full, the least recently seen client within it is replaced, so the table never grows nor needs resizing however
+ * many distinct clients probe the server.
+ */
+final class CapportClientTable {
+
+    enum Admission {
+        /** The client's state has to be resolved from the authorised device cache */
+        LOOKUP,
+        /** The client was recently not found within the unchanged authorised device cache */
+        KNOWN_UNAUTHORISED,
+        /** The client has exhausted its token bucket */
+        THROTTLED
+    }
+
+    private static final int SEGMENT_COUNT = 16;
+    private static final int PROBE_LIMIT = 8;
+    private static final long EMPTY = -1L;
+    // Tokens are tracked in millionths, allowing fractional refills without floating point arithmetic
+    private static final long TOKEN_SCALE = 1_000_000L;
+
+    private final Segment[] segments = new Segment[SEGMENT_COUNT];
+    private final long bucketCapacity;
+    private final long refillPerSecond;
+    private final long negativeTtlNanos;
+
+    /**
+     * @param capacity        the maximum number of clients tracked, rounded up to a power of two
+     * @param burst           the number of probes a client may make in a burst
+     * @param refillPerSecond the number of probes per second a client may sustain
+     * @param negativeTtlMs   the maximum time for which a negative entry is valid
+     */
+    CapportClientTable(final int capacity, final long burst, final long refillPerSecond, final long negativeTtlMs) {
+        final int segmentCapacity = Math.max(PROBE_LIMIT, Integer.highestOneBit(Math.max(1, capacity / SEGMENT_COUNT - 1)) << 1);
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            segments[i] = new Segment(segmentCapacity);
+        }
+        this.bucketCapacity = burst * TOKEN_SCALE;
+        this.refillPerSecond = refillPerSecond;
+        this.negativeTtlNanos = negativeTtlMs * 1_000_000L;
+    }
+
+    /**
+     * Admits a probe from the client, consuming a token from its bucket.
+     *
+     * @param ipKey        the client's packed IPv4 address
+     * @param cacheVersion the authorised device cache's current version
+     * @param nowNanos     the current {@link System#nanoTime()}
+     */
+    Admission admit(final long ipKey, final long cacheVersion, final long nowNanos) {
+        final int hash = hash(ipKey);
+        final Segment segment = segments[hash & (SEGMENT_COUNT - 1)];
+
+        synchronized (segment) {
+            final int slot = segment.slotFor(ipKey, hash >>> 4, nowNanos, bucketCapacity);
+
+            // Refill the bucket for the time elapsed since the last refill, capped to the bucket's capacity
+            final long elapsedNanos = Math.min(nowNanos - segment.lastRefillNanos[slot], 3_600_000_000_000L);
+            segment.tokens[slot] = Math.min(bucketCapacity, segment.tokens[slot] + ((elapsedNanos * refillPerSecond) / 1_000L));
+            segment.lastRefillNanos[slot] = nowNanos;
+
+            if (segment.tokens[slot] < TOKEN_SCALE) {
+                return Admission.THROTTLED;
+            }
+            segment.tokens[slot] -= TOKEN_SCALE;
+
+            if (segment.negativeVersion[slot] == cacheVersion && (nowNanos - segment.negativeSinceNanos[slot]) < negativeTtlNanos) {
+                return Admission.KNOWN_UNAUTHORISED;
+            }
+            return Admission.LOOKUP;
+        }
+    }
+
+    /**
+     * Records that the client was not found within the authorised device cache.
+     *
+     * @param ipKey        the client's packed IPv4 address
+     * @param cacheVersion the authorised device cache's version, as read before the client was looked up
+     * @param nowNanos     the current {@link System#nanoTime()}
+     */
+    void markUnauthorised(final long ipKey, final long cacheVersion, final long nowNanos) {
+        final int hash = hash(ipKey);
+        final Segment segment = segments[hash & (SEGMENT_COUNT - 1)];
+
+        synchronized (segment) {
+            final int slot = segment.slotFor(ipKey, hash >>> 4, nowNanos, bucketCapacity);
+            segment.negativeVersion[slot] = cacheVersion;
+            segment.negativeSinceNanos[slot] = nowNanos;
+        }
+    }
+
+    private static int hash(final long key) {
+        final long mixed = key * 0x9E3779B97F4A7C15L;
+        return (int) (mixed ^ (mixed >>> 32));
+    }
+
+    private static final class Segment {
+
+        private final int mask;
+        private final long[] keys;
+        private final long[] lastSeenNanos;
+        private final long[] tokens;
+        private final long[] lastRefillNanos;
+        private final long[] negativeVersion;
+        private final long[] negativeSinceNanos;
+
+        private Segment(final int capacity) {
+            this.mask = capacity - 1;
+            this.keys = new long[capacity];
+            this.lastSeenNanos = new long[capacity];
+            this.tokens = new long[capacity];
+            this.lastRefillNanos = new long[capacity];
+            this.negativeVersion = new long[capacity];
+            this.negativeSinceNanos = new long[capacity];
+            Arrays.fill(keys, EMPTY);
+        }
+
+        /**
+         * Resolves the client's slot, claiming a fresh one should the client not be tracked yet. Must be invoked while
+         * holding the segment's lock.
+         */
+        private int slotFor(final long key, final int hash, final long nowNanos, final long bucketCapacity) {
+            int victim = -1;
+            for (int i = 0; i < PROBE_LIMIT; i++) {
+                final int slot = (hash + i) & mask;
+                if (keys[slot] == key) {
+                    lastSeenNanos[slot] = nowNanos;
+                    return slot;
+                }
+                // Slots are never emptied once claimed, so an empty slot ends the client's probe window
+                if (keys[slot] == EMPTY) {
+                    victim = slot;
+                    break;
+                }
+                if (victim == -1 || (lastSeenNanos[slot] - lastSeenNanos[victim]) < 0) {
+                    victim = slot;
+                }
+            }
+
+            keys[victim] = key;
+            lastSeenNanos[victim] = nowNanos;
+            tokens[victim] = bucketCapacity;
+            lastRefillNanos[victim] = nowNanos;
+            negativeVersion[victim] = EMPTY;
+            negativeSinceNanos[victim] = 0L;
+            return victim;
+        }
+
+    }
+
+}
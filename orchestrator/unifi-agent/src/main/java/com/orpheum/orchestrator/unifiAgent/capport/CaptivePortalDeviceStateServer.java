@@ -1,18 +1,24 @@
 package com.orpheum.orchestrator.unifiAgent.capport;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.orpheum.orchestrator.unifiAgent.gateway.DeviceKeys;
 import com.orpheum.orchestrator.unifiAgent.gateway.GatewayAuthorisationService;
+import com.orpheum.orchestrator.unifiAgent.metrics.AgentMetrics;
+import com.orpheum.orchestrator.unifiAgent.metrics.Counter;
+import com.orpheum.orchestrator.unifiAgent.metrics.LatencyHistogram;
 import com.orpheum.orchestrator.unifiAgent.model.UnifiGatewayActiveDevice;
 import com.orpheum.orchestrator.unifiAgent.support.ApplicationProperties;
+import io.undertow.Handlers;
 import io.undertow.Undertow;
+import io.undertow.UndertowOptions;
 import io.undertow.server.HttpHandler;
 import io.undertow.server.HttpServerExchange;
 import io.undertow.util.Headers;
+import io.undertow.util.HttpString;
+import io.undertow.util.Methods;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.net.URLEncoder;
-import java.nio.charset.StandardCharsets;
 import java.util.Optional;
 import java.util.concurrent.ScheduledExecutorService;
 
@@ -21,6 +27,15 @@ import java.util.concurrent.ScheduledExecutorService;
  * single URL (/.well-known/captive-portal) which (i) resolves the requester's IP address, (ii) checks with its own
  * internal cache if this device is already authorised, and (iii) sends the device's captive portal state, as well as
  * the backstage captive portal URL in case the device needs to authorise its entry on the network.
+ *
+ * Responses are written via {@link CaptivePortalResponseWriter}, which pre-serialises the parts of the response which
+ * never change, given that devices probe this URL very frequently. Probes are additionally rate limited per client, and
+ * clients recently found to be unauthorised are answered without a cache lookup, see {@link CapportClientTable}.
+ * Throttled clients are still answered with their state, straight off the authorised device cache, since some OS
+ * connectivity checks treat an error response as a captive or missing network.
+ *
+ * The server additionally exposes the agent's metrics on /metrics in the Prometheus text format, see
+ * {@link AgentMetrics}. These are only served to requests originating from the gateway itself.
  */
 public class CaptivePortalDeviceStateServer {
 
@@ -32,6 +47,31 @@ public class CaptivePortalDeviceStateServer {
 
     private static final String SITE_IDENTIFIER = ApplicationProperties.getString("site_identifier");
 
+    private static final String CAPTIVE_PORTAL_PATH = "/.well-known/captive-portal";
+    private static final HttpString X_REAL_IP = new HttpString("X-Real-IP");
+
+    private static final CaptivePortalResponseWriter RESPONSE_WRITER = new CaptivePortalResponseWriter(OBJECT_MAPPER, BASE_PORTAL_URL, SITE_IDENTIFIER, VENUE_URL);
+
+    private static final CapportClientTable CLIENT_TABLE = new CapportClientTable(
+            ApplicationProperties.getInteger("capport_client_table_size"),
+            ApplicationProperties.getLong("capport_rate_limit_burst"),
+            ApplicationProperties.getLong("capport_rate_limit_per_second"),
+            ApplicationProperties.getLong("capport_negative_cache_ttl_ms")
+    );
+
+    private static final String REQUESTS_METRIC = "capport_requests_total";
+    private static final String REQUESTS_HELP = "Captive portal state requests, by how they were answered";
+    private static final Counter CACHE_HITS = AgentMetrics.counter(REQUESTS_METRIC, REQUESTS_HELP, "outcome", "cache_hit");
+    private static final Counter CACHE_MISSES = AgentMetrics.counter(REQUESTS_METRIC, REQUESTS_HELP, "outcome", "cache_miss");
+    private static final Counter NEGATIVE_CACHE_HITS = AgentMetrics.counter(REQUESTS_METRIC, REQUESTS_HELP, "outcome", "negative_cache_hit");
+    private static final Counter THROTTLED_REQUESTS = AgentMetrics.counter(REQUESTS_METRIC, REQUESTS_HELP, "outcome", "throttled");
+    private static final Counter FAILED_REQUESTS = AgentMetrics.counter(REQUESTS_METRIC, REQUESTS_HELP, "outcome", "error");
+    private static final LatencyHistogram REQUEST_LATENCY = AgentMetrics.latency("capport_request_duration_seconds", "Time taken to handle captive portal state requests, up to their response being queued for sending");
+
+    private static final String METRICS_PATH = "/metrics";
+    private static final String METRICS_CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    private static final boolean IS_METRICS_ENDPOINT_ENABLED = Boolean.parseBoolean(ApplicationProperties.getString("metrics_endpoint_enabled"));
+
     private static Undertow server;
 
     public static void start(ScheduledExecutorService service) {
@@ -39,13 +79,20 @@ public class CaptivePortalDeviceStateServer {
         Integer capportServerIoThreads = ApplicationProperties.getInteger("capport_server_io_threads");
         Integer capportServerWorkerThreads = ApplicationProperties.getInteger("capport_server_worker_threads");
 
-        LOGGER.info("Starting captive portal device state server. [Port {}, ioThreads: {}, workerThreads: {}]", capportServerPort, capportServerIoThreads, capportServerWorkerThreads);
+        Boolean isHttp2Enabled = Boolean.parseBoolean(ApplicationProperties.getString("capport_server_http2_enabled"));
+        Integer keepAliveTimeoutMs = ApplicationProperties.getInteger("capport_server_keep_alive_timeout_ms");
+
+        LOGGER.info("Starting captive portal device state server. [Port {}, ioThreads: {}, workerThreads: {}, HTTP/2 enabled: {}, Keep alive timeout: {}ms]", capportServerPort, capportServerIoThreads, capportServerWorkerThreads, isHttp2Enabled, keepAliveTimeoutMs);
 
         server = Undertow.builder()
                 .addHttpListener(capportServerPort, "0.0.0.0")
                 .setHandler(getHttpHandler())
                 .setWorkerThreads(capportServerWorkerThreads)
                 .setIoThreads(capportServerIoThreads)
+                // Devices probe repeatedly, so connections are kept alive rather than re-established on every probe
+                .setServerOption(UndertowOptions.ALWAYS_SET_KEEP_ALIVE, true)
+                .setServerOption(UndertowOptions.NO_REQUEST_TIMEOUT, keepAliveTimeoutMs)
+                .setServerOption(UndertowOptions.ENABLE_HTTP2, isHttp2Enabled)
                 .build();
 
         server.start();
@@ -53,64 +100,124 @@ public class CaptivePortalDeviceStateServer {
         LOGGER.info("Capport server started!");
     }
 
+    /**
+     * The handler chain is fully non-blocking, i.e. it never dispatches to a worker thread. Every request is answered
+     * on the IO thread which read it, since resolving a device's state is purely an in-memory cache lookup.
+     */
     private static HttpHandler getHttpHandler() {
-        return exchange -> {
-            if (exchange.getRequestPath().equals("/.well-known/captive-portal") && exchange.getRequestMethod().toString().equals("GET")) {
-                captivePortal(exchange);
-            } else {
-                exchange.setStatusCode(404);
-                exchange.getResponseSender().send("Not Found");
-            }
-        };
+        return Handlers.path(CaptivePortalDeviceStateServer::notFound)
+                .addExactPath(CAPTIVE_PORTAL_PATH, exchange -> {
+                    if (Methods.GET.equals(exchange.getRequestMethod())) {
+                        captivePortal(exchange);
+                    } else {
+                        notFound(exchange);
+                    }
+                })
+                .addExactPath(METRICS_PATH, exchange -> {
+                    if (IS_METRICS_ENDPOINT_ENABLED && Methods.GET.equals(exchange.getRequestMethod()) && isLocalRequest(exchange)) {
+                        metrics(exchange);
+                    } else {
+                        notFound(exchange);
+                    }
+                });
+    }
+
+    /**
+     * The server listens on all interfaces, so metrics are only served to requests originating from the gateway itself.
+     * Requests relayed by a local proxy on behalf of a remote client are rejected too.
+     */
+    private static boolean isLocalRequest(final HttpServerExchange exchange) {
+        return exchange.getSourceAddress().getAddress().isLoopbackAddress()
+                && !exchange.getRequestHeaders().contains(Headers.X_FORWARDED_FOR)
+                && !exchange.getRequestHeaders().contains(X_REAL_IP);
+    }
+
+    private static void metrics(final HttpServerExchange exchange) {
+        exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, METRICS_CONTENT_TYPE);
+        exchange.getResponseSender().send(AgentMetrics.render());
+    }
+
+    private static void notFound(final HttpServerExchange exchange) {
+        exchange.setStatusCode(404);
+        exchange.getResponseSender().send("Not Found");
     }
 
     public static void captivePortal(final HttpServerExchange exchange) {
+        final long startNanos = System.nanoTime();
         try {
             final String deviceIp = resolveIp(exchange);
             LOGGER.debug("Received Capport GET request for device with IP {}", deviceIp);
 
+            // Clients which are not identified by an IPv4 address are neither rate limited nor negatively cached
+            final long ipKey = DeviceKeys.ipKey(deviceIp);
+            // The version is read before the lookup, so that a device authorised concurrently is never negatively cached
+            final long cacheVersion = GatewayAuthorisationService.getAuthorisedDevicesVersion();
+
+            if (ipKey != DeviceKeys.INVALID_KEY) {
+                final CapportClientTable.Admission admission = CLIENT_TABLE.admit(ipKey, cacheVersion, startNanos);
+                if (admission == CapportClientTable.Admission.THROTTLED) {
+                    THROTTLED_REQUESTS.increment();
+                    // Answered without any further bookkeeping, so that an authorised device probing aggressively is
+                    // never reported as captive
+                    final boolean captive = GatewayAuthorisationService.resolveAuthorisedCachedDevice(deviceIp)
+                            .map(device -> !device.authorized())
+                            .orElse(true);
+                    RESPONSE_WRITER.write(exchange, captive, deviceIp, System.currentTimeMillis());
+                    return;
+                }
+                if (admission == CapportClientTable.Admission.KNOWN_UNAUTHORISED) {
+                    NEGATIVE_CACHE_HITS.increment();
+                    RESPONSE_WRITER.write(exchange, true, deviceIp, System.currentTimeMillis());
+                    return;
+                }
+            }
+
             Optional<UnifiGatewayActiveDevice> resolvedDevice = GatewayAuthorisationService.resolveAuthorisedCachedDevice(deviceIp);
 
-            CaptivePortalResponse response;
+            final boolean captive;
             if (resolvedDevice.isPresent()) {
-                response = new CaptivePortalResponse(!resolvedDevice.get().authorized(), constructPortalUrl(deviceIp), VENUE_URL, false);
-                LOGGER.debug("Device resolved successfully. Sending response {}", response);
+                CACHE_HITS.increment();
+                captive = !resolvedDevice.get().authorized();
+                LOGGER.debug("Device resolved successfully. Sending response. [IP: {}, Captive: {}]", deviceIp, captive);
             } else {
-                response = new CaptivePortalResponse(true, constructPortalUrl(deviceIp), VENUE_URL, false);
-                LOGGER.debug("Unable to resolve device matching ip {}. Sending response {}.", deviceIp, response);
+                CACHE_MISSES.increment();
+                captive = true;
+                if (ipKey != DeviceKeys.INVALID_KEY) {
+                    CLIENT_TABLE.markUnauthorised(ipKey, cacheVersion, startNanos);
+                }
+                LOGGER.debug("Unable to resolve device matching ip {}. Sending captive response.", deviceIp);
             }
 
-            exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "application/json");
-            exchange.getResponseSender().send(OBJECT_MAPPER.writeValueAsString(response));
+            RESPONSE_WRITER.write(exchange, captive, deviceIp, System.currentTimeMillis());
         } catch (Exception e) {
+            FAILED_REQUESTS.increment();
             LOGGER.error("Unexpected exception triggered while attempting to process capport GET request.", e);
             exchange.setStatusCode(500);
             exchange.getResponseSender().send("Something went wrong");
+        } finally {
+            REQUEST_LATENCY.recordSince(startNanos);
         }
     }
 
     private static String resolveIp(HttpServerExchange exchange) {
-        String xForwardedForIp = Optional.ofNullable(exchange.getRequestHeaders().getFirst("X-Forwarded-For")).orElse("");
+        String xForwardedForIp = exchange.getRequestHeaders().getFirst(Headers.X_FORWARDED_FOR);
 
-        if (xForwardedForIp.startsWith("192.168")) {
+        if (xForwardedForIp != null && xForwardedForIp.startsWith("192.168")) {
             return xForwardedForIp;
         }
 
-        String xRealIp = Optional.ofNullable(exchange.getRequestHeaders().getFirst("X-Real-IP")).orElse("");
+        String xRealIp = exchange.getRequestHeaders().getFirst(X_REAL_IP);
 
-        if (xRealIp.startsWith("192.168")) {
+        if (xRealIp != null && xRealIp.startsWith("192.168")) {
             return xRealIp;
         }
 
         return exchange.getSourceAddress().getAddress().getHostAddress();
     }
 
-    private static String constructPortalUrl(String ip) {
-        return BASE_PORTAL_URL + "?ip=" + urlEncode(ip) + "&ssid=" + urlEncode(SITE_IDENTIFIER) + "&t=" + System.currentTimeMillis();
-    }
-
-    private static String urlEncode(final String str) {
-        return URLEncoder.encode(str, StandardCharsets.UTF_8);
+    public static String getStatsView() {
+        return String.format("[Cache hits: %s, Cache misses: %s, Negative cache hits: %s, Throttled: %s, Errors: %s]",
+                CACHE_HITS.sum(), CACHE_MISSES.sum(), NEGATIVE_CACHE_HITS.sum(), THROTTLED_REQUESTS.sum(), FAILED_REQUESTS.sum());
     }
 
     public static void shutdown() {
@@ -119,6 +226,4 @@ public class CaptivePortalDeviceStateServer {
             LOGGER.info("Capport server stopped");
         }
     }
-
-    private record CaptivePortalResponse(boolean captive, String user_portal_url, String venue_info_url, boolean can_extend_session) { }
 }
\ No newline at end of file
@@ -0,0 +1,139 @@
+package com.orpheum.orchestrator.unifiAgent.capport;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.undertow.connector.PooledByteBuffer;
+import io.undertow.io.IoCallback;
+import io.undertow.io.Sender;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.Headers;
+
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes captive portal state API responses. Since only the device's IP and the portal URL's timestamp vary between
+ * responses, the remaining parts of the JSON body are serialised and encoded once on construction. Each response is then
+ * assembled directly into a buffer from the connection's pool and sent asynchronously, with the buffer being returned to
+ * the pool once the send completes.
+ *
+ * The body matches the one previously serialised from the response record, i.e.
+ * {"captive":...,"user_portal_url":"...?ip=...&ssid=...&t=...","venue_info_url":"...","can_extend_session":false}
+ */
+final class CaptivePortalResponseWriter {
+
+    private static final String CONTENT_TYPE = "application/json";
+
+    // Large enough to hold the decimal digits of any non-negative long
+    private static final int MAX_TIMESTAMP_LENGTH = 19;
+
+    private final byte[] captivePrefix;
+    private final byte[] notCaptivePrefix;
+    private final byte[] ssidPart;
+    private final byte[] suffix;
+
+    CaptivePortalResponseWriter(final ObjectMapper objectMapper, final String basePortalUrl, final String siteIdentifier, final String venueUrl) {
+        try {
+            final String portalUrlPrefix = jsonStringContent(objectMapper, basePortalUrl + "?ip=");
+
+            this.captivePrefix = ("{\"captive\":true,\"user_portal_url\":\"" + portalUrlPrefix).getBytes(StandardCharsets.UTF_8);
+            this.notCaptivePrefix = ("{\"captive\":false,\"user_portal_url\":\"" + portalUrlPrefix).getBytes(StandardCharsets.UTF_8);
+            this.ssidPart = jsonStringContent(objectMapper, "&ssid=" + urlEncode(siteIdentifier) + "&t=").getBytes(StandardCharsets.UTF_8);
+            this.suffix = ("\",\"venue_info_url\":" + objectMapper.writeValueAsString(venueUrl) + ",\"can_extend_session\":false}").getBytes(StandardCharsets.UTF_8);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Unable to pre-serialise captive portal response.", e);
+        }
+    }
+
+    void write(final HttpServerExchange exchange, final boolean captive, final String ip, final long timestamp) {
+        final byte[] prefix = captive ? captivePrefix : notCaptivePrefix;
+        // IPv4 addresses are URL and JSON safe as is, whereas anything else (e.g. IPv6) is URL encoded
+        final byte[] encodedIp = isUrlSafe(ip) ? null : urlEncode(ip).getBytes(StandardCharsets.UTF_8);
+        final int ipLength = (encodedIp != null) ? encodedIp.length : ip.length();
+        final int maxLength = prefix.length + ipLength + ssidPart.length + MAX_TIMESTAMP_LENGTH + suffix.length;
+
+        exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, CONTENT_TYPE);
+
+        final PooledByteBuffer pooled = exchange.getConnection().getByteBufferPool().allocate();
+        final ByteBuffer buffer = pooled.getBuffer();
+        if (buffer.remaining() < maxLength) {
+            // Not expected with sensibly sized pool buffers, but never truncate a response
+            pooled.close();
+            final ByteBuffer heapBuffer = ByteBuffer.allocate(maxLength);
+            fill(heapBuffer, prefix, ip, encodedIp, timestamp);
+            exchange.getResponseSender().send(heapBuffer);
+            return;
+        }
+
+        fill(buffer, prefix, ip, encodedIp, timestamp);
+        exchange.getResponseHeaders().put(Headers.CONTENT_LENGTH, buffer.remaining());
+        exchange.getResponseSender().send(buffer, new ReleasingCallback(pooled));
+    }
+
+    private void fill(final ByteBuffer buffer, final byte[] prefix, final String ip, final byte[] encodedIp, final long timestamp) {
+        buffer.put(prefix);
+        if (encodedIp != null) {
+            buffer.put(encodedIp);
+        } else {
+            for (int i = 0; i < ip.length(); i++) {
+                buffer.put((byte) ip.charAt(i));
+            }
+        }
+        buffer.put(ssidPart);
+        putDecimal(buffer, timestamp);
+        buffer.put(suffix);
+        buffer.flip();
+    }
+
+    private static void putDecimal(final ByteBuffer buffer, final long value) {
+        long divisor = 1L;
+        while (value / divisor >= 10L) {
+            divisor *= 10L;
+        }
+        for (; divisor > 0L; divisor /= 10L) {
+            buffer.put((byte) ('0' + ((value / divisor) % 10L)));
+        }
+    }
+
+    private static boolean isUrlSafe(final String ip) {
+        for (int i = 0; i < ip.length(); i++) {
+            final char c = ip.charAt(i);
+            if ((c < '0' || c > '9') && c != '.') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String jsonStringContent(final ObjectMapper objectMapper, final String value) throws JsonProcessingException {
+        final String json = objectMapper.writeValueAsString(value);
+        // Strip the enclosing quotes, leaving the escaped string content
+        return json.substring(1, json.length() - 1);
+    }
+
+    private static String urlEncode(final String str) {
+        return URLEncoder.encode(str, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the pooled buffer once the response has been sent, ending the exchange as per the default callback.
+     */
+    private record ReleasingCallback(PooledByteBuffer pooled) implements IoCallback {
+
+        @Override
+        public void onComplete(final HttpServerExchange exchange, final Sender sender) {
+            pooled.close();
+            IoCallback.END_EXCHANGE.onComplete(exchange, sender);
+        }
+
+        @Override
+        public void onException(final HttpServerExchange exchange, final Sender sender, final IOException exception) {
+            pooled.close();
+            IoCallback.END_EXCHANGE.onException(exchange, sender, exception);
+        }
+
+    }
+
+}
@@ -0,0 +1,130 @@
+package com.orpheum.orchestrator.unifiAgent.gateway;
+
+import com.orpheum.orchestrator.unifiAgent.model.UnifiGatewayActiveDevice;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * A compact binary snapshot of the authorised device store, persisted to local disk so that a restarted agent can
+ * answer captive portal state requests from its cache straight away, rather than only after its first gateway sync.
+ *
+ * The snapshot is laid out as a header (magic number, format version and entry count), followed by the entries and a
+ * trailing CRC32 checksum over everything before it. Snapshots are written to a temporary file which is then atomically
+ * moved into place, so a crash mid-write never leaves a partial snapshot behind. A snapshot failing any of the header or
+ * checksum checks is rejected as a whole.
+ */
+final class AuthorisedDeviceSnapshot {
+
+    private static final int MAGIC = 0x4F415344; // OASD
+    private static final byte FORMAT_VERSION = 1;
+
+    private AuthorisedDeviceSnapshot() {
+    }
+
+    static void write(final Path path, final List<Entry> entries) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + (entries.size() * 96));
+        final DataOutputStream output = new DataOutputStream(bytes);
+
+        output.writeInt(MAGIC);
+        output.writeByte(FORMAT_VERSION);
+        output.writeInt(entries.size());
+        for (Entry entry : entries) {
+            final UnifiGatewayActiveDevice device = entry.device();
+            writeNullableString(output, device.id());
+            writeNullableString(output, device.ap_mac());
+            writeNullableString(output, device.ip());
+            writeNullableString(output, device.fixed_ip());
+            writeNullableString(output, device.essid());
+            output.writeBoolean(device.authorized());
+            output.writeLong(entry.sessionEndMs());
+        }
+
+        final CRC32 checksum = new CRC32();
+        checksum.update(bytes.toByteArray());
+        output.writeLong(checksum.getValue());
+        output.flush();
+
+        final Path temporaryPath = path.resolveSibling(path.getFileName() + ".tmp");
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        // The snapshot is forced to disk before being moved into place, so that a crash never leaves a renamed but empty file
+        try (FileChannel channel = FileChannel.open(temporaryPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    static List<Entry> read(final Path path) throws IOException {
+        final byte[] bytes = Files.readAllBytes(path);
+        if (bytes.length < Long.BYTES) {
+            throw new IOException(String.format("Authorised device snapshot is truncated. [Path: %s, Size: %s]", path, bytes.length));
+        }
+
+        final CRC32 checksum = new CRC32();
+        checksum.update(bytes, 0, bytes.length - Long.BYTES);
+
+        final DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes));
+        if (input.readInt() != MAGIC) {
+            throw new IOException(String.format("Unrecognised authorised device snapshot. [Path: %s]", path));
+        }
+        final byte formatVersion = input.readByte();
+        if (formatVersion != FORMAT_VERSION) {
+            throw new IOException(String.format("Unsupported authorised device snapshot version. [Path: %s, Version: %s]", path, formatVersion));
+        }
+
+        final int count = input.readInt();
+        final List<Entry> entries = new ArrayList<>(Math.max(0, Math.min(count, 65536)));
+        for (int i = 0; i < count; i++) {
+            final UnifiGatewayActiveDevice device = new UnifiGatewayActiveDevice(
+                    readNullableString(input),
+                    readNullableString(input),
+                    readNullableString(input),
+                    readNullableString(input),
+                    readNullableString(input),
+                    input.readBoolean()
+            );
+            entries.add(new Entry(device, input.readLong()));
+        }
+
+        if (input.readLong() != checksum.getValue()) {
+            throw new IOException(String.format("Authorised device snapshot checksum mismatch. [Path: %s]", path));
+        }
+
+        return entries;
+    }
+
+    private static void writeNullableString(final DataOutputStream output, final String value) throws IOException {
+        output.writeBoolean(value != null);
+        if (value != null) {
+            output.writeUTF(value);
+        }
+    }
+
+    private static String readNullableString(final DataInputStream input) throws IOException {
+        return input.readBoolean() ? input.readUTF() : null;
+    }
+
+    /**
+     * A snapshotted device.
+     *
+     * @param device       the authorised device
+     * @param sessionEndMs the device's guest session end as epoch milliseconds, or -1 if unknown
+     */
+    record Entry(UnifiGatewayActiveDevice device, long sessionEndMs) { }
+
+}
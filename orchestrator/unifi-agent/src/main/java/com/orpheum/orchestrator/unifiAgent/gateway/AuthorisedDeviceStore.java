@@ -0,0 +1,348 @@
+package com.orpheum.orchestrator.unifiAgent.gateway;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.github.benmanes.caffeine.cache.Ticker;
+import com.orpheum.orchestrator.unifiAgent.metrics.AgentMetrics;
+import com.orpheum.orchestrator.unifiAgent.metrics.Counter;
+import com.orpheum.orchestrator.unifiAgent.model.UnifiGatewayActiveDevice;
+import com.orpheum.orchestrator.unifiAgent.support.ApplicationProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The agent's store of authorised devices, holding a single entry per device keyed by its MAC address. A secondary index
+ * maps both the device's IP and fixed IP onto the same entry, so the IP and MAC views can never drift apart and share a
+ * single expiry policy. Lookups by (MAC, AP MAC) resolve the device by MAC and then verify its access point.
+ *
+ * The secondary index is only ever updated while the primary entry is being computed, removed or evicted, so it always
+ * reflects the store's entries. Entries are stamped with the generation of the latest fetch which reported them, see
+ * {@link GatewayActiveDeviceCacheManager}.
+ *
+ * Each entry expires at the end of the device's guest session as reported by the gateway. Until the session end is
+ * known, e.g. for a device which has just been authorised, the entry expires after the configured default expiry. Every
+ * sync which still reports the device as authorised pushes its expiry forward, so that entries never lapse while the
+ * gateway considers the device authorised. Session ends which are not in the future are hence disregarded for devices
+ * the gateway still reports as authorised, falling back to the default expiry instead.
+ */
+class AuthorisedDeviceStore {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AuthorisedDeviceStore.class);
+
+    private static final Integer AUTHORIZED_DEVICE_CACHE_EXPIRY_MS = ApplicationProperties.getInteger("authorized_device_cache_expiry_ms");
+    private static final long UNKNOWN_SESSION_END = -1L;
+
+    private static final String LOOKUPS_METRIC = "authorised_device_cache_lookups_total";
+    private static final String LOOKUPS_HELP = "Authorised device cache lookups, by key and result";
+    private static final Counter IP_LOOKUP_HITS = AgentMetrics.counter(LOOKUPS_METRIC, LOOKUPS_HELP, "key", "ip", "result", "hit");
+    private static final Counter IP_LOOKUP_MISSES = AgentMetrics.counter(LOOKUPS_METRIC, LOOKUPS_HELP, "key", "ip", "result", "miss");
+
+    // Secondary index of the stored devices, keyed by both their IP and fixed IP
+    private final Map<Long, CachedDevice> devicesByIp = new ConcurrentHashMap<>();
+    // Bumped whenever the secondary index changes, allowing readers to detect that IP lookups may now resolve differently
+    private final AtomicLong version = new AtomicLong();
+
+    private final Cache<Long, CachedDevice> devicesByMac;
+
+    AuthorisedDeviceStore() {
+        this(Ticker.systemTicker());
+    }
+
+    /**
+     * @param ticker the time source of the entries' expiry
+     */
+    AuthorisedDeviceStore(final Ticker ticker) {
+        devicesByMac = Caffeine.newBuilder()
+                .expireAfter(Expiry.writing((Long macKey, CachedDevice entry) -> entry.remainingSession()))
+                // The eviction listener runs atomically with the eviction itself, keeping the secondary index consistent
+                .evictionListener((Long macKey, CachedDevice entry, RemovalCause cause) -> unindex(entry))
+                // Only lookups by MAC are recorded, since internal reads go through the policy's quiet lookups
+                .recordStats()
+                .ticker(ticker)
+                .build();
+
+        AgentMetrics.functionCounter(LOOKUPS_METRIC, LOOKUPS_HELP, () -> devicesByMac.stats().hitCount(), "key", "mac", "result", "hit");
+        AgentMetrics.functionCounter(LOOKUPS_METRIC, LOOKUPS_HELP, () -> devicesByMac.stats().missCount(), "key", "mac", "result", "miss");
+        AgentMetrics.functionCounter("authorised_device_cache_evictions_total", "Authorised devices evicted from the cache on expiry of their guest session", () -> devicesByMac.stats().evictionCount());
+        AgentMetrics.gauge("authorised_device_cache_size", "Authorised devices currently cached", devicesByMac::estimatedSize);
+    }
+
+    Optional<UnifiGatewayActiveDevice> getByIp(final String ip) {
+        final long ipKey = DeviceKeys.ipKey(ip);
+        if (ipKey == DeviceKeys.INVALID_KEY) {
+            IP_LOOKUP_MISSES.increment();
+            return Optional.empty();
+        }
+
+        final CachedDevice entry = devicesByIp.get(ipKey);
+        // Skip entries which have expired but have not been evicted yet
+        if (entry == null || devicesByMac.policy().getIfPresentQuietly(entry.macKey()) != entry) {
+            IP_LOOKUP_MISSES.increment();
+            return Optional.empty();
+        }
+        IP_LOOKUP_HITS.increment();
+        return Optional.of(entry.device());
+    }
+
+    Optional<UnifiGatewayActiveDevice> getByMacs(final String mac, final String apMac) {
+        final long macKey = DeviceKeys.macKey(mac);
+        final long apMacKey = DeviceKeys.macKey(apMac);
+        if (macKey == DeviceKeys.INVALID_KEY || apMacKey == DeviceKeys.INVALID_KEY) {
+            return Optional.empty();
+        }
+
+        final CachedDevice entry = devicesByMac.getIfPresent(macKey);
+        if (entry == null || entry.apMacKey() != apMacKey) {
+            return Optional.empty();
+        }
+        return Optional.of(entry.device());
+    }
+
+    /**
+     * Stores the device, or stamps its existing entry with the provided generation should the device be unchanged.
+     * Existing entries are stamped in place rather than re-written, leaving their expiry untouched.
+     */
+    void stamp(final UnifiGatewayActiveDevice device, final long generation) {
+        final long macKey = DeviceKeys.macKey(device.id());
+        if (macKey == DeviceKeys.INVALID_KEY) {
+            LOGGER.warn("Unable to store authorised device with invalid MAC address. [Device:{}]", device);
+            return;
+        }
+
+        final CachedDevice existing = devicesByMac.policy().getIfPresentQuietly(macKey);
+        if (existing != null && existing.device().equals(device)) {
+            existing.stamp(generation);
+            existing.forgetLapsedSessionEnd();
+            refreshExpiry(existing);
+            return;
+        }
+
+        devicesByMac.asMap().compute(macKey, (key, current) -> {
+            if (current != null && current.device().equals(device)) {
+                current.stamp(generation);
+                current.forgetLapsedSessionEnd();
+                return current;
+            }
+            if (current != null) {
+                unindex(current);
+            }
+
+            // A device which roamed or was re-addressed is still within the same guest session
+            final CachedDevice created = new CachedDevice(device, macKey, generation, (current != null) ? current.sessionEndMs() : UNKNOWN_SESSION_END);
+            created.forgetLapsedSessionEnd();
+            index(created);
+            LOGGER.debug("Added authorised device to cache. [Device:{}]", device);
+            return created;
+        });
+    }
+
+    /**
+     * Aligns the expiry of the stored devices with their guest session ends, as reported by the gateway. Session ends
+     * which are not in the future are ignored, since the stored devices are still reported as authorised by the gateway.
+     *
+     * @param sessionEnds the guest session ends as epoch milliseconds, keyed by MAC address
+     */
+    void updateSessionEnds(final Map<String, Long> sessionEnds) {
+        final long now = System.currentTimeMillis();
+        for (Map.Entry<String, Long> sessionEnd : sessionEnds.entrySet()) {
+            if (sessionEnd.getValue() <= now) {
+                continue;
+            }
+
+            final long macKey = DeviceKeys.macKey(sessionEnd.getKey());
+            final CachedDevice entry = (macKey == DeviceKeys.INVALID_KEY) ? null : devicesByMac.policy().getIfPresentQuietly(macKey);
+
+            if (entry != null && entry.sessionEndMs() != sessionEnd.getValue()) {
+                LOGGER.debug("Updated authorised device session end. [Device:{}, Session end: {}]", entry.device(), sessionEnd.getValue());
+                entry.setSessionEndMs(sessionEnd.getValue());
+                refreshExpiry(entry);
+            }
+        }
+    }
+
+    private void refreshExpiry(final CachedDevice entry) {
+        devicesByMac.policy().expireVariably().ifPresent(policy -> policy.setExpiresAfter(entry.macKey(), entry.remainingSession()));
+    }
+
+    void remove(final String mac) {
+        final long macKey = DeviceKeys.macKey(mac);
+        if (macKey != DeviceKeys.INVALID_KEY) {
+            devicesByMac.asMap().computeIfPresent(macKey, (key, current) -> {
+                unindex(current);
+                LOGGER.debug("Removing device from cache. [Device:{}]", current.device());
+                return null;
+            });
+        }
+    }
+
+    /**
+     * Removes every device which was not stamped with at least the provided generation, in a single pass over the store.
+     */
+    void removeOlderThan(final long generation) {
+        for (CachedDevice entry : devicesByMac.asMap().values()) {
+            if (entry.generation() < generation) {
+                devicesByMac.asMap().computeIfPresent(entry.macKey(), (key, current) -> {
+                    // The entry may have been replaced or re-stamped in the meantime
+                    if (current != entry || current.generation() >= generation) {
+                        return current;
+                    }
+
+                    unindex(current);
+                    LOGGER.debug("Removing device from cache. [Device:{}]", current.device());
+                    return null;
+                });
+            }
+        }
+    }
+
+    /**
+     * Restores previously snapshotted devices, skipping those whose guest session has already ended. Restored devices
+     * carry the lowest generation, so any device no longer authorised is evicted by the next sync.
+     */
+    void restore(final List<AuthorisedDeviceSnapshot.Entry> entries) {
+        final long now = System.currentTimeMillis();
+        for (AuthorisedDeviceSnapshot.Entry entry : entries) {
+            final long macKey = DeviceKeys.macKey(entry.device().id());
+            if (macKey == DeviceKeys.INVALID_KEY || (entry.sessionEndMs() != UNKNOWN_SESSION_END && entry.sessionEndMs() <= now)) {
+                continue;
+            }
+
+            devicesByMac.asMap().computeIfAbsent(macKey, key -> {
+                final CachedDevice restored = new CachedDevice(entry.device(), macKey, 0L, entry.sessionEndMs());
+                index(restored);
+                return restored;
+            });
+        }
+    }
+
+    List<AuthorisedDeviceSnapshot.Entry> snapshot() {
+        return devicesByMac.asMap().values().stream()
+                .map(entry -> new AuthorisedDeviceSnapshot.Entry(entry.device(), entry.sessionEndMs()))
+                .toList();
+    }
+
+    void clear() {
+        devicesByMac.invalidateAll();
+        devicesByIp.clear();
+        version.incrementAndGet();
+    }
+
+    List<UnifiGatewayActiveDevice> values() {
+        return devicesByMac.asMap().values().stream()
+                .map(CachedDevice::device)
+                .toList();
+    }
+
+    long version() {
+        return version.get();
+    }
+
+    private void index(final CachedDevice entry) {
+        for (long ipKey : entry.ipKeys()) {
+            devicesByIp.put(ipKey, entry);
+        }
+        version.incrementAndGet();
+    }
+
+    private void unindex(final CachedDevice entry) {
+        for (long ipKey : entry.ipKeys()) {
+            // Only remove the exact entry, since the IP may have been re-assigned to another device in the meantime
+            devicesByIp.remove(ipKey, entry);
+        }
+        version.incrementAndGet();
+    }
+
+    /**
+     * A stored device, stamped with the generation of the latest fetch in which it was reported as authorised.
+     */
+    private static final class CachedDevice {
+
+        private final UnifiGatewayActiveDevice device;
+        private final long macKey;
+        private final long apMacKey;
+        private final long[] ipKeys;
+        private volatile long generation;
+        private volatile long sessionEndMs;
+
+        private CachedDevice(final UnifiGatewayActiveDevice device, final long macKey, final long generation, final long sessionEndMs) {
+            this.device = device;
+            this.macKey = macKey;
+            this.apMacKey = DeviceKeys.macKey(device.ap_mac());
+            this.ipKeys = resolveIpKeys(device);
+            this.generation = generation;
+            this.sessionEndMs = sessionEndMs;
+        }
+
+        private static long[] resolveIpKeys(final UnifiGatewayActiveDevice device) {
+            final long ipKey = DeviceKeys.ipKey(device.ip());
+            final long fixedIpKey = DeviceKeys.ipKey(device.fixed_ip());
+
+            if (fixedIpKey == DeviceKeys.INVALID_KEY || fixedIpKey == ipKey) {
+                return (ipKey == DeviceKeys.INVALID_KEY) ? new long[0] : new long[] {ipKey};
+            }
+            return (ipKey == DeviceKeys.INVALID_KEY) ? new long[] {fixedIpKey} : new long[] {ipKey, fixedIpKey};
+        }
+
+        private UnifiGatewayActiveDevice device() {
+            return device;
+        }
+
+        private long macKey() {
+            return macKey;
+        }
+
+        private long apMacKey() {
+            return apMacKey;
+        }
+
+        private long[] ipKeys() {
+            return ipKeys;
+        }
+
+        private long generation() {
+            return generation;
+        }
+
+        private long sessionEndMs() {
+            return sessionEndMs;
+        }
+
+        private void setSessionEndMs(final long sessionEndMs) {
+            this.sessionEndMs = sessionEndMs;
+        }
+
+        private Duration remainingSession() {
+            if (sessionEndMs == UNKNOWN_SESSION_END) {
+                return Duration.ofMillis(AUTHORIZED_DEVICE_CACHE_EXPIRY_MS);
+            }
+            return Duration.ofMillis(Math.max(0L, sessionEndMs - System.currentTimeMillis()));
+        }
+
+        /**
+         * Falls back to the default expiry should the session end have passed, for a device which is still authorised.
+         */
+        private void forgetLapsedSessionEnd() {
+            if (sessionEndMs != UNKNOWN_SESSION_END && sessionEndMs <= System.currentTimeMillis()) {
+                sessionEndMs = UNKNOWN_SESSION_END;
+            }
+        }
+
+        private void stamp(final long newGeneration) {
+            // Never move an entry's generation backwards, e.g. for devices stamped ahead of the current generation
+            if (newGeneration > generation) {
+                generation = newGeneration;
+            }
+        }
+
+    }
+
+}
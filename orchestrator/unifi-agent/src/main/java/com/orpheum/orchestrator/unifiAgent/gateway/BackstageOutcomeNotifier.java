@@ -0,0 +1,152 @@
+package com.orpheum.orchestrator.unifiAgent.gateway;
+
+import com.orpheum.orchestrator.unifiAgent.metrics.AgentMetrics;
+import com.orpheum.orchestrator.unifiAgent.metrics.Counter;
+import com.orpheum.orchestrator.unifiAgent.model.GatewayAuthorisationOutcome;
+import com.orpheum.orchestrator.unifiAgent.spool.BackstageSpool;
+import com.orpheum.orchestrator.unifiAgent.support.ApplicationProperties;
+import com.orpheum.orchestrator.unifiAgent.support.BackstageClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Micro-batches authorisation outcome notifications to backstage, so that check-in surges cost a round trip over the
+ * venue's uplink per batch rather than per outcome. A batch is notified once it holds `backstage_outcome_batch_size`
+ * outcomes, on the thread adding the last outcome, or `backstage_outcome_batch_delay_ms` after its first outcome was
+ * added, whichever comes first. An outcome is hence never held back for longer than the batch delay.
+ *
+ * Batches of a single outcome are notified via backstage's single outcome endpoint. Should backstage not support batch
+ * notifications, outcomes are notified one at a time from then on. Outcomes failing to be notified are spooled for
+ * replay, see {@link BackstageSpool}. Each outcome's completion callback is run once its outcome has been either
+ * notified or spooled.
+ */
+class BackstageOutcomeNotifier {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BackstageOutcomeNotifier.class);
+
+    private static final Integer BATCH_SIZE = ApplicationProperties.getInteger("backstage_outcome_batch_size");
+    private static final Long BATCH_DELAY_MS = ApplicationProperties.getLong("backstage_outcome_batch_delay_ms");
+
+    private static final Counter BATCHES = AgentMetrics.counter("backstage_outcome_batches_total", "Authorisation outcome notifications sent to backstage, whether a single outcome or a batch");
+    private static final Counter NOTIFIED_OUTCOMES = AgentMetrics.counter("backstage_outcomes_notified_total", "Authorisation outcomes notified to backstage, excluding any spooled for replay");
+
+    private static final Object LOCK = new Object();
+
+    // Guarded by LOCK
+    private static List<PendingOutcome> batch = new ArrayList<>();
+    private static ScheduledExecutorService service;
+
+    // Only ever written once, when backstage is found not to support batch notifications
+    private static volatile boolean isBatchingSupported = true;
+
+    static void start(final ScheduledExecutorService service) {
+        synchronized (LOCK) {
+            BackstageOutcomeNotifier.service = service;
+        }
+        LOGGER.info("Started backstage outcome notifier. [Batch size: {}, Batch delay: {}ms]", BATCH_SIZE, BATCH_DELAY_MS);
+    }
+
+    /**
+     * Adds the outcome to the current batch, notifying the batch straight away should it be full.
+     *
+     * @param onCompleted run once the outcome has been notified or spooled for replay
+     */
+    static void submit(final GatewayAuthorisationOutcome outcome, final Runnable onCompleted) {
+        final List<PendingOutcome> full;
+        synchronized (LOCK) {
+            batch.add(new PendingOutcome(outcome, onCompleted));
+            if (batch.size() < BATCH_SIZE && service != null) {
+                if (batch.size() == 1) {
+                    // The flush is tied to this batch, so that it never cuts a later batch short
+                    final List<PendingOutcome> scheduled = batch;
+                    service.schedule(() -> flush(scheduled), BATCH_DELAY_MS, TimeUnit.MILLISECONDS);
+                }
+                return;
+            }
+            full = take();
+        }
+        send(full);
+    }
+
+    /**
+     * Notifies any outcomes pending in the current batch straight away.
+     */
+    static void flush() {
+        final List<PendingOutcome> pending;
+        synchronized (LOCK) {
+            pending = take();
+        }
+        send(pending);
+    }
+
+    private static void flush(final List<PendingOutcome> scheduled) {
+        final List<PendingOutcome> pending;
+        synchronized (LOCK) {
+            if (batch != scheduled) {
+                // Already notified, having filled up before its delay elapsed
+                return;
+            }
+            pending = take();
+        }
+        send(pending);
+    }
+
+    private static List<PendingOutcome> take() {
+        final List<PendingOutcome> taken = batch;
+        batch = new ArrayList<>();
+        return taken;
+    }
+
+    private static void send(final List<PendingOutcome> pending) {
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        try {
+            notifyBackstage(pending.stream().map(PendingOutcome::outcome).toList());
+        } finally {
+            for (PendingOutcome pendingOutcome : pending) {
+                pendingOutcome.onCompleted().run();
+            }
+        }
+    }
+
+    private static void notifyBackstage(final List<GatewayAuthorisationOutcome> outcomes) {
+        int notified = 0;
+        try {
+            if (outcomes.size() > 1 && isBatchingSupported) {
+                if (BackstageClient.notifyAuthorisationOutcomes(outcomes)) {
+                    BATCHES.increment();
+                    NOTIFIED_OUTCOMES.add(outcomes.size());
+                    return;
+                }
+
+                isBatchingSupported = false;
+                LOGGER.warn("Backstage does not support batch outcome notifications. Falling back to notifying outcomes one at a time.");
+            }
+
+            for (; notified < outcomes.size(); notified++) {
+                BackstageClient.notifyAuthorisationOutcome(outcomes.get(notified));
+                BATCHES.increment();
+                NOTIFIED_OUTCOMES.increment();
+            }
+        } catch (Exception e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            final List<GatewayAuthorisationOutcome> failed = outcomes.subList(notified, outcomes.size());
+            LOGGER.error("Failed to notify backstage of outcomes. Spooling for replay. [Outcomes:{}]", failed, e);
+            for (GatewayAuthorisationOutcome outcome : failed) {
+                BackstageSpool.spoolOutcome(outcome);
+            }
+        }
+    }
+
+    private record PendingOutcome(GatewayAuthorisationOutcome outcome, Runnable onCompleted) { }
+
+}
@@ -0,0 +1,76 @@
+package com.orpheum.orchestrator.unifiAgent.gateway;
+
+/**
+ * Encodes device addresses into primitive cache keys, avoiding the string building and hashing of textual keys on
+ * every lookup and sync. IPv4 addresses are packed into the lower 32 bits of a long, and MAC addresses into the lower
+ * 48 bits. Addresses which cannot be encoded, e.g. missing or IPv6 addresses, map to {@link #INVALID_KEY}.
+ */
+public final class DeviceKeys {
+
+    public static final long INVALID_KEY = -1L;
+
+    private DeviceKeys() {
+    }
+
+    /**
+     * @param ip a dotted-quad IPv4 address, e.g. 192.168.1.10
+     * @return the address packed into the lower 32 bits, or {@link #INVALID_KEY} if not a valid IPv4 address
+     */
+    public static long ipKey(final String ip) {
+        if (ip == null) {
+            return INVALID_KEY;
+        }
+
+        long key = 0L;
+        int octet = -1;
+        int octets = 0;
+        for (int i = 0; i < ip.length(); i++) {
+            final char c = ip.charAt(i);
+            if (c >= '0' && c <= '9') {
+                octet = (octet == -1) ? (c - '0') : (octet * 10) + (c - '0');
+                if (octet > 255) {
+                    return INVALID_KEY;
+                }
+            } else if (c == '.' && octet != -1 && octets < 3) {
+                key = (key << 8) | octet;
+                octet = -1;
+                octets++;
+            } else {
+                return INVALID_KEY;
+            }
+        }
+
+        if (octet == -1 || octets != 3) {
+            return INVALID_KEY;
+        }
+        return (key << 8) | octet;
+    }
+
+    /**
+     * @param mac a colon or dash separated MAC address, e.g. aa:bb:cc:dd:ee:ff, in either case
+     * @return the address packed into the lower 48 bits, or {@link #INVALID_KEY} if not a valid MAC address
+     */
+    public static long macKey(final String mac) {
+        if (mac == null) {
+            return INVALID_KEY;
+        }
+
+        long key = 0L;
+        int digits = 0;
+        for (int i = 0; i < mac.length(); i++) {
+            final char c = mac.charAt(i);
+            if (c == ':' || c == '-') {
+                continue;
+            }
+
+            final int digit = Character.digit(c, 16);
+            if (digit == -1 || ++digits > 12) {
+                return INVALID_KEY;
+            }
+            key = (key << 4) | digit;
+        }
+
+        return (digits == 12) ? key : INVALID_KEY;
+    }
+
+}
@@ -1,8 +1,9 @@
 package com.orpheum.orchestrator.unifiAgent.gateway;
 
-import com.github.benmanes.caffeine.cache.Cache;
-import com.github.benmanes.caffeine.cache.Caffeine;
 import com.orpheum.orchestrator.unifiAgent.auth.GatewayAuthConnectionManager;
+import com.orpheum.orchestrator.unifiAgent.metrics.AgentMetrics;
+import com.orpheum.orchestrator.unifiAgent.metrics.Counter;
+import com.orpheum.orchestrator.unifiAgent.metrics.LatencyHistogram;
 import com.orpheum.orchestrator.unifiAgent.model.GatewayAuthConnection;
 import com.orpheum.orchestrator.unifiAgent.model.UnifiGatewayActiveDevice;
 import com.orpheum.orchestrator.unifiAgent.support.ApplicationProperties;
@@ -10,14 +11,17 @@ import com.orpheum.orchestrator.unifiAgent.support.UnifiGatewayClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.*;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.concurrent.Callable;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
-import java.util.stream.Collectors;
 
-import static com.orpheum.orchestrator.unifiAgent.model.UnifiGatewayActiveDevice.resolveMacsKey;
 
 /**
  * A class which manages the agent's internal cache around authenticated devices by
@@ -29,11 +33,20 @@ import static com.orpheum.orchestrator.unifiAgent.model.UnifiGatewayActiveDevice
  *     successfully resolved, (iii) it will add the active device in the cache.</li>
  * </ul>
  *
- * Note that the authorised device shall be kept in the cache for a time matching that configured in the UniFi gateway
- * via the hotspot portal. Given that the item is usually added to the cache almost instantly after successful gateway
- * authorisation, this should result in the agent and gateway being in sync. Restarting the agent however breaks this
- * assumption, since the authorised devices will be added via polling at a later time than the actual authorisation. A
- * solution to this could be to set the cache TTL equal to the polling rate, and refresh the cache on each poll.
+ * All gateway fetches go through a shared {@link GatewayActiveDeviceFetcher}, so that concurrent resolutions and the
+ * periodic sync coalesce onto a single in-flight download of the gateway's active devices. Every fetch stamps the
+ * cached devices it reports with a new generation, so that reconciliation is a single pass over the
+ * {@link AuthorisedDeviceStore} evicting the entries left behind by the latest fetch. When the gateway's event stream
+ * is enabled, the cache is additionally kept up to date by {@link GatewayEventStreamSubscriber}, in which case
+ * the periodic sync only serves to reconcile any events missed.
+ *
+ * Note that the authorised device shall be kept in the cache until the end of its guest session on the gateway. Each
+ * periodic sync retrieves the gateway's guest sessions and aligns the cached devices' expiry accordingly, so that the
+ * agent and gateway remain in sync even for devices which were authorised before the agent was (re)started.
+ *
+ * The cache is periodically snapshotted to local disk, see {@link AuthorisedDeviceSnapshot}. On startup, the latest
+ * snapshot is restored before the captive portal state server starts accepting requests, and is reconciled with the
+ * gateway by the first sync.
  */
 public class GatewayActiveDeviceCacheManager implements Runnable {
 
@@ -41,20 +54,25 @@ public class GatewayActiveDeviceCacheManager implements Runnable {
 
     private static final String SITE_IDENTIFIER = ApplicationProperties.getString("site_identifier");
 
-    private static final Integer AUTHORIZED_DEVICE_CACHE_EXPIRY_MS = ApplicationProperties.getInteger("authorized_device_cache_expiry_ms");
     private static final Long DEVICE_RESOLUTION_TIMEOUT_MS = ApplicationProperties.getLong("authorized_device_resolution_timeout_ms");
     private static final Long DEVICE_RESOLUTION_DELAY_MS = ApplicationProperties.getLong("authorized_device_resolution_delay_ms");
+    private static final Path SNAPSHOT_PATH = Path.of(ApplicationProperties.getString("authorised_device_snapshot_path"));
+    private static final Integer GUEST_SESSION_LOOKBACK_HOURS = ApplicationProperties.getInteger("gateway_guest_session_lookback_hours");
 
-    private final Cache<String, UnifiGatewayActiveDevice> authorisedDeviceCacheByIp = Caffeine.newBuilder()
-            .expireAfterWrite(AUTHORIZED_DEVICE_CACHE_EXPIRY_MS, TimeUnit.MILLISECONDS)
-            .build();
+    private static final LatencyHistogram SYNC_LATENCY = AgentMetrics.latency("gateway_active_device_sync_duration_seconds", "Time taken to sync the authorised device cache with the gateway");
+    private static final Counter SYNC_FAILURES = AgentMetrics.counter("gateway_active_device_sync_failures_total", "Syncs of the authorised device cache with the gateway which failed");
 
-    private final Cache<String, UnifiGatewayActiveDevice> authorisedDeviceCacheByMacs = Caffeine.newBuilder()
-            .expireAfterWrite(AUTHORIZED_DEVICE_CACHE_EXPIRY_MS, TimeUnit.MILLISECONDS)
-            .build();
+    private final AuthorisedDeviceStore authorisedDeviceStore = new AuthorisedDeviceStore();
 
     private final AtomicBoolean isRunning = new AtomicBoolean(false);
 
+    // Bumped on every fetch of the gateway's active devices, with every device in the fetch being stamped accordingly
+    private final AtomicLong generation = new AtomicLong();
+    // The generation of the latest fetch whose devices have all been stamped
+    private volatile long syncedGeneration;
+
+    private final GatewayActiveDeviceFetcher activeDeviceFetcher = new GatewayActiveDeviceFetcher(this::onFetched);
+
     @Override
     public void run() {
         if (isRunning.get()) {
@@ -63,79 +81,68 @@ public class GatewayActiveDeviceCacheManager implements Runnable {
         }
 
         isRunning.set(true);
-        GatewayAuthConnection connection = null;
+        final long startNanos = System.nanoTime();
         try {
-            connection = GatewayAuthConnectionManager.borrowConnection();
+            // Any new devices are added to the caches, and all existing ones are stamped, by the fetcher
+            activeDeviceFetcher.fetch();
 
-            final List<UnifiGatewayActiveDevice> authorizedDevices =
-                    filterForAuthorizedDevices(UnifiGatewayClient.getActiveDevices(connection));
-
-            // Add any new devices to the caches first
-            authorizedDevices.forEach(this::addAuthorisedDeviceToCache);
             // Remove any entries from the caches which are no longer authorised on the gateway's end
-            removeUnauthorisedDevicesFromIPCache(authorizedDevices);
-            removeUnauthorisedDevicesFromMacsCache(authorizedDevices);
+            authorisedDeviceStore.removeOlderThan(syncedGeneration);
+
+            // Align the remaining entries' expiry with the guest sessions on the gateway's end
+            authorisedDeviceStore.updateSessionEnds(fetchGuestSessionEnds());
         } catch (Exception e) {
+            SYNC_FAILURES.increment();
             LOGGER.error("Unexpected exception encountered. Skipping run.", e);
+        } finally {
+            SYNC_LATENCY.recordSince(startNanos);
+            isRunning.set(false);
+        }
+    }
+
+    private Map<String, Long> fetchGuestSessionEnds() throws IOException, InterruptedException {
+        GatewayAuthConnection connection = null;
+        try {
+            connection = GatewayAuthConnectionManager.borrowSharedConnection();
+            return UnifiGatewayClient.getGuestSessionEnds(connection, GUEST_SESSION_LOOKBACK_HOURS);
         } finally {
             if (connection != null) {
-                GatewayAuthConnectionManager.returnConnection(connection);
+                GatewayAuthConnectionManager.returnSharedConnection(connection);
             }
-            isRunning.set(false);
         }
     }
 
     public Optional<UnifiGatewayActiveDevice> resolveAuthorisedCachedDeviceByIp(String ip) {
-        return Optional.ofNullable(authorisedDeviceCacheByIp.getIfPresent(ip));
+        return authorisedDeviceStore.getByIp(ip);
     }
 
     public Optional<UnifiGatewayActiveDevice> resolveAuthorisedCachedDeviceByMacs(String mac, String ap_mac) {
-        return Optional.ofNullable(authorisedDeviceCacheByIp.getIfPresent(resolveMacsKey(mac, ap_mac)));
+        return authorisedDeviceStore.getByMacs(mac, ap_mac);
+    }
+
+    public long getAuthorisedDevicesVersion() {
+        return authorisedDeviceStore.version();
     }
 
     public void addAuthorisedDeviceToCache(UnifiGatewayActiveDevice device) {
-        if (authorisedDeviceCacheByIp.getIfPresent(device.resolveIp()) == null) {
-            LOGGER.debug("Added authorised device to cache by IP. [Device:{}]", device);
-            authorisedDeviceCacheByIp.put(device.resolveIp(), device);
-        }
-        if (authorisedDeviceCacheByMacs.getIfPresent(device.resolveMacsKey()) == null) {
-            LOGGER.debug("Added authorised device to cache by MACs. [Device:{}]", device);
-            authorisedDeviceCacheByMacs.put(device.resolveMacsKey(), device);
-        }
+        // Devices added in between syncs are stamped ahead of the current generation, so that they survive a sync whose
+        // fetch may have been issued before the device was authorised
+        authorisedDeviceStore.stamp(device, generation.get() + 1);
+    }
+
+    public void removeAuthorisedDevice(String mac) {
+        authorisedDeviceStore.remove(mac);
     }
 
-    private void removeUnauthorisedDevicesFromIPCache(List<UnifiGatewayActiveDevice> devices) {
-        // Resolve all devices still authorised within the Unifi Gateway
-        Set<String> authorisedDeviceIps = devices.stream()
-                .map(UnifiGatewayActiveDevice::resolveIp)
-                .collect(Collectors.toSet());
-        // Resolve IPs within cache for devices still considered as authorised
-        Set<String> cachedAuthorisedDeviceIps = new HashSet<>(authorisedDeviceCacheByIp.asMap().keySet());
-        // Remove all devices which are still authorised within the gateway
-        cachedAuthorisedDeviceIps.removeAll(authorisedDeviceIps);
-        // Invalidate all entries which are in the cache but not authorised in the gateway
-        cachedAuthorisedDeviceIps.forEach(deviceIpToRemove -> {
-            UnifiGatewayActiveDevice device = authorisedDeviceCacheByIp.getIfPresent(deviceIpToRemove);
-            LOGGER.debug("Removing device from cache by IP. [Device:{}]", device);
-            authorisedDeviceCacheByIp.invalidate(deviceIpToRemove);
-        });
-    }
-
-    private void removeUnauthorisedDevicesFromMacsCache(List<UnifiGatewayActiveDevice> devices) {
-        // Resolve all devices still authorised within the Unifi Gateway
-        Set<String> authorisedDeviceMacKeys = devices.stream()
-                .map(UnifiGatewayActiveDevice::resolveMacsKey)
-                .collect(Collectors.toSet());
-        // Resolve Macs within cache for devices still considered as authorised
-        Set<String> cachedAuthorisedDeviceMacs = new HashSet<>(authorisedDeviceCacheByMacs.asMap().keySet());
-        // Remove all devices which are still authorised within the gateway
-        cachedAuthorisedDeviceMacs.removeAll(authorisedDeviceMacKeys);
-        // Invalidate all entries which are in the cache but not authorised in the gateway
-        cachedAuthorisedDeviceMacs.forEach(deviceMacsKeyToRemove -> {
-            UnifiGatewayActiveDevice device = authorisedDeviceCacheByMacs.getIfPresent(deviceMacsKeyToRemove);
-            LOGGER.debug("Removing device from cache by MACs. [Device:{}]", device);
-            authorisedDeviceCacheByMacs.invalidate(deviceMacsKeyToRemove);
-        });
+    private void onFetched(final List<UnifiGatewayActiveDevice> devices) {
+        final long fetchGeneration = generation.incrementAndGet();
+        for (UnifiGatewayActiveDevice device : devices) {
+            // Only cache if authorised
+            if (device.authorized() && SITE_IDENTIFIER.equals(device.essid())) {
+                authorisedDeviceStore.stamp(device, fetchGeneration);
+            }
+        }
+        syncedGeneration = fetchGeneration;
     }
 
     public Optional<UnifiGatewayActiveDevice> resolveDeviceByIp(String ip) {
@@ -166,13 +173,9 @@ public class GatewayActiveDeviceCacheManager implements Runnable {
         long initialTimestamp = System.currentTimeMillis();
 
         while ((System.currentTimeMillis() - initialTimestamp) < DEVICE_RESOLUTION_TIMEOUT_MS) {
-            GatewayAuthConnection connection = null;
             try {
-                connection = GatewayAuthConnectionManager.borrowConnection();
-
-                List<UnifiGatewayActiveDevice> activeDevices = UnifiGatewayClient.getActiveDevices(connection);
-                // Only cache if authorised
-                filterForAuthorizedDevices(activeDevices).forEach(this::addAuthorisedDeviceToCache);
+                // Concurrent resolutions share a single fetch, each then looking for its own device within the result
+                List<UnifiGatewayActiveDevice> activeDevices = activeDeviceFetcher.fetch();
 
                 Optional<UnifiGatewayActiveDevice> unifiGatewayActiveDevice = listResolver.apply(activeDevices);
 
@@ -183,20 +186,39 @@ public class GatewayActiveDeviceCacheManager implements Runnable {
                 Thread.sleep(DEVICE_RESOLUTION_DELAY_MS);
             } catch (Exception e) {
                 LOGGER.error("Unexpected exception encountered. Skipping resolution.", e);
-            } finally {
-                if (connection != null) {
-                    GatewayAuthConnectionManager.returnConnection(connection);
-                }
-                isRunning.set(false);
             }
         }
 
         return Optional.empty();
     }
 
+    public void restoreSnapshot() {
+        if (!Files.exists(SNAPSHOT_PATH)) {
+            LOGGER.info("No authorised device snapshot found. Skipping restore. [Path: {}]", SNAPSHOT_PATH);
+            return;
+        }
+
+        try {
+            final List<AuthorisedDeviceSnapshot.Entry> entries = AuthorisedDeviceSnapshot.read(SNAPSHOT_PATH);
+            authorisedDeviceStore.restore(entries);
+            LOGGER.info("Restored authorised device snapshot. [Path: {}, Snapshotted devices: {}, Restored devices: {}]", SNAPSHOT_PATH, entries.size(), authorisedDeviceStore.values().size());
+        } catch (Exception e) {
+            LOGGER.error("Failed to restore authorised device snapshot. Starting with an empty cache. [Path: {}]", SNAPSHOT_PATH, e);
+        }
+    }
+
+    public void writeSnapshot() {
+        try {
+            final List<AuthorisedDeviceSnapshot.Entry> entries = authorisedDeviceStore.snapshot();
+            AuthorisedDeviceSnapshot.write(SNAPSHOT_PATH, entries);
+            LOGGER.debug("Wrote authorised device snapshot. [Path: {}, Devices: {}]", SNAPSHOT_PATH, entries.size());
+        } catch (Exception e) {
+            LOGGER.error("Failed to write authorised device snapshot. Skipping run. [Path: {}]", SNAPSHOT_PATH, e);
+        }
+    }
+
     public void clearCache() {
-        authorisedDeviceCacheByIp.invalidateAll();
-        authorisedDeviceCacheByMacs.invalidateAll();
+        authorisedDeviceStore.clear();
         LOGGER.debug("Emptied authorised device cache");
     }
 
@@ -212,14 +234,8 @@ public class GatewayActiveDeviceCacheManager implements Runnable {
                 .findFirst();
     }
 
-    private List<UnifiGatewayActiveDevice> filterForAuthorizedDevices(final List<UnifiGatewayActiveDevice> devices) {
-        return devices.stream()
-                .filter(device -> device.authorized() && SITE_IDENTIFIER.equals(device.essid()))
-                .toList();
-    }
-
     public List<UnifiGatewayActiveDevice> getAuthorisedDevicesView() {
-        return new ArrayList<>(authorisedDeviceCacheByIp.asMap().values());
+        return authorisedDeviceStore.values();
     }
 
 }
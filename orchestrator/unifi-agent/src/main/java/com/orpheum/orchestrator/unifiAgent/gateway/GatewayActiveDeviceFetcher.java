@@ -0,0 +1,107 @@
+package com.orpheum.orchestrator.unifiAgent.gateway;
+
+import com.orpheum.orchestrator.unifiAgent.auth.GatewayAuthConnectionManager;
+import com.orpheum.orchestrator.unifiAgent.model.GatewayAuthConnection;
+import com.orpheum.orchestrator.unifiAgent.model.UnifiGatewayActiveDevice;
+import com.orpheum.orchestrator.unifiAgent.support.ApplicationProperties;
+import com.orpheum.orchestrator.unifiAgent.support.UnifiGatewayClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Fetches the gateway's active devices on behalf of concurrent callers. A caller arriving while a fetch is in flight
+ * joins it rather than triggering its own download of the full client list, and a result younger than the configured
+ * freshness window is shared outright. This keeps the load on the gateway flat regardless of the number of guests
+ * being resolved at the same time, with every joined caller being woken up as soon as the shared result is available.
+ */
+class GatewayActiveDeviceFetcher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(GatewayActiveDeviceFetcher.class);
+
+    private static final String SITE_IDENTIFIER = ApplicationProperties.getString("site_identifier");
+    private static final Long ACTIVE_DEVICE_FETCH_FRESHNESS_MS = ApplicationProperties.getLong("active_device_fetch_freshness_ms");
+    private static final Integer REQUEST_TIMEOUT_MS = ApplicationProperties.getInteger("request_timeout");
+
+    private final AtomicReference<CompletableFuture<ActiveDevicesSnapshot>> inFlightFetch = new AtomicReference<>();
+    private final Consumer<List<UnifiGatewayActiveDevice>> onFetched;
+
+    private volatile ActiveDevicesSnapshot lastSnapshot;
+
+    /**
+     * @param onFetched invoked with every freshly fetched active device list, before any waiting caller is woken up
+     */
+    GatewayActiveDeviceFetcher(final Consumer<List<UnifiGatewayActiveDevice>> onFetched) {
+        this.onFetched = onFetched;
+    }
+
+    List<UnifiGatewayActiveDevice> fetch() throws IOException, InterruptedException {
+        final ActiveDevicesSnapshot snapshot = lastSnapshot;
+        if (snapshot != null && (System.currentTimeMillis() - snapshot.timestamp()) < ACTIVE_DEVICE_FETCH_FRESHNESS_MS) {
+            LOGGER.trace("Sharing fresh active devices snapshot. [Timestamp: {}]", snapshot.timestamp());
+            return snapshot.devices();
+        }
+
+        final CompletableFuture<ActiveDevicesSnapshot> fetch = new CompletableFuture<>();
+        final CompletableFuture<ActiveDevicesSnapshot> ongoingFetch = inFlightFetch.compareAndExchange(null, fetch);
+        if (ongoingFetch != null) {
+            LOGGER.trace("Joining in flight active devices fetch.");
+            return await(ongoingFetch).devices();
+        }
+
+        GatewayAuthConnection connection = null;
+        try {
+            // The snapshot is timestamped on request, since devices may change state while the response is in flight
+            final long timestamp = System.currentTimeMillis();
+            connection = GatewayAuthConnectionManager.borrowSharedConnection();
+
+            // Devices on other SSIDs are never of interest to the agent, so they are dropped while the response is parsed
+            final List<UnifiGatewayActiveDevice> devices = UnifiGatewayClient.getActiveDevices(connection, device -> SITE_IDENTIFIER.equals(device.essid()));
+            final ActiveDevicesSnapshot fetchedSnapshot = new ActiveDevicesSnapshot(devices, timestamp);
+            onFetched.accept(fetchedSnapshot.devices());
+            lastSnapshot = fetchedSnapshot;
+            fetch.complete(fetchedSnapshot);
+
+            return fetchedSnapshot.devices();
+        } catch (Throwable t) {
+            // Joined callers must never be left waiting on a fetch which failed, whatever the failure
+            fetch.completeExceptionally(t);
+            throw t;
+        } finally {
+            inFlightFetch.compareAndSet(fetch, null);
+            if (connection != null) {
+                GatewayAuthConnectionManager.returnSharedConnection(connection);
+            }
+        }
+    }
+
+    private ActiveDevicesSnapshot await(final CompletableFuture<ActiveDevicesSnapshot> ongoingFetch) throws IOException, InterruptedException {
+        try {
+            return ongoingFetch.get(REQUEST_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new IOException(String.format("Timed out awaiting joined active devices fetch. [Timeout: %sms]", REQUEST_TIMEOUT_MS), e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException ioException) {
+                throw ioException;
+            }
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            if (e.getCause() instanceof Error error) {
+                throw error;
+            }
+            throw new IllegalStateException("Joined active devices fetch failed.", e.getCause());
+        }
+    }
+
+    private record ActiveDevicesSnapshot(List<UnifiGatewayActiveDevice> devices, long timestamp) { }
+
+}
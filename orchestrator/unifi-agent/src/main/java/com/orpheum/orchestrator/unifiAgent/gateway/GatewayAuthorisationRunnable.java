@@ -1,11 +1,13 @@
 package com.orpheum.orchestrator.unifiAgent.gateway;
 
 import com.orpheum.orchestrator.unifiAgent.auth.GatewayAuthConnectionManager;
+import com.orpheum.orchestrator.unifiAgent.metrics.AgentMetrics;
+import com.orpheum.orchestrator.unifiAgent.metrics.Counter;
+import com.orpheum.orchestrator.unifiAgent.metrics.LatencyHistogram;
 import com.orpheum.orchestrator.unifiAgent.model.BackstageAuthorisationRequest;
 import com.orpheum.orchestrator.unifiAgent.model.GatewayAuthConnection;
 import com.orpheum.orchestrator.unifiAgent.model.GatewayAuthorisationOutcome;
 import com.orpheum.orchestrator.unifiAgent.model.UnifiGatewayActiveDevice;
-import com.orpheum.orchestrator.unifiAgent.support.BackstageClient;
 import com.orpheum.orchestrator.unifiAgent.support.UnifiGatewayClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -30,11 +32,22 @@ import static com.orpheum.orchestrator.unifiAgent.model.GatewayAuthenticationOut
  *     the gateway is done immediately. However, the full device details are then resolved post backstage
  *     notification in order to hydrate the cache with the device's full details.</li>
  * </ul>
+ *
+ * Outcomes are notified to backstage via the {@link BackstageOutcomeNotifier}, which spools them for replay should
+ * backstage fail to be notified.
  */
 public class GatewayAuthorisationRunnable implements Runnable {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(GatewayAuthorisationRunnable.class);
+
+    private static final LatencyHistogram AUTHORISATION_LATENCY = AgentMetrics.latency("gateway_authorisation_duration_seconds", "Time taken to process backstage authorisation requests end to end, including device resolution and backstage notification");
+    private static final String AUTHORISATIONS_METRIC = "gateway_authorisations_total";
+    private static final String AUTHORISATIONS_HELP = "Backstage authorisation requests processed, by outcome";
+    private static final Counter SUCCESSFUL_AUTHORISATIONS = AgentMetrics.counter(AUTHORISATIONS_METRIC, AUTHORISATIONS_HELP, "outcome", "success");
+    private static final Counter FAILED_AUTHORISATIONS = AgentMetrics.counter(AUTHORISATIONS_METRIC, AUTHORISATIONS_HELP, "outcome", "failed");
+
     private final BackstageAuthorisationRequest pendingAuthorisationRequest;
+    private boolean isOutcomeSubmitted;
 
     public GatewayAuthorisationRunnable(final BackstageAuthorisationRequest authorisationRequest) {
         this.pendingAuthorisationRequest = authorisationRequest;
@@ -42,12 +55,11 @@ public class GatewayAuthorisationRunnable implements Runnable {
 
     @Override
     public void run() {
-        GatewayAuthConnection gatewayAuthConnection = null;
+        final long startNanos = System.nanoTime();
+        boolean isAuthorised = false;
         try {
             LOGGER.debug("Starting gateway device authorization process. [Request:{}]", pendingAuthorisationRequest);
 
-            gatewayAuthConnection = GatewayAuthConnectionManager.borrowConnection();
-
             String macAddress = pendingAuthorisationRequest.macAddress();
             String apMacAddress = pendingAuthorisationRequest.accessPointMacAddress();
             Optional<UnifiGatewayActiveDevice> unifiGatewayActiveDevice = Optional.empty();
@@ -55,14 +67,14 @@ public class GatewayAuthorisationRunnable implements Runnable {
                 LOGGER.debug("Missing MAC address or access point MAC address. Attempting to resolve device by ip. [Request:{}]", pendingAuthorisationRequest);
 
                 if (isEmptyOrNull(pendingAuthorisationRequest.ip())) {
-                    BackstageClient.notifyAuthorisationOutcome(new GatewayAuthorisationOutcome(pendingAuthorisationRequest, FAILED, "Missing IP in authorization request"));
+                    notifyOutcome(new GatewayAuthorisationOutcome(pendingAuthorisationRequest, FAILED, "Missing IP in authorization request"));
                     return;
                 }
 
                 unifiGatewayActiveDevice = GatewayAuthorisationService.resolveDeviceByIp(pendingAuthorisationRequest.ip());
 
                 if (unifiGatewayActiveDevice.isEmpty()) {
-                    BackstageClient.notifyAuthorisationOutcome(new GatewayAuthorisationOutcome(pendingAuthorisationRequest, FAILED, "Unable to resolve device by IP"));
+                    notifyOutcome(new GatewayAuthorisationOutcome(pendingAuthorisationRequest, FAILED, "Unable to resolve device by IP"));
                     return;
                 }
 
@@ -70,30 +82,51 @@ public class GatewayAuthorisationRunnable implements Runnable {
                 apMacAddress = unifiGatewayActiveDevice.get().ap_mac();
             }
 
-            UnifiGatewayClient.authorizeDevice(
-                    gatewayAuthConnection,
-                    macAddress,
-                    apMacAddress
-            );
+            authorizeDevice(macAddress, apMacAddress);
+            isAuthorised = true;
 
-            BackstageClient.notifyAuthorisationOutcome(new GatewayAuthorisationOutcome(pendingAuthorisationRequest, SUCCESS));
+            notifyOutcome(new GatewayAuthorisationOutcome(pendingAuthorisationRequest, SUCCESS));
 
             updateCache(unifiGatewayActiveDevice);
 
             LOGGER.debug("Gateway authentication complete. [Request:{}]", pendingAuthorisationRequest);
         } catch (Exception e) {
             LOGGER.error("Failed to authenticate request on the UniFi Gateway. Notifying backstage of outcome. [Request:{}]", pendingAuthorisationRequest, e);
-            try {
-                BackstageClient.notifyAuthorisationOutcome(new GatewayAuthorisationOutcome(pendingAuthorisationRequest, FAILED, "Http request failure"));
-                LOGGER.error("Notified backstage of failed outcome. [Request:{}]", pendingAuthorisationRequest);
-            } catch (IOException | InterruptedException ex) {
-                LOGGER.error("Failed to notify backstage of outcome. [Request:{}]", pendingAuthorisationRequest, ex);
-            }
+            notifyOutcome(new GatewayAuthorisationOutcome(pendingAuthorisationRequest, FAILED, "Http request failure"));
         } finally {
-            if (gatewayAuthConnection != null) {
-                GatewayAuthConnectionManager.returnConnection(gatewayAuthConnection);
+            if (!isOutcomeSubmitted) {
+                BackstageAuthRepository.onGatewayAuthorisationCompleted(pendingAuthorisationRequest);
             }
-            BackstageAuthRepository.onGatewayAuthorisationCompleted(pendingAuthorisationRequest);
+            (isAuthorised ? SUCCESSFUL_AUTHORISATIONS : FAILED_AUTHORISATIONS).increment();
+            AUTHORISATION_LATENCY.recordSince(startNanos);
+        }
+    }
+
+    /**
+     * Hands the outcome over to be notified to backstage, batched with any other outcomes being notified at the same
+     * time. Failing to notify backstage hence never fails the authorisation itself, nor leads to a successful
+     * authorisation being reported as failed.
+     *
+     * The request is only marked as completed once its outcome has been notified or spooled. Until then, backstage
+     * still reports the request as pending, and it must not be picked up again by the next poll.
+     */
+    private void notifyOutcome(final GatewayAuthorisationOutcome outcome) {
+        isOutcomeSubmitted = true;
+        BackstageOutcomeNotifier.submit(outcome, () -> BackstageAuthRepository.onGatewayAuthorisationCompleted(pendingAuthorisationRequest));
+    }
+
+    private void authorizeDevice(final String macAddress, final String apMacAddress) throws IOException, InterruptedException {
+        // The connection is only held for the authorisation call itself. Device resolution borrows connections of its own,
+        // so holding one throughout would let concurrent authorisations exhaust the pool and block each other.
+        GatewayAuthConnection gatewayAuthConnection = GatewayAuthConnectionManager.borrowConnection();
+        try {
+            UnifiGatewayClient.authorizeDevice(
+                    gatewayAuthConnection,
+                    macAddress,
+                    apMacAddress
+            );
+        } finally {
+            GatewayAuthConnectionManager.returnConnection(gatewayAuthConnection);
         }
     }
 
@@ -1,6 +1,7 @@
 package com.orpheum.orchestrator.unifiAgent.gateway;
 
 import com.orpheum.orchestrator.unifiAgent.model.BackstageAuthorisationRequest;
+import com.orpheum.orchestrator.unifiAgent.model.BackstagePendingAuthorisations;
 import com.orpheum.orchestrator.unifiAgent.model.UnifiGatewayActiveDevice;
 import com.orpheum.orchestrator.unifiAgent.support.ApplicationProperties;
 import com.orpheum.orchestrator.unifiAgent.support.BackstageClient;
@@ -9,6 +10,7 @@ import org.slf4j.LoggerFactory;
 
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -17,6 +19,13 @@ import java.util.concurrent.atomic.AtomicBoolean;
  * The "main" service which (i) continuously polls the backstage server, (ii) identifies which pending backstage
  * authorisation requests have not been seen yet by the agent, and (iii) asynchronously triggers a fresh
  * {@link GatewayAuthorisationRunnable} to perform the UniFi gateway authorisation accordingly.
+ *
+ * When enabled, backstage is long polled, i.e. backstage parks the agent's request until a new authorisation request
+ * is registered for the site, cutting the latency of picking up new requests down to a single round trip. Should
+ * backstage not support long polling, the service automatically falls back to polling on a fixed interval.
+ *
+ * When the gateway's event stream is enabled, authorised device changes are applied to the cache as they happen, and
+ * the periodic full sync of the gateway's active devices is relaxed to a slower reconciliation interval.
  */
 public class GatewayAuthorisationService {
 
@@ -26,20 +35,57 @@ public class GatewayAuthorisationService {
 
     private static final GatewayActiveDeviceCacheManager CACHE_MANAGER = new GatewayActiveDeviceCacheManager();
 
-    public static void start(final ScheduledExecutorService service) {
+    private static final Long BACKSTAGE_SERVER_POLL_DELAY_MS = ApplicationProperties.getLong("backstage_server_poll_delay_ms");
+
+    /**
+     * Starts the service, occupying the calling thread until the service is shut down.
+     *
+     * @param service               the scheduled executor service used for periodic cache syncs
+     * @param authorisationExecutor the executor on which gateway authorisations are performed
+     * @param notifierService       the scheduler dedicated to outcome batch flushes, so that a flush never waits behind
+     *                              blocked work
+     */
+    public static void start(final ScheduledExecutorService service, final ExecutorService authorisationExecutor, final ScheduledExecutorService notifierService) {
+        BackstageOutcomeNotifier.start(notifierService);
+
+        final boolean isEventStreamEnabled = Boolean.parseBoolean(ApplicationProperties.getString("gateway_event_stream_enabled"));
+        if (isEventStreamEnabled) {
+            new GatewayEventStreamSubscriber(CACHE_MANAGER, service).start();
+        }
+
         service.scheduleAtFixedRate(
                 CACHE_MANAGER,
-                30000L, // Wait 30 seconds before the first sync request
-                ApplicationProperties.getInteger("gateway_active_device_cache_ping_delay_ms"),
+                0L, // Reconcile any restored snapshot with the gateway straight away
+                ApplicationProperties.getInteger(isEventStreamEnabled ? "gateway_active_device_cache_reconciliation_delay_ms" : "gateway_active_device_cache_ping_delay_ms"),
                 TimeUnit.MILLISECONDS
         );
 
-        LOGGER.info("Started polling of backstage pending authorisation requests.");
+        final Long snapshotDelayMs = ApplicationProperties.getLong("authorised_device_snapshot_delay_ms");
+        service.scheduleAtFixedRate(CACHE_MANAGER::writeSnapshot, snapshotDelayMs, snapshotDelayMs, TimeUnit.MILLISECONDS);
+
+        boolean isLongPollEnabled = Boolean.parseBoolean(ApplicationProperties.getString("backstage_server_long_poll_enabled"));
+        // Backstage never reports a negative version, ensuring that the first long poll request is answered immediately
+        long knownVersion = -1L;
+
+        LOGGER.info("Started polling of backstage pending authorisation requests. [Long poll enabled: {}]", isLongPollEnabled);
         while (IS_RUNNING.get()) {
             try {
-                Thread.sleep(ApplicationProperties.getLong("backstage_server_poll_delay_ms"));
+                List<BackstageAuthorisationRequest> retrievedPendingAuths;
+                if (isLongPollEnabled) {
+                    BackstagePendingAuthorisations pendingAuthorisations = BackstageClient.awaitPendingAuthorisationRequests(knownVersion);
+
+                    if (pendingAuthorisations.isLongPollSupported()) {
+                        knownVersion = pendingAuthorisations.version();
+                    } else {
+                        LOGGER.warn("Backstage does not support long polling of pending authorisation requests. Falling back to polling every {}ms.", BACKSTAGE_SERVER_POLL_DELAY_MS);
+                        isLongPollEnabled = false;
+                    }
+                    retrievedPendingAuths = pendingAuthorisations.requests();
+                } else {
+                    Thread.sleep(BACKSTAGE_SERVER_POLL_DELAY_MS);
 
-                List<BackstageAuthorisationRequest> retrievedPendingAuths = BackstageClient.getPendingAuthorisationRequests();
+                    retrievedPendingAuths = BackstageClient.getPendingAuthorisationRequests();
+                }
 
                 if (retrievedPendingAuths.size() != 0) {
                     // Check if any of the retrieved pending authorisation requests have already been actioned on. Those which
@@ -47,17 +93,40 @@ public class GatewayAuthorisationService {
                     final List<BackstageAuthorisationRequest> newPendingAuths = BackstageAuthRepository.merge(retrievedPendingAuths);
 
                     if (newPendingAuths.size() != 0) {
-                        newPendingAuths.forEach(pendingAuth -> service.execute(new GatewayAuthorisationRunnable(pendingAuth)));
+                        newPendingAuths.forEach(pendingAuth -> authorisationExecutor.execute(new GatewayAuthorisationRunnable(pendingAuth)));
                     }
                 }
             } catch (Exception e) {
                 LOGGER.error("Gateway authorisation service encountered exception. Skipping run.", e);
+
+                if (isLongPollEnabled) {
+                    // Long poll requests are not separated by a delay, so back off to avoid hammering an unavailable backstage
+                    backOff();
+                }
             }
         }
     }
 
+    private static void backOff() {
+        try {
+            Thread.sleep(BACKSTAGE_SERVER_POLL_DELAY_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Restores the authorised device cache from the latest snapshot on disk, if any. Should be invoked before the
+     * captive portal state server is started.
+     */
+    public static void restoreCache() {
+        CACHE_MANAGER.restoreSnapshot();
+    }
+
     public static void shutdown() {
         IS_RUNNING.set(false);
+        BackstageOutcomeNotifier.flush();
+        CACHE_MANAGER.writeSnapshot();
         LOGGER.debug("Stopped GatewayAuthorisationService");
     }
 
@@ -69,6 +138,13 @@ public class GatewayAuthorisationService {
         return CACHE_MANAGER.resolveAuthorisedCachedDeviceByIp(ip);
     }
 
+    /**
+     * @return the authorised device cache's version, which changes whenever an IP lookup on the cache may resolve differently
+     */
+    public static long getAuthorisedDevicesVersion() {
+        return CACHE_MANAGER.getAuthorisedDevicesVersion();
+    }
+
     public static Optional<UnifiGatewayActiveDevice> resolveDeviceByIp(final String ip) {
         return CACHE_MANAGER.resolveDeviceByIp(ip);
     }
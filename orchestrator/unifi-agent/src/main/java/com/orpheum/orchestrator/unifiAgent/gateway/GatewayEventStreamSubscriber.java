@@ -0,0 +1,195 @@
+package com.orpheum.orchestrator.unifiAgent.gateway;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.orpheum.orchestrator.unifiAgent.auth.GatewayAuthConnectionManager;
+import com.orpheum.orchestrator.unifiAgent.model.GatewayAuthConnection;
+import com.orpheum.orchestrator.unifiAgent.model.UnifiGatewayActiveDevice;
+import com.orpheum.orchestrator.unifiAgent.support.ApplicationProperties;
+import com.orpheum.orchestrator.unifiAgent.support.UnifiGatewayClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.http.WebSocket;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Subscribes to the UniFi controller's local event stream websocket and applies client state changes to the agent's
+ * authorised device cache as they happen, rather than waiting for the next full poll of the gateway's active devices.
+ * Two kinds of messages are handled:
+ *
+ * <ul>
+ *     <li>sta:sync - Carries the latest state of one or more clients, which may be partial deltas. Clients explicitly
+ *     authorised on this site's SSID are added to the cache, and clients explicitly de-authorised are removed from it.
+ *     Deltas carrying neither are ignored.</li>
+ *     <li>events - Carries controller events. Guest authorisation expiries remove the respective client from the cache.
+ *     Disconnections are ignored, since a guest roaming or briefly dropping off the network remains authorised.</li>
+ * </ul>
+ *
+ * The subscription reconnects automatically if the stream is closed or fails. Since events may be missed while
+ * disconnected, the periodic full sync is kept as a slower reconciliation fallback.
+ */
+class GatewayEventStreamSubscriber implements WebSocket.Listener {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(GatewayEventStreamSubscriber.class);
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static final String SITE_IDENTIFIER = ApplicationProperties.getString("site_identifier");
+    private static final String EVENT_STREAM_URL = ApplicationProperties.getString("gateway_event_stream_url");
+    private static final Long RECONNECT_DELAY_MS = ApplicationProperties.getLong("gateway_event_stream_reconnect_delay_ms");
+
+    private static final String CLIENT_SYNC_MESSAGE = "sta:sync";
+    private static final String EVENTS_MESSAGE = "events";
+    private static final String AUTHORISATION_ENDED_EVENT_KEY = "EVT_WG_AUTHORIZATION_ENDED";
+
+    private final GatewayActiveDeviceCacheManager cacheManager;
+    private final ScheduledExecutorService service;
+
+    private final AtomicBoolean isReconnectScheduled = new AtomicBoolean(false);
+    // Websocket messages may be delivered in multiple parts, which are accumulated until the last part is received
+    private final StringBuilder messageBuffer = new StringBuilder();
+
+    GatewayEventStreamSubscriber(final GatewayActiveDeviceCacheManager cacheManager, final ScheduledExecutorService service) {
+        this.cacheManager = cacheManager;
+        this.service = service;
+    }
+
+    void start() {
+        LOGGER.info("Starting gateway event stream subscription. [URL: {}]", EVENT_STREAM_URL);
+        service.execute(this::connect);
+    }
+
+    private void connect() {
+        GatewayAuthConnection connection = null;
+        try {
+            // The session is only needed for the handshake, so it is shared and returned to the pool straight away
+            connection = GatewayAuthConnectionManager.borrowSharedConnection();
+            UnifiGatewayClient.openEventStream(connection, EVENT_STREAM_URL, this)
+                    .whenComplete((webSocket, e) -> {
+                        if (e != null) {
+                            LOGGER.warn("Failed to open gateway event stream. Retrying in {}ms.", RECONNECT_DELAY_MS, e);
+                            scheduleReconnect();
+                        }
+                    });
+        } catch (Exception e) {
+            LOGGER.warn("Failed to open gateway event stream. Retrying in {}ms.", RECONNECT_DELAY_MS, e);
+            scheduleReconnect();
+        } finally {
+            if (connection != null) {
+                GatewayAuthConnectionManager.returnSharedConnection(connection);
+            }
+        }
+    }
+
+    private void scheduleReconnect() {
+        if (isReconnectScheduled.compareAndSet(false, true)) {
+            service.schedule(() -> {
+                isReconnectScheduled.set(false);
+                connect();
+            }, RECONNECT_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void onOpen(WebSocket webSocket) {
+        LOGGER.info("Gateway event stream opened.");
+        webSocket.request(1);
+    }
+
+    @Override
+    public CompletionStage<?> onText(WebSocket webSocket, CharSequence data, boolean last) {
+        messageBuffer.append(data);
+        if (last) {
+            final String message = messageBuffer.toString();
+            messageBuffer.setLength(0);
+
+            try {
+                processMessage(MAPPER.readTree(message));
+            } catch (Exception e) {
+                LOGGER.error("Failed to process gateway event stream message. Skipping message. [Message: {}]", message, e);
+            }
+        }
+
+        webSocket.request(1);
+        return null;
+    }
+
+    @Override
+    public CompletionStage<?> onClose(WebSocket webSocket, int statusCode, String reason) {
+        LOGGER.warn("Gateway event stream closed. Reconnecting in {}ms. [Status code: {}, Reason: {}]", RECONNECT_DELAY_MS, statusCode, reason);
+        messageBuffer.setLength(0);
+        scheduleReconnect();
+        return null;
+    }
+
+    @Override
+    public void onError(WebSocket webSocket, Throwable error) {
+        LOGGER.warn("Gateway event stream failed. Reconnecting in {}ms.", RECONNECT_DELAY_MS, error);
+        messageBuffer.setLength(0);
+        scheduleReconnect();
+    }
+
+    private void processMessage(final JsonNode message) {
+        final String messageType = message.path("meta").path("message").asText();
+
+        if (CLIENT_SYNC_MESSAGE.equals(messageType)) {
+            for (JsonNode client : message.path("data")) {
+                processClientSync(client);
+            }
+        } else if (EVENTS_MESSAGE.equals(messageType)) {
+            for (JsonNode event : message.path("data")) {
+                processEvent(event);
+            }
+        }
+    }
+
+    private void processClientSync(final JsonNode client) {
+        final JsonNode authorized = client.get("authorized");
+        // Partial deltas only carry the fields which changed, so a missing field says nothing about the client's state
+        if (authorized == null || !authorized.isBoolean() || !client.hasNonNull("essid")) {
+            return;
+        }
+
+        final UnifiGatewayActiveDevice device = new UnifiGatewayActiveDevice(
+                textOrNull(client, "mac"),
+                textOrNull(client, "ap_mac"),
+                textOrNull(client, "ip"),
+                textOrNull(client, "fixed_ip"),
+                textOrNull(client, "essid"),
+                authorized.booleanValue()
+        );
+
+        if (device.id() == null || !SITE_IDENTIFIER.equals(device.essid())) {
+            return;
+        }
+
+        if (!device.authorized()) {
+            cacheManager.removeAuthorisedDevice(device.id());
+        } else if (device.resolveIp() != null) {
+            cacheManager.addAuthorisedDeviceToCache(device);
+        }
+    }
+
+    private void processEvent(final JsonNode event) {
+        final String eventKey = event.path("key").asText();
+        if (!AUTHORISATION_ENDED_EVENT_KEY.equals(eventKey)) {
+            return;
+        }
+
+        // Guest events identify the client via the guest attribute
+        final String mac = textOrNull(event, "guest");
+        if (mac != null) {
+            LOGGER.debug("Received guest authorisation ended event. [Event: {}, MAC: {}]", eventKey, mac);
+            cacheManager.removeAuthorisedDevice(mac);
+        }
+    }
+
+    private static String textOrNull(final JsonNode node, final String fieldName) {
+        final JsonNode field = node.get(fieldName);
+        return (field != null && !field.isNull()) ? field.asText() : null;
+    }
+
+}
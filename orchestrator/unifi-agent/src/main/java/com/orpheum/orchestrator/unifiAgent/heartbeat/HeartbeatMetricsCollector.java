@@ -0,0 +1,114 @@
+package com.orpheum.orchestrator.unifiAgent.heartbeat;
+
+import com.orpheum.orchestrator.unifiAgent.metrics.AgentMetrics;
+import com.orpheum.orchestrator.unifiAgent.metrics.LatencyHistogram;
+import com.orpheum.orchestrator.unifiAgent.model.GatewayMetricsSummary;
+
+/**
+ * Summarises the agent's metrics over consecutive heartbeat intervals. The agent's metrics are cumulative since startup,
+ * so each collection diffs the current totals against those of the previous collection. Should a heartbeat fail to be
+ * sent, its interval is simply not reported.
+ */
+class HeartbeatMetricsCollector {
+
+    private static final String CAPPORT_REQUESTS = "capport_requests_total";
+    private static final String AUTHORISATIONS = "gateway_authorisations_total";
+    private static final String AUTHORISATION_LATENCY = "gateway_authorisation_duration_seconds";
+    private static final String CONNECTION_WAIT = "gateway_connection_borrow_wait_seconds";
+    private static final String CONNECTION_HOLD = "gateway_connection_hold_seconds";
+    private static final String CONNECTION_BORROW_TIMEOUTS = "gateway_connection_borrow_timeouts_total";
+    private static final String CONNECTIONS = "gateway_connections";
+    private static final String CACHED_DEVICES = "authorised_device_cache_size";
+    private static final String GATEWAY_ERRORS = "unifi_gateway_request_errors_total";
+
+    private Totals previous = Totals.current();
+
+    GatewayMetricsSummary collect() {
+        final Totals current = Totals.current();
+        final Totals interval = current.minus(previous);
+        previous = current;
+
+        final LatencyHistogram.Snapshot authorisationLatency = interval.authorisationLatency();
+        final LatencyHistogram.Snapshot connectionWait = interval.connectionWait();
+        return new GatewayMetricsSummary(
+                interval.timeMs(),
+                interval.capportRequests(),
+                (interval.timeMs() > 0L) ? (interval.capportRequests() * 1000D) / interval.timeMs() : 0D,
+                interval.capportThrottled(),
+                interval.capportErrors(),
+                interval.authorisations(),
+                interval.authorisationFailures(),
+                toMillis(authorisationLatency.valueAtQuantileNanos(0.5)),
+                toMillis(authorisationLatency.valueAtQuantileNanos(0.99)),
+                toMillis(connectionWait.valueAtQuantileNanos(0.5)),
+                toMillis(connectionWait.valueAtQuantileNanos(0.99)),
+                utilisation(interval.connectionHold(), interval.timeMs()),
+                interval.connectionBorrowTimeouts(),
+                (long) AgentMetrics.value(CACHED_DEVICES),
+                interval.gatewayErrors()
+        );
+    }
+
+    private static double toMillis(final long nanos) {
+        return nanos / 1e6;
+    }
+
+    /**
+     * @return the interval's connection time spent borrowed, relative to the connections currently logged in
+     */
+    private static double utilisation(final LatencyHistogram.Snapshot connectionHold, final long intervalMs) {
+        final double connections = AgentMetrics.value(CONNECTIONS);
+        if (intervalMs <= 0L || connections <= 0D) {
+            return 0D;
+        }
+        return Math.min(1D, connectionHold.sumNanos() / (intervalMs * 1e6 * connections));
+    }
+
+    private record Totals(long timeMs,
+                          long capportRequests,
+                          long capportThrottled,
+                          long capportErrors,
+                          long authorisations,
+                          long authorisationFailures,
+                          long gatewayErrors,
+                          long connectionBorrowTimeouts,
+                          LatencyHistogram.Snapshot authorisationLatency,
+                          LatencyHistogram.Snapshot connectionWait,
+                          LatencyHistogram.Snapshot connectionHold) {
+
+        private static Totals current() {
+            return new Totals(
+                    System.currentTimeMillis(),
+                    AgentMetrics.sum(CAPPORT_REQUESTS),
+                    AgentMetrics.sum(CAPPORT_REQUESTS, "outcome", "throttled"),
+                    AgentMetrics.sum(CAPPORT_REQUESTS, "outcome", "error"),
+                    AgentMetrics.sum(AUTHORISATIONS),
+                    AgentMetrics.sum(AUTHORISATIONS, "outcome", "failed"),
+                    AgentMetrics.sum(GATEWAY_ERRORS),
+                    AgentMetrics.sum(CONNECTION_BORROW_TIMEOUTS),
+                    AgentMetrics.snapshot(AUTHORISATION_LATENCY),
+                    AgentMetrics.snapshot(CONNECTION_WAIT),
+                    AgentMetrics.snapshot(CONNECTION_HOLD)
+            );
+        }
+
+        private Totals minus(final Totals earlier) {
+            return new Totals(
+                    // The interval's length
+                    timeMs - earlier.timeMs(),
+                    capportRequests - earlier.capportRequests(),
+                    capportThrottled - earlier.capportThrottled(),
+                    capportErrors - earlier.capportErrors(),
+                    authorisations - earlier.authorisations(),
+                    authorisationFailures - earlier.authorisationFailures(),
+                    gatewayErrors - earlier.gatewayErrors(),
+                    connectionBorrowTimeouts - earlier.connectionBorrowTimeouts(),
+                    authorisationLatency.minus(earlier.authorisationLatency()),
+                    connectionWait.minus(earlier.connectionWait()),
+                    connectionHold.minus(earlier.connectionHold())
+            );
+        }
+
+    }
+
+}
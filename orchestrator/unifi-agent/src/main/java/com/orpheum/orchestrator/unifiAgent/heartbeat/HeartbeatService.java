@@ -8,6 +8,10 @@ import org.slf4j.LoggerFactory;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
+/**
+ * Periodically sends the agent's heartbeat to backstage. Every heartbeat carries a summary of the agent's metrics
+ * since the previous heartbeat, see {@link HeartbeatMetricsCollector}, which backstage stores per site.
+ */
 public class HeartbeatService {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(HeartbeatService.class);
@@ -15,12 +19,14 @@ public class HeartbeatService {
     private static final String HEARTBEAT_TYPE = "GATEWAY";
     private static final String SITE_FRIENDLY_NAME = ApplicationProperties.getString("site_friendly_name");
 
+    private static final HeartbeatMetricsCollector METRICS_COLLECTOR = new HeartbeatMetricsCollector();
+
     public static void start(final ScheduledExecutorService service) {
         LOGGER.info("Started heatbeat service.");
         service.scheduleAtFixedRate(
                 () -> {
                     try {
-                        BackstageClient.sendHeartbeat(HEARTBEAT_TYPE, SITE_FRIENDLY_NAME);
+                        BackstageClient.sendHeartbeat(HEARTBEAT_TYPE, SITE_FRIENDLY_NAME, METRICS_COLLECTOR.collect());
                     } catch (Exception e) {
                         LOGGER.error("Heartbeat service encountered exception. Skipping run.", e);
                     }
@@ -0,0 +1,181 @@
+package com.orpheum.orchestrator.unifiAgent.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Registry of the agent's metrics, rendered in the Prometheus text exposition format by the captive portal state
+ * server's /metrics endpoint. Metrics are registered once, typically as static fields of the instrumented class, and
+ * are then updated on the hot paths without any locking or allocation. The supported metric types are
+ *
+ * <ul>
+ *     <li>Counters, see {@link Counter};</li>
+ *     <li>Latencies, see {@link LatencyHistogram}, which are rendered as a summary of their quantiles, sum and count;</li>
+ *     <li>Gauges and function counters, which are sampled from their supplier only when rendered. These expose values
+ *     which are already tracked elsewhere, e.g. a cache's size or a pool's statistics.</li>
+ * </ul>
+ *
+ * Metrics sharing a name make up a single family, and are told apart by their labels, provided as key/value pairs.
+ * Registering a metric with the same name and labels as an existing one replaces it.
+ */
+public final class AgentMetrics {
+
+    private static final String COUNTER = "counter";
+    private static final String GAUGE = "gauge";
+    private static final String SUMMARY = "summary";
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+
+    // Guarded by itself. Registration only happens on startup, so rendering holding the lock is never contended.
+    private static final Map<String, Family> FAMILIES = new LinkedHashMap<>();
+
+    private AgentMetrics() {
+    }
+
+    public static Counter counter(final String name, final String help, final String... labels) {
+        return register(name, help, COUNTER, labels, new Counter());
+    }
+
+    public static LatencyHistogram latency(final String name, final String help, final String... labels) {
+        return register(name, help, SUMMARY, labels, new LatencyHistogram());
+    }
+
+    public static void gauge(final String name, final String help, final DoubleSupplier supplier, final String... labels) {
+        register(name, help, GAUGE, labels, supplier);
+    }
+
+    public static void functionCounter(final String name, final String help, final LongSupplier supplier, final String... labels) {
+        register(name, help, COUNTER, labels, supplier);
+    }
+
+    /**
+     * @return all registered metrics in the Prometheus text exposition format, version 0.0.4
+     */
+    public static String render() {
+        final StringBuilder output = new StringBuilder(4096);
+        synchronized (FAMILIES) {
+            for (Family family : FAMILIES.values()) {
+                output.append("# HELP ").append(family.name()).append(' ').append(family.help()).append('\n');
+                output.append("# TYPE ").append(family.name()).append(' ').append(family.type()).append('\n');
+                family.metrics().forEach((labels, metric) -> renderMetric(output, family.name(), labels, metric));
+            }
+        }
+        return output.toString();
+    }
+
+    /**
+     * @param labels the labels of the counter to sum, or none to sum the whole family
+     * @return the current value of the counter, or the sum of all counters registered under the name
+     */
+    public static long sum(final String name, final String... labels) {
+        final String formattedLabels = formatLabels(labels);
+        long sum = 0L;
+        synchronized (FAMILIES) {
+            final Family family = FAMILIES.get(name);
+            if (family == null) {
+                return 0L;
+            }
+            for (Map.Entry<String, Object> metric : family.metrics().entrySet()) {
+                if (labels.length > 0 && !metric.getKey().equals(formattedLabels)) {
+                    continue;
+                }
+                if (metric.getValue() instanceof Counter counter) {
+                    sum += counter.sum();
+                } else if (metric.getValue() instanceof LongSupplier supplier) {
+                    sum += supplier.getAsLong();
+                }
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * @return the current value of the unlabelled gauge, or 0 if not registered
+     */
+    public static double value(final String name) {
+        synchronized (FAMILIES) {
+            final Family family = FAMILIES.get(name);
+            return (family != null && family.metrics().get("") instanceof DoubleSupplier supplier) ? supplier.getAsDouble() : 0D;
+        }
+    }
+
+    /**
+     * @return a snapshot of the latency, combined across all labels registered under the name
+     */
+    public static LatencyHistogram.Snapshot snapshot(final String name) {
+        LatencyHistogram.Snapshot snapshot = LatencyHistogram.emptySnapshot();
+        synchronized (FAMILIES) {
+            final Family family = FAMILIES.get(name);
+            if (family != null) {
+                for (Object metric : family.metrics().values()) {
+                    if (metric instanceof LatencyHistogram histogram) {
+                        snapshot = snapshot.plus(histogram.snapshot());
+                    }
+                }
+            }
+        }
+        return snapshot;
+    }
+
+    private static void renderMetric(final StringBuilder output, final String name, final String labels, final Object metric) {
+        if (metric instanceof Counter counter) {
+            appendSample(output, name, labels, null, counter.sum());
+        } else if (metric instanceof LongSupplier supplier) {
+            appendSample(output, name, labels, null, supplier.getAsLong());
+        } else if (metric instanceof DoubleSupplier supplier) {
+            appendSample(output, name, labels, null, supplier.getAsDouble());
+        } else if (metric instanceof LatencyHistogram histogram) {
+            final LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+            for (double quantile : QUANTILES) {
+                appendSample(output, name, labels, "quantile=\"" + quantile + "\"", snapshot.valueAtQuantileNanos(quantile) / 1e9);
+            }
+            appendSample(output, name + "_sum", labels, null, snapshot.sumNanos() / 1e9);
+            appendSample(output, name + "_count", labels, null, snapshot.count());
+        }
+    }
+
+    private static void appendSample(final StringBuilder output, final String name, final String labels, final String extraLabel, final Object value) {
+        output.append(name);
+        if (!labels.isEmpty() || extraLabel != null) {
+            output.append('{').append(labels);
+            if (extraLabel != null) {
+                output.append(labels.isEmpty() ? "" : ",").append(extraLabel);
+            }
+            output.append('}');
+        }
+        output.append(' ').append(value).append('\n');
+    }
+
+    private static <T> T register(final String name, final String help, final String type, final String[] labels, final T metric) {
+        synchronized (FAMILIES) {
+            final Family family = FAMILIES.computeIfAbsent(name, key -> new Family(name, help, type, new LinkedHashMap<>()));
+            if (!family.type().equals(type)) {
+                throw new IllegalArgumentException(String.format("Metric already registered with a different type. [Name: %s, Type: %s, Registered type: %s]", name, type, family.type()));
+            }
+            family.metrics().put(formatLabels(labels), metric);
+        }
+        return metric;
+    }
+
+    private static String formatLabels(final String[] labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Metric labels must be provided as key/value pairs.");
+        }
+
+        final StringBuilder formatted = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) {
+                formatted.append(',');
+            }
+            formatted.append(labels[i]).append("=\"")
+                    .append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"))
+                    .append('"');
+        }
+        return formatted.toString();
+    }
+
+    private record Family(String name, String help, String type, Map<String, Object> metrics) { }
+
+}
@@ -0,0 +1,28 @@
+package com.orpheum.orchestrator.unifiAgent.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A monotonically increasing counter. Backed by a {@link LongAdder}, so that concurrent increments on the hot paths
+ * never contend on a single memory location.
+ */
+public final class Counter {
+
+    private final LongAdder value = new LongAdder();
+
+    Counter() {
+    }
+
+    public void increment() {
+        value.increment();
+    }
+
+    public void add(final long delta) {
+        value.add(delta);
+    }
+
+    public long sum() {
+        return value.sum();
+    }
+
+}
@@ -0,0 +1,149 @@
+package com.orpheum.orchestrator.unifiAgent.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records latencies into a fixed set of log-linear buckets, in the spirit of HdrHistogram. Latencies are tracked at
+ * microsecond resolution, with every power of two range being split into 16 linear sub-buckets, so that any recorded
+ * latency is reported to within ~6% of its actual value, from 1us up to well over a day.
+ *
+ * Recording is a single atomic increment on a pre-allocated array, i.e. it never locks nor allocates. Quantiles are
+ * computed from a {@link Snapshot} of the buckets, and are hence only ever computed when the metrics are rendered.
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    // Latencies beyond 2^37us (~38 hours) are recorded within the last bucket
+    private static final int MAX_EXPONENT = 36;
+    private static final long MAX_TRACKED_MICROS = (1L << (MAX_EXPONENT + 1)) - 1;
+    private static final int BUCKET_COUNT = bucketIndex(MAX_TRACKED_MICROS) + 1;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder sumNanos = new LongAdder();
+
+    LatencyHistogram() {
+    }
+
+    public void recordNanos(final long nanos) {
+        final long clampedNanos = Math.max(0L, nanos);
+        buckets.incrementAndGet(bucketIndex(Math.min(clampedNanos / 1_000L, MAX_TRACKED_MICROS)));
+        sumNanos.add(clampedNanos);
+    }
+
+    /**
+     * @param startNanos a {@link System#nanoTime()} taken when the measured operation started
+     */
+    public void recordSince(final long startNanos) {
+        recordNanos(System.nanoTime() - startNanos);
+    }
+
+    static Snapshot emptySnapshot() {
+        return new Snapshot(new long[BUCKET_COUNT], 0L);
+    }
+
+    public Snapshot snapshot() {
+        final long[] counts = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = buckets.get(i);
+        }
+        return new Snapshot(counts, sumNanos.sum());
+    }
+
+    private static int bucketIndex(final long micros) {
+        if (micros < SUB_BUCKET_COUNT) {
+            return (int) micros;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        final int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1);
+        return ((exponent - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS) + subBucket;
+    }
+
+    private static long bucketLowerBoundMicros(final int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        final int exponent = (index >>> SUB_BUCKET_BITS) + SUB_BUCKET_BITS - 1;
+        final long subBucket = index & (SUB_BUCKET_COUNT - 1);
+        return (SUB_BUCKET_COUNT + subBucket) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    /**
+     * A point in time copy of the histogram's buckets.
+     */
+    public static final class Snapshot {
+
+        private final long[] counts;
+        private final long count;
+        private final long sumNanos;
+
+        private Snapshot(final long[] counts, final long sumNanos) {
+            this.counts = counts;
+            this.sumNanos = sumNanos;
+
+            long count = 0L;
+            for (long bucketCount : counts) {
+                count += bucketCount;
+            }
+            this.count = count;
+        }
+
+        /**
+         * @return the latencies recorded since the provided, earlier, snapshot of the same histogram
+         */
+        public Snapshot minus(final Snapshot earlier) {
+            final long[] intervalCounts = new long[counts.length];
+            for (int i = 0; i < counts.length; i++) {
+                intervalCounts[i] = counts[i] - earlier.counts[i];
+            }
+            return new Snapshot(intervalCounts, sumNanos - earlier.sumNanos);
+        }
+
+        /**
+         * @return the latencies recorded within either snapshot, e.g. to combine the same latency across labels
+         */
+        public Snapshot plus(final Snapshot other) {
+            final long[] combinedCounts = new long[counts.length];
+            for (int i = 0; i < counts.length; i++) {
+                combinedCounts[i] = counts[i] + other.counts[i];
+            }
+            return new Snapshot(combinedCounts, sumNanos + other.sumNanos);
+        }
+
+        public long count() {
+            return count;
+        }
+
+        public long sumNanos() {
+            return sumNanos;
+        }
+
+        /**
+         * @param quantile the quantile, between 0 and 1, e.g. 0.99
+         * @return the highest latency which is equivalent to the quantile's bucket, in nanoseconds, or 0 if nothing was
+         * recorded
+         */
+        public long valueAtQuantileNanos(final double quantile) {
+            if (count == 0L) {
+                return 0L;
+            }
+
+            final long rank = Math.max(1L, (long) Math.ceil(quantile * count));
+            long cumulativeCount = 0L;
+            for (int i = 0; i < counts.length; i++) {
+                cumulativeCount += counts[i];
+                if (cumulativeCount >= rank) {
+                    return highestEquivalentMicros(i) * 1_000L;
+                }
+            }
+            return highestEquivalentMicros(counts.length - 1) * 1_000L;
+        }
+
+        private static long highestEquivalentMicros(final int index) {
+            return (index == BUCKET_COUNT - 1) ? MAX_TRACKED_MICROS : bucketLowerBoundMicros(index + 1) - 1;
+        }
+
+    }
+
+}
@@ -0,0 +1,18 @@
+package com.orpheum.orchestrator.unifiAgent.model;
+
+import java.util.List;
+
+/**
+ * The pending authorisation requests returned by a backstage long poll request.
+ *
+ * @param requests the pending authorisation requests for this agent's site
+ * @param version  the site's pending authorisation version as reported by backstage, or null if backstage does not
+ *                 support long polling
+ */
+public record BackstagePendingAuthorisations(List<BackstageAuthorisationRequest> requests, Long version) {
+
+    public boolean isLongPollSupported() {
+        return version != null;
+    }
+
+}
@@ -17,8 +17,7 @@ public record GatewayAuthConnection(
         String csrfToken,
         Instant lastAuthenticatedTime,
         String username,
-        String password,
-        Integer failureCount
+        String password
 ) {
     /**
      * Constructs a new GatewayAuthConnection with the provided authentication details.
@@ -27,7 +26,7 @@ public record GatewayAuthConnection(
      * @param password The password used for authentication
      */
     public GatewayAuthConnection(String username, String password) {
-        this(null, null, Instant.MIN, username, password, 0);
+        this(null, null, Instant.MIN, username, password);
     }
 
     public boolean isNew() {
@@ -52,10 +51,6 @@ public record GatewayAuthConnection(
      * @return A new AuthConnection with updated authentication details
      */
     public GatewayAuthConnection refresh(String cookie, String csrfToken) {
-        return new GatewayAuthConnection(cookie, csrfToken, Instant.now(), username, password, 0);
-    }
-
-    public GatewayAuthConnection failed(GatewayAuthConnection connection) {
-        return new GatewayAuthConnection(null, null, Instant.MIN, connection.username, connection.password, connection.failureCount + 1);
+        return new GatewayAuthConnection(cookie, csrfToken, Instant.now(), username, password);
     }
 }
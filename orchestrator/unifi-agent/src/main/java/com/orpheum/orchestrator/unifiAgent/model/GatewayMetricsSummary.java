@@ -0,0 +1,37 @@
+package com.orpheum.orchestrator.unifiAgent.model;
+
+/**
+ * An aggregated summary of the agent's metrics over a single heartbeat interval, shipped to backstage with the
+ * heartbeat. Counts cover the interval only, whereas latencies are the interval's quantiles in milliseconds.
+ *
+ * @param intervalMs                The length of the interval summarised
+ * @param capportRequests           The captive portal state requests received
+ * @param capportRequestsPerSecond  The captive portal state requests received per second
+ * @param capportThrottled          The captive portal state requests which were throttled
+ * @param capportErrors             The captive portal state requests which failed
+ * @param authorisations            The backstage authorisation requests processed
+ * @param authorisationFailures     The backstage authorisation requests which failed
+ * @param authorisationP50Ms        The median end to end authorisation latency
+ * @param authorisationP99Ms        The 99th percentile end to end authorisation latency
+ * @param connectionWaitP50Ms       The median wait for a gateway admin connection
+ * @param connectionWaitP99Ms       The 99th percentile wait for a gateway admin connection
+ * @param connectionUtilisation     The ratio of the interval's gateway admin connection time spent borrowed
+ * @param connectionBorrowTimeouts  The callers which gave up waiting for a gateway admin connection
+ * @param cachedDevices             The authorised devices cached at the end of the interval
+ * @param gatewayErrors             The UniFi gateway calls which failed
+ */
+public record GatewayMetricsSummary(long intervalMs,
+                                    long capportRequests,
+                                    double capportRequestsPerSecond,
+                                    long capportThrottled,
+                                    long capportErrors,
+                                    long authorisations,
+                                    long authorisationFailures,
+                                    double authorisationP50Ms,
+                                    double authorisationP99Ms,
+                                    double connectionWaitP50Ms,
+                                    double connectionWaitP99Ms,
+                                    double connectionUtilisation,
+                                    long connectionBorrowTimeouts,
+                                    long cachedDevices,
+                                    long gatewayErrors) { }
@@ -0,0 +1,106 @@
+package com.orpheum.orchestrator.unifiAgent.spool;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.orpheum.orchestrator.unifiAgent.model.BackstageLogEntry;
+import com.orpheum.orchestrator.unifiAgent.model.GatewayAuthorisationOutcome;
+import com.orpheum.orchestrator.unifiAgent.support.ApplicationProperties;
+import com.orpheum.orchestrator.unifiAgent.support.BackstageClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spools log batches and authorisation outcome notifications which could not be sent to backstage to local disk, see
+ * {@link DiskSpool}, replaying them in order once backstage is reachable again. This ensures that neither outcomes nor
+ * diagnostics are lost during backstage outages, or across agent restarts while backstage is unreachable.
+ *
+ * Logs and outcomes are spooled separately, each replayed every `backstage_spool_replay_delay_ms` until its spool is
+ * empty. A failed replay backs off exponentially, up to `backstage_spool_replay_max_backoff_ms`, before being attempted
+ * again. Each spool is bounded by `backstage_spool_quota_bytes`, beyond which its oldest entries are dropped. Entries
+ * which backstage rejects outright are discarded rather than retried, see {@link SpoolReplay}.
+ */
+public class BackstageSpool {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BackstageSpool.class);
+
+    private static final Path DIRECTORY = Path.of(ApplicationProperties.getString("backstage_spool_directory"));
+    private static final Long REPLAY_DELAY_MS = ApplicationProperties.getLong("backstage_spool_replay_delay_ms");
+    private static final Long REPLAY_MAX_BACKOFF_MS = ApplicationProperties.getLong("backstage_spool_replay_max_backoff_ms");
+
+    private static final SpoolReplay<List<BackstageLogEntry>> LOGS = newReplay("logs", new TypeReference<>() {}, BackstageClient::sendLogs);
+    private static final SpoolReplay<GatewayAuthorisationOutcome> OUTCOMES = newReplay("outcomes", new TypeReference<>() {}, BackstageClient::notifyAuthorisationOutcome);
+
+    public static void start(final ScheduledExecutorService service) {
+        final Long fsyncIntervalMs = ApplicationProperties.getLong("backstage_spool_fsync_interval_ms");
+        service.scheduleWithFixedDelay(BackstageSpool::sync, fsyncIntervalMs, fsyncIntervalMs, TimeUnit.MILLISECONDS);
+        // Entries left behind by a previous run are replayed straight away
+        service.scheduleWithFixedDelay(BackstageSpool::replay, 0L, REPLAY_DELAY_MS, TimeUnit.MILLISECONDS);
+
+        LOGGER.info("Started backstage spool. [Directory: {}, Pending log bytes: {}, Pending outcome bytes: {}]", DIRECTORY, LOGS.pendingBytes(), OUTCOMES.pendingBytes());
+    }
+
+    /**
+     * Spools a log batch for replay.
+     *
+     * @return whether the batch was spooled
+     */
+    public static boolean spoolLogs(final List<BackstageLogEntry> logEntries) {
+        return LOGS.spool(logEntries);
+    }
+
+    /**
+     * Spools an authorisation outcome notification for replay.
+     *
+     * @return whether the outcome was spooled
+     */
+    public static boolean spoolOutcome(final GatewayAuthorisationOutcome outcome) {
+        return OUTCOMES.spool(outcome);
+    }
+
+    /**
+     * @return whether spooled log batches are pending replay, in which case newer batches should be spooled behind them
+     */
+    public static boolean hasPendingLogs() {
+        return LOGS.pendingBytes() > 0L;
+    }
+
+    public static void shutdown() {
+        LOGS.close();
+        OUTCOMES.close();
+        LOGGER.debug("Stopped BackstageSpool");
+    }
+
+    private static void sync() {
+        LOGS.sync();
+        OUTCOMES.sync();
+    }
+
+    private static void replay() {
+        OUTCOMES.replay();
+        LOGS.replay();
+    }
+
+    private static <T> SpoolReplay<T> newReplay(final String name, final TypeReference<T> type, final SpoolReplay.Sender<T> sender) {
+        return new SpoolReplay<>(name, type, sender, open(name), REPLAY_DELAY_MS, REPLAY_MAX_BACKOFF_MS);
+    }
+
+    private static DiskSpool open(final String name) {
+        final Path directory = DIRECTORY.resolve(name);
+        try {
+            return DiskSpool.open(
+                    directory,
+                    ApplicationProperties.getLong("backstage_spool_segment_bytes"),
+                    ApplicationProperties.getLong("backstage_spool_quota_bytes")
+            );
+        } catch (IOException e) {
+            LOGGER.error("Failed to open backstage spool. Entries failing to be sent to backstage will be dropped. [Directory: {}]", directory, e);
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,420 @@
+package com.orpheum.orchestrator.unifiAgent.spool;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only, first in first out queue of records persisted to local disk, bounded by a disk quota.
+ *
+ * Records are appended to numbered segment files, each record framed by its length and a CRC32 checksum of its
+ * payload. Once a segment reaches its maximum size, a new segment is started. Records are read back in order from a
+ * read cursor, and segments are deleted as soon as they have been fully read. Should the quota be reached, the oldest
+ * segments are dropped, whether read or not, to make room for new records.
+ *
+ * Neither appended records nor read cursor updates are forced to disk straight away. Both are instead forced on
+ * {@link #sync()}, which is expected to be invoked periodically, batching the cost of fsync across all records appended
+ * or acknowledged in between. Records are hence delivered at least once: should the process crash, records appended
+ * since the last sync may be lost, whereas records acknowledged since the last sync are read again. On open, a
+ * partially written record at the end of the latest segment is truncated.
+ *
+ * All operations are synchronized, since the spool is only used while its consumer is failing to keep up.
+ */
+final class DiskSpool {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DiskSpool.class);
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String CURSOR_FILE_NAME = "cursor";
+    private static final int RECORD_HEADER_BYTES = 2 * Integer.BYTES;
+    private static final int CURSOR_BYTES = 3 * Long.BYTES;
+    private static final int MAX_RECORD_BYTES = 16 * 1024 * 1024;
+
+    private final Path directory;
+    private final long segmentBytes;
+    private final long quotaBytes;
+
+    // Segment numbers mapped to their size, oldest first. Always holds at least the segment being written to.
+    private final TreeMap<Long, Long> segments = new TreeMap<>();
+
+    private FileChannel writer;
+    private long writeSegment;
+    private FileChannel reader;
+    private long readSegment;
+    private long readOffset;
+
+    private boolean isWriterDirty;
+    private boolean isCursorDirty;
+    private boolean isClosed;
+
+    // Written under lock, read lock free by metrics
+    private volatile long totalBytes;
+    private volatile long pendingBytes;
+    private volatile long droppedBytes;
+
+    private DiskSpool(final Path directory, final long segmentBytes, final long quotaBytes) {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.quotaBytes = quotaBytes;
+    }
+
+    /**
+     * Opens the spool within the given directory, creating it if necessary and resuming from its read cursor otherwise.
+     *
+     * @param directory    the directory holding the spool's segments and read cursor
+     * @param segmentBytes the maximum size of a single segment
+     * @param quotaBytes   the maximum size of all segments combined
+     */
+    static DiskSpool open(final Path directory, final long segmentBytes, final long quotaBytes) throws IOException {
+        final DiskSpool spool = new DiskSpool(directory, segmentBytes, quotaBytes);
+        spool.recover();
+        return spool;
+    }
+
+    private void recover() throws IOException {
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                final String fileName = file.getFileName().toString();
+                try {
+                    segments.put(Long.parseLong(fileName.substring(0, fileName.length() - SEGMENT_SUFFIX.length())), Files.size(file));
+                } catch (NumberFormatException e) {
+                    LOGGER.warn("Ignoring unrecognised file within spool directory. [Path: {}]", file);
+                }
+            }
+        }
+
+        if (segments.isEmpty()) {
+            segments.put(1L, 0L);
+        }
+        writeSegment = segments.lastKey();
+        // A crash mid-append may leave a partially written record behind, which is truncated along with anything after it
+        final long validBytes = validBytes(writeSegment);
+        writer = FileChannel.open(segmentPath(writeSegment), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        if (validBytes < writer.size()) {
+            LOGGER.warn("Truncating partially written spool record. [Path: {}, Size: {}, Valid size: {}]", segmentPath(writeSegment), writer.size(), validBytes);
+            writer.truncate(validBytes);
+        }
+        writer.position(validBytes);
+        segments.put(writeSegment, validBytes);
+
+        readCursor();
+        updateSizes();
+    }
+
+    private void readCursor() throws IOException {
+        readSegment = segments.firstKey();
+        readOffset = 0L;
+
+        final Path cursorPath = directory.resolve(CURSOR_FILE_NAME);
+        if (!Files.exists(cursorPath)) {
+            return;
+        }
+
+        final ByteBuffer cursor = ByteBuffer.wrap(Files.readAllBytes(cursorPath));
+        if (cursor.remaining() != CURSOR_BYTES) {
+            LOGGER.warn("Ignoring truncated spool read cursor. Replaying from the oldest segment. [Path: {}]", cursorPath);
+            return;
+        }
+        final long segment = cursor.getLong();
+        final long offset = cursor.getLong();
+        if (cursor.getLong() != checksum(segment, offset)) {
+            LOGGER.warn("Ignoring corrupt spool read cursor. Replaying from the oldest segment. [Path: {}]", cursorPath);
+            return;
+        }
+
+        // Segments preceding the cursor may not have been deleted before a crash, and are simply read again
+        if (segments.containsKey(segment)) {
+            readSegment = segment;
+            readOffset = Math.min(offset, segments.get(segment));
+        }
+    }
+
+    /**
+     * Appends the record, dropping the oldest segments should the quota be exceeded.
+     */
+    synchronized void append(final byte[] payload) throws IOException {
+        ensureOpen();
+        final long recordBytes = RECORD_HEADER_BYTES + (long) payload.length;
+        if (payload.length > MAX_RECORD_BYTES || recordBytes > quotaBytes) {
+            throw new IOException(String.format("Record exceeds the spool's limits. [Size: %s, Quota: %s]", payload.length, quotaBytes));
+        }
+
+        if (segments.get(writeSegment) > 0L && segments.get(writeSegment) + recordBytes > segmentBytes) {
+            roll();
+        }
+        while (totalBytes + recordBytes > quotaBytes) {
+            if (segments.size() == 1) {
+                roll();
+            }
+            dropOldestSegment();
+        }
+
+        final ByteBuffer record = ByteBuffer.allocate((int) recordBytes);
+        record.putInt(payload.length);
+        record.putInt(checksum(payload, payload.length));
+        record.put(payload);
+        record.flip();
+        while (record.hasRemaining()) {
+            writer.write(record);
+        }
+
+        segments.merge(writeSegment, recordBytes, Long::sum);
+        isWriterDirty = true;
+        updateSizes();
+    }
+
+    /**
+     * @return the oldest record yet to be acknowledged, or null if all records have been acknowledged
+     */
+    synchronized Record peek() throws IOException {
+        ensureOpen();
+        while (true) {
+            final long segmentSize = segments.get(readSegment);
+            if (readOffset < segmentSize) {
+                final byte[] payload = readRecord(readSegment, readOffset, segmentSize);
+                if (payload != null) {
+                    return new Record(readSegment, readOffset, payload);
+                }
+
+                LOGGER.warn("Skipping the remainder of a corrupt spool segment. [Path: {}, Offset: {}]", segmentPath(readSegment), readOffset);
+                droppedBytes += segmentSize - readOffset;
+                readOffset = segmentSize;
+                isCursorDirty = true;
+                updateSizes();
+                continue;
+            }
+
+            if (readSegment == writeSegment) {
+                return null;
+            }
+            deleteSegment(readSegment);
+        }
+    }
+
+    /**
+     * Acknowledges the given record, moving the read cursor past it. Records which have since been dropped, or which
+     * have already been acknowledged, are ignored.
+     */
+    synchronized void acknowledge(final Record record) {
+        if (isClosed || record.segment() != readSegment || record.offset() != readOffset) {
+            return;
+        }
+        readOffset += RECORD_HEADER_BYTES + record.payload().length;
+        isCursorDirty = true;
+        updateSizes();
+    }
+
+    /**
+     * Forces any records appended, and the read cursor's position, to disk.
+     */
+    synchronized void sync() throws IOException {
+        if (isClosed) {
+            return;
+        }
+        if (isWriterDirty) {
+            writer.force(false);
+            isWriterDirty = false;
+        }
+        if (isCursorDirty) {
+            writeCursor();
+            isCursorDirty = false;
+        }
+    }
+
+    synchronized void close() throws IOException {
+        if (isClosed) {
+            return;
+        }
+        try {
+            sync();
+        } finally {
+            isClosed = true;
+            closeReader();
+            writer.close();
+        }
+    }
+
+    /**
+     * @return whether all appended records have been acknowledged
+     */
+    boolean isEmpty() {
+        return pendingBytes == 0L;
+    }
+
+    /**
+     * @return the size of the records yet to be acknowledged
+     */
+    long pendingBytes() {
+        return pendingBytes;
+    }
+
+    /**
+     * @return the size of the records dropped, either to remain within quota or due to corruption
+     */
+    long droppedBytes() {
+        return droppedBytes;
+    }
+
+    private byte[] readRecord(final long segment, final long offset, final long segmentSize) throws IOException {
+        if (segmentSize - offset < RECORD_HEADER_BYTES) {
+            return null;
+        }
+        if (reader == null) {
+            reader = FileChannel.open(segmentPath(segment), StandardOpenOption.READ);
+        }
+
+        final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+        readFully(header, offset);
+        final int length = header.getInt(0);
+        final int checksum = header.getInt(Integer.BYTES);
+        if (length < 0 || length > MAX_RECORD_BYTES || segmentSize - offset - RECORD_HEADER_BYTES < length) {
+            return null;
+        }
+
+        final ByteBuffer payload = ByteBuffer.allocate(length);
+        readFully(payload, offset + RECORD_HEADER_BYTES);
+        return (checksum(payload.array(), length) == checksum) ? payload.array() : null;
+    }
+
+    private void readFully(final ByteBuffer buffer, final long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (reader.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException(String.format("Unexpected end of spool segment. [Path: %s]", segmentPath(readSegment)));
+            }
+        }
+    }
+
+    /**
+     * @return the size of the segment's leading run of intact records
+     */
+    private long validBytes(final long segment) throws IOException {
+        final Path path = segmentPath(segment);
+        if (!Files.exists(path)) {
+            return 0L;
+        }
+
+        final ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(path));
+        while (bytes.remaining() >= RECORD_HEADER_BYTES) {
+            final int start = bytes.position();
+            final int length = bytes.getInt();
+            final int checksum = bytes.getInt();
+            if (length < 0 || length > bytes.remaining() || checksum(bytes.array(), bytes.position(), length) != checksum) {
+                return start;
+            }
+            bytes.position(bytes.position() + length);
+        }
+        return bytes.position();
+    }
+
+    private void roll() throws IOException {
+        writer.force(false);
+        writer.close();
+        isWriterDirty = false;
+
+        writeSegment++;
+        segments.put(writeSegment, 0L);
+        writer = FileChannel.open(segmentPath(writeSegment), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    private void dropOldestSegment() throws IOException {
+        final Map.Entry<Long, Long> oldest = segments.firstEntry();
+        droppedBytes += (oldest.getKey() == readSegment) ? oldest.getValue() - readOffset : oldest.getValue();
+        LOGGER.warn("Spool quota exceeded. Dropping oldest segment. [Path: {}, Quota: {}]", segmentPath(oldest.getKey()), quotaBytes);
+        deleteSegment(oldest.getKey());
+    }
+
+    private void deleteSegment(final long segment) throws IOException {
+        segments.remove(segment);
+        if (segment == readSegment) {
+            closeReader();
+            readSegment = segments.firstKey();
+            readOffset = 0L;
+            isCursorDirty = true;
+        }
+        Files.deleteIfExists(segmentPath(segment));
+        updateSizes();
+    }
+
+    private void closeReader() throws IOException {
+        if (reader != null) {
+            reader.close();
+            reader = null;
+        }
+    }
+
+    private void writeCursor() throws IOException {
+        final ByteBuffer cursor = ByteBuffer.allocate(CURSOR_BYTES);
+        cursor.putLong(readSegment);
+        cursor.putLong(readOffset);
+        cursor.putLong(checksum(readSegment, readOffset));
+        cursor.flip();
+
+        final Path cursorPath = directory.resolve(CURSOR_FILE_NAME);
+        final Path temporaryPath = directory.resolve(CURSOR_FILE_NAME + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporaryPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (cursor.hasRemaining()) {
+                channel.write(cursor);
+            }
+            channel.force(false);
+        }
+        Files.move(temporaryPath, cursorPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void updateSizes() {
+        long total = 0L;
+        for (long size : segments.values()) {
+            total += size;
+        }
+        totalBytes = total;
+        // Segments preceding the read segment have always been deleted
+        pendingBytes = total - readOffset;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (isClosed) {
+            throw new IOException(String.format("Spool has been closed. [Path: %s]", directory));
+        }
+    }
+
+    private Path segmentPath(final long segment) {
+        return directory.resolve(String.format("%020d%s", segment, SEGMENT_SUFFIX));
+    }
+
+    private static int checksum(final byte[] bytes, final int length) {
+        return checksum(bytes, 0, length);
+    }
+
+    private static int checksum(final byte[] bytes, final int offset, final int length) {
+        final CRC32 checksum = new CRC32();
+        checksum.update(bytes, offset, length);
+        return (int) checksum.getValue();
+    }
+
+    private static long checksum(final long segment, final long offset) {
+        final CRC32 checksum = new CRC32();
+        checksum.update(ByteBuffer.allocate(2 * Long.BYTES).putLong(segment).putLong(offset).array());
+        return checksum.getValue();
+    }
+
+    /**
+     * A record read from the spool.
+     *
+     * @param segment the number of the segment holding the record
+     * @param offset  the record's offset within its segment
+     * @param payload the record's payload
+     */
+    record Record(long segment, long offset, byte[] payload) { }
+
+}
@@ -0,0 +1,156 @@
+package com.orpheum.orchestrator.unifiAgent.spool;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.orpheum.orchestrator.unifiAgent.metrics.AgentMetrics;
+import com.orpheum.orchestrator.unifiAgent.metrics.Counter;
+import com.orpheum.orchestrator.unifiAgent.support.BackstageRequestException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+
+/**
+ * A single spool along with its replay state, see {@link BackstageSpool}. Replays only ever run on a single thread at a
+ * time.
+ *
+ * Entries are replayed in order, each acknowledged once sent. An entry which cannot be read back, or which backstage
+ * rejects with a non-retryable status code, is discarded and counted as failed, since replaying it again would only
+ * block every entry spooled behind it. Any other failure, such as an I/O error or a server error, backs off and leaves
+ * the entry to be replayed on the next attempt.
+ */
+final class SpoolReplay<T> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SpoolReplay.class);
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final String name;
+    private final TypeReference<T> type;
+    private final Sender<T> sender;
+    private final DiskSpool spool;
+    private final long replayDelayMs;
+    private final long replayMaxBackoffMs;
+
+    private final Counter spooled;
+    private final Counter replayed;
+    private final Counter failed;
+
+    private long backoffMs = 0L;
+    private long nextAttemptMs = 0L;
+
+    /**
+     * @param spool the spool to replay, or null if it could not be opened, in which case entries are dropped
+     */
+    SpoolReplay(final String name, final TypeReference<T> type, final Sender<T> sender, final DiskSpool spool, final long replayDelayMs, final long replayMaxBackoffMs) {
+        this.name = name;
+        this.type = type;
+        this.sender = sender;
+        this.spool = spool;
+        this.replayDelayMs = replayDelayMs;
+        this.replayMaxBackoffMs = replayMaxBackoffMs;
+
+        spooled = AgentMetrics.counter("backstage_spooled_total", "Entries spooled to disk after failing to be sent to backstage, by spool", "spool", name);
+        replayed = AgentMetrics.counter("backstage_spool_replayed_total", "Spooled entries successfully replayed to backstage, by spool", "spool", name);
+        failed = AgentMetrics.counter("backstage_spool_failures_total", "Entries which could not be spooled, or were discarded as unreadable or rejected by backstage on replay, by spool", "spool", name);
+        AgentMetrics.gauge("backstage_spool_pending_bytes", "Size of the spooled entries pending replay to backstage, by spool", this::pendingBytes, "spool", name);
+        AgentMetrics.functionCounter("backstage_spool_dropped_bytes_total", "Size of the spooled entries dropped to remain within the disk quota, by spool", () -> (spool != null) ? spool.droppedBytes() : 0L, "spool", name);
+    }
+
+    boolean spool(final T entry) {
+        if (spool == null) {
+            failed.increment();
+            return false;
+        }
+
+        try {
+            spool.append(MAPPER.writeValueAsBytes(entry));
+            spooled.increment();
+            return true;
+        } catch (IOException e) {
+            LOGGER.error("Failed to spool entry. Dropping. [Spool: {}]", name, e);
+            failed.increment();
+            return false;
+        }
+    }
+
+    void replay() {
+        if (spool == null || spool.isEmpty() || System.currentTimeMillis() < nextAttemptMs) {
+            return;
+        }
+
+        try {
+            DiskSpool.Record record;
+            while ((record = spool.peek()) != null) {
+                final T entry;
+                try {
+                    entry = MAPPER.readValue(record.payload(), type);
+                } catch (IOException e) {
+                    LOGGER.error("Discarding unreadable spooled entry. [Spool: {}]", name, e);
+                    failed.increment();
+                    spool.acknowledge(record);
+                    continue;
+                }
+
+                try {
+                    sender.send(entry);
+                } catch (BackstageRequestException e) {
+                    if (e.isRetryable()) {
+                        throw e;
+                    }
+                    LOGGER.error("Discarding spooled entry rejected by backstage. [Spool: {}, Status code: {}]", name, e.getStatusCode(), e);
+                    failed.increment();
+                    spool.acknowledge(record);
+                    continue;
+                }
+                spool.acknowledge(record);
+                replayed.increment();
+            }
+
+            if (backoffMs > 0L) {
+                LOGGER.info("Replayed all spooled entries to backstage. [Spool: {}]", name);
+            }
+            backoffMs = 0L;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            backoffMs = (backoffMs == 0L) ? replayDelayMs : Math.min(backoffMs * 2, replayMaxBackoffMs);
+            nextAttemptMs = System.currentTimeMillis() + backoffMs;
+            LOGGER.warn("Failed to replay spooled entries to backstage. Backing off. [Spool: {}, Pending bytes: {}, Backoff: {}ms]", name, spool.pendingBytes(), backoffMs, e);
+        }
+    }
+
+    void sync() {
+        if (spool == null) {
+            return;
+        }
+
+        try {
+            spool.sync();
+        } catch (IOException e) {
+            LOGGER.error("Failed to sync backstage spool. Skipping run. [Spool: {}]", name, e);
+        }
+    }
+
+    void close() {
+        if (spool == null) {
+            return;
+        }
+
+        try {
+            spool.close();
+        } catch (IOException e) {
+            LOGGER.error("Failed to close backstage spool. [Spool: {}]", name, e);
+        }
+    }
+
+    double pendingBytes() {
+        return (spool != null) ? spool.pendingBytes() : 0D;
+    }
+
+    @FunctionalInterface
+    interface Sender<T> {
+        void send(T entry) throws IOException, InterruptedException;
+    }
+
+}
@@ -3,6 +3,7 @@ package com.orpheum.orchestrator.unifiAgent.support;
 import com.orpheum.orchestrator.unifiAgent.auth.GatewayAuthConnectionManager;
 import com.orpheum.orchestrator.unifiAgent.capport.CaptivePortalDeviceStateServer;
 import com.orpheum.orchestrator.unifiAgent.gateway.GatewayAuthorisationService;
+import com.orpheum.orchestrator.unifiAgent.spool.BackstageSpool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -25,6 +26,7 @@ import java.util.concurrent.atomic.AtomicLong;
  *     <li>printAuthConnections - True grabs the admin connections available and prints them to command line.</li>
  *     <li>clearAuthorisedDevicesCache - True clears any authorised devices in the cache</li>
  *     <li>printAuthorisedDevicesCache - True prings any authorised devices within the cache</li>
+ *     <li>printCapportStats - True prints the captive portal state server's request statistics</li>
  * </ul>
  */
 public class AgentControlManager {
@@ -34,6 +36,7 @@ public class AgentControlManager {
     private static final AtomicBoolean IS_SHUTDOWN_TRIGGERED = new AtomicBoolean(false);
     private static final AtomicLong LAST_CONNECTION_VIEW = new AtomicLong(0L);
     private static final AtomicLong LAST_AUTHORISED_DEVICES_CACHE_VIEW = new AtomicLong(0L);
+    private static final AtomicLong LAST_CAPPORT_STATS_VIEW = new AtomicLong(0L);
 
     static {
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
@@ -58,6 +61,7 @@ public class AgentControlManager {
             processPrintConnectionsFlag(controlProperties);
             processClearAuthorisedDevicesCache(controlProperties);
             processPrintAuthorisedDevicesCache(controlProperties);
+            processPrintCapportStats(controlProperties);
         }, 1000L, 1000L, TimeUnit.MILLISECONDS);
 
         LOGGER.info("Agent control manager started!");
@@ -97,6 +101,16 @@ public class AgentControlManager {
         }
     }
 
+    private static void processPrintCapportStats(Properties controlProperties) {
+        if (Boolean.parseBoolean(controlProperties.getProperty("printCapportStats"))) {
+            if ((System.currentTimeMillis() - LAST_CAPPORT_STATS_VIEW.get()) > 60000L) {
+                LOGGER.info("Current capport stats: {}", CaptivePortalDeviceStateServer.getStatsView());
+
+                LAST_CAPPORT_STATS_VIEW.set(System.currentTimeMillis());
+            }
+        }
+    }
+
     public static void shutdown() {
         try {
             IS_SHUTDOWN_TRIGGERED.set(true);
@@ -104,6 +118,7 @@ public class AgentControlManager {
             GatewayAuthConnectionManager.shutdown();
             GatewayAuthorisationService.shutdown();
             CaptivePortalDeviceStateServer.shutdown();
+            BackstageSpool.shutdown();
         } catch (Exception e) {
             LOGGER.error("Encountered unexpected exception during shutdown process.", e);
         }
@@ -0,0 +1,94 @@
+package com.orpheum.orchestrator.unifiAgent.support;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the executors used by the agent. Periodic schedules run on a small platform thread pool, whereas gateway
+ * authorisation work (including device resolution) runs on a dedicated executor, since it spends nearly all of its
+ * time blocked on HTTP calls or waiting for the gateway. Schedules which must never queue behind blocked work, such as
+ * outcome batch flushes and gateway admin logins, run on schedulers of their own. The authorisation executor supports
+ * two modes, as configured via `authorisation_executor_mode`:
+ *
+ * <ul>
+ *     <li>platform - A bounded pool of platform threads, sized via `authorisation_thread_pool_size`. Idle threads are
+ *     released to save memory on the gateway.</li>
+ *     <li>virtual - A virtual thread per task. Virtual threads are only available on Java 21+, so this mode is resolved
+ *     reflectively and falls back to platform mode on older runtimes.</li>
+ * </ul>
+ */
+public class AgentExecutors {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AgentExecutors.class);
+
+    private static final String VIRTUAL_MODE = "virtual";
+
+    public static ExecutorService newAuthorisationExecutor() {
+        final String mode = ApplicationProperties.getString("authorisation_executor_mode");
+
+        if (VIRTUAL_MODE.equalsIgnoreCase(mode)) {
+            try {
+                Method factoryMethod = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                ExecutorService executorService = (ExecutorService) factoryMethod.invoke(null);
+
+                LOGGER.info("Running gateway authorisations on virtual threads.");
+                return executorService;
+            } catch (ReflectiveOperationException e) {
+                LOGGER.warn("Virtual threads are not supported by the running JVM. Falling back to platform threads. [Java version: {}]", Runtime.version());
+            }
+        }
+
+        final Integer poolSize = ApplicationProperties.getInteger("authorisation_thread_pool_size");
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                poolSize,
+                poolSize,
+                60L,
+                TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                namedThreadFactory("gateway-authorisation")
+        );
+        executor.allowCoreThreadTimeOut(true);
+
+        LOGGER.info("Running gateway authorisations on platform threads. [Pool size: {}]", poolSize);
+        return executor;
+    }
+
+    /**
+     * @param prefix   the prefix of the scheduler's thread names
+     * @param poolSize the number of threads
+     */
+    public static ScheduledExecutorService newScheduler(final String prefix, final int poolSize) {
+        return Executors.newScheduledThreadPool(poolSize, namedThreadFactory(prefix));
+    }
+
+    /**
+     * @param name the name of the scheduler's thread
+     */
+    public static ScheduledExecutorService newSingleThreadScheduler(final String name) {
+        return Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private static ThreadFactory namedThreadFactory(final String prefix) {
+        final AtomicInteger threadCount = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + "-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+}
@@ -2,112 +2,214 @@ package com.orpheum.orchestrator.unifiAgent.support;
 
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 import com.orpheum.orchestrator.unifiAgent.model.BackstageAuthorisationRequest;
+import com.orpheum.orchestrator.unifiAgent.model.BackstagePendingAuthorisations;
 import com.orpheum.orchestrator.unifiAgent.model.GatewayAuthorisationOutcome;
+import com.orpheum.orchestrator.unifiAgent.model.GatewayMetricsSummary;
 import com.orpheum.orchestrator.unifiAgent.model.BackstageLogEntry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import java.io.InputStream;
 import java.net.URI;
 import java.net.URLEncoder;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.util.List;
 
 /**
- * Encapsulates API calls to the backstage server
+ * Encapsulates API calls to the backstage server.
+ *
+ * All calls share a single HTTP/2 client. Since backstage's proxy negotiates HTTP/2, polls, outcomes, logs and
+ * heartbeats are multiplexed as streams over the same persistent connection, the parked long poll included, rather
+ * than each paying for their own TLS handshake over the venue's uplink. Should HTTP/2 not be negotiated, the client
+ * falls back to HTTP/1.1, in which case the long poll holds a pooled connection of its own for as long as it is parked.
+ *
+ * Request URIs, the auth token and timeouts are resolved once, with each request copied from a pre-built template.
+ * Request bodies are not streamed, but serialised into a single byte array up front, which is bounded by the batch
+ * sizes and lets each request carry its content length. Pending authorisation responses are parsed straight off the
+ * response stream.
  */
 public class BackstageClient {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(BackstageClient.class);
 
-    private static final String GET_URL;
-    private static final String CONFIRM_URL;
-    private static final String LOGS_URL;
-    private static final String HEARTBEAT_URL;
-
-    private static final HttpClient CLIENT = HttpClient.newHttpClient();
+    private static final String BASE_URL = "https://backstage.orpheum.cloud";
+    private static final String GET_URL = BASE_URL + "/portal?site_identifier=" + URLEncoder.encode(ApplicationProperties.getString("site_identifier"), StandardCharsets.UTF_8);
+    private static final URI GET_URI = URI.create(GET_URL);
+    private static final URI CONFIRM_URI = URI.create(BASE_URL + "/portal");
+    private static final URI CONFIRM_BATCH_URI = URI.create(BASE_URL + "/portal/batch");
+    private static final URI LOGS_URI = URI.create(BASE_URL + "/gateway/logs");
+    private static final String HEARTBEAT_URL = BASE_URL + "/heartbeat/refresh";
+
+    private static final String PENDING_VERSION_HEADER = "X-Pending-Version";
+
+    private static final Duration REQUEST_TIMEOUT = Duration.ofMillis(ApplicationProperties.getInteger("request_timeout"));
+    private static final Long LONG_POLL_TIMEOUT_MS = ApplicationProperties.getLong("backstage_server_long_poll_timeout_ms");
+    // The long poll is parked on backstage's end, so the standard request timeout is applied on top of it
+    private static final Duration LONG_POLL_REQUEST_TIMEOUT = REQUEST_TIMEOUT.plusMillis(LONG_POLL_TIMEOUT_MS);
+
+    private static final HttpClient CLIENT = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_2)
+            .connectTimeout(REQUEST_TIMEOUT)
+            .build();
+
+    // Never modified once built, only ever copied
+    private static final HttpRequest.Builder TEMPLATE = HttpRequest.newBuilder()
+            .header("X-Auth-Token", ApplicationProperties.getString("backstage_api_auth_token"))
+            .timeout(REQUEST_TIMEOUT);
+    private static final HttpRequest PENDING_REQUEST = TEMPLATE.copy().uri(GET_URI).GET().build();
+
+    // Only ever written by the log appender's sender thread
+    private static volatile boolean isCompactLogBatchEnabled = Boolean.parseBoolean(ApplicationProperties.getString("backstage_compact_logs_enabled"));
     private static final ObjectMapper MAPPER = new ObjectMapper();
-
-    static {
-        try {
-            GET_URL = "https://backstage.orpheum.cloud/portal?site_identifier=" + URLEncoder.encode(ApplicationProperties.getString("site_identifier"), "UTF-8");
-            CONFIRM_URL = "https://backstage.orpheum.cloud/portal";
-            LOGS_URL = "https://backstage.orpheum.cloud/gateway/logs";
-            HEARTBEAT_URL = "https://backstage.orpheum.cloud/heartbeat/refresh";
-        } catch (UnsupportedEncodingException e) {
-            throw new RuntimeException(e);
-        }
-    }
+    private static final ObjectReader PENDING_READER = MAPPER.readerFor(new TypeReference<List<BackstageAuthorisationRequest>>() {});
 
     public static List<BackstageAuthorisationRequest> getPendingAuthorisationRequests() throws IOException, InterruptedException {
         LOGGER.trace("Attempting request to retrieve pending authorisation requests from backstage.");
 
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(GET_URL))
-                .header("X-Auth-Token", ApplicationProperties.getString("backstage_api_auth_token"))
-                .timeout(Duration.ofMillis(ApplicationProperties.getInteger("request_timeout")))
+        HttpResponse<InputStream> response = CLIENT.send(PENDING_REQUEST, HttpResponse.BodyHandlers.ofInputStream());
+
+        final List<BackstageAuthorisationRequest> retrievedRequests = readPendingAuthorisationRequests(response, "GET");
+
+        LOGGER.trace("Successfully completed GET backstage request. [Retrieved requests = {}]", retrievedRequests);
+
+        return retrievedRequests;
+    }
+
+    /**
+     * Long polls backstage for pending authorisation requests. Backstage parks the request until the site's pending
+     * authorisation version differs from the provided version, or until the long poll timeout elapses.
+     *
+     * @param knownVersion The last pending authorisation version seen by the agent
+     * @return The pending authorisation requests, including the site's current version. The version is null if
+     *         backstage does not support long polling, in which case the request is answered immediately.
+     * @throws IOException If an I/O error occurs during the request
+     * @throws InterruptedException If the operation is interrupted
+     * @throws BackstageRequestException If the request fails (non-200 status code)
+     */
+    public static BackstagePendingAuthorisations awaitPendingAuthorisationRequests(final long knownVersion) throws IOException, InterruptedException {
+        LOGGER.trace("Attempting long poll request to retrieve pending authorisation requests from backstage. [Version = {}]", knownVersion);
+
+        HttpRequest request = TEMPLATE.copy()
+                .uri(URI.create(GET_URL + "&version=" + knownVersion + "&timeout_ms=" + LONG_POLL_TIMEOUT_MS))
+                .timeout(LONG_POLL_REQUEST_TIMEOUT)
                 .GET()
                 .build();
 
-        HttpResponse<String> response = CLIENT.send(request, HttpResponse.BodyHandlers.ofString());
+        HttpResponse<InputStream> response = CLIENT.send(request, HttpResponse.BodyHandlers.ofInputStream());
 
-        if (response.statusCode() != 200) {
-            throw new IllegalStateException(String.format("Backstage GET request failed! Status code: %s, Headers: %s, Body: %s", response.statusCode(), response.headers(), response.body()));
-        }
+        final List<BackstageAuthorisationRequest> retrievedRequests = readPendingAuthorisationRequests(response, "GET long poll");
+        final Long version = response.headers().firstValue(PENDING_VERSION_HEADER).map(Long::parseLong).orElse(null);
 
-        final List<BackstageAuthorisationRequest> retrievedRequests = MAPPER.readValue(response.body(), new TypeReference<>() {});
+        LOGGER.trace("Successfully completed GET backstage long poll request. [Retrieved requests = {}, Version = {}]", retrievedRequests, version);
 
-        LOGGER.trace("Successfully completed GET backstage request. [Retrieved requests = {}]", retrievedRequests);
+        return new BackstagePendingAuthorisations(retrievedRequests, version);
+    }
 
-        return retrievedRequests;
+    private static List<BackstageAuthorisationRequest> readPendingAuthorisationRequests(final HttpResponse<InputStream> response, final String call) throws IOException {
+        try (InputStream body = response.body()) {
+            if (response.statusCode() != 200) {
+                throw new BackstageRequestException(response.statusCode(), String.format("Backstage %s request failed! Status code: %s, Headers: %s, Body: %s", call, response.statusCode(), response.headers(), new String(body.readAllBytes(), StandardCharsets.UTF_8)));
+            }
+            return PENDING_READER.readValue(body);
+        }
     }
 
     public static void notifyAuthorisationOutcome(final GatewayAuthorisationOutcome outcome) throws IOException, InterruptedException {
         LOGGER.debug("Attempting request to notify authorisation outcome. [Outcome={}]", outcome);
 
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(CONFIRM_URL))
-                .header("X-Auth-Token", ApplicationProperties.getString("backstage_api_auth_token"))
-                .header("Content-Type", "application/json")
-                .timeout(Duration.ofMillis(ApplicationProperties.getInteger("request_timeout")))
-                .POST(HttpRequest.BodyPublishers.ofString(MAPPER.writeValueAsString(outcome)))
-                .build();
-
-        HttpResponse<String> response = CLIENT.send(request, HttpResponse.BodyHandlers.ofString());
+        HttpResponse<String> response = CLIENT.send(jsonRequest(CONFIRM_URI, outcome), HttpResponse.BodyHandlers.ofString());
 
         if (response.statusCode() != 200) {
-            throw new IllegalStateException(String.format("Backstage POST confirmation request failed! Status code: %s, Headers: %s, Body: %s", response.statusCode(), response.headers(), response.body()));
+            throw new BackstageRequestException(response.statusCode(), String.format("Backstage POST confirmation request failed! Status code: %s, Headers: %s, Body: %s", response.statusCode(), response.headers(), response.body()));
         }
 
         LOGGER.debug("Successfully notified authentication outcome. [Outcome={}]", outcome);
     }
 
     /**
-     * Sends a batch of log entries to the backstage server.
+     * Notifies backstage of a batch of authorisation outcomes in a single request.
+     *
+     * @param outcomes The outcomes to notify
+     * @return Whether the batch was notified, false if backstage does not support batch notifications
+     * @throws IOException If an I/O error occurs during the request
+     * @throws InterruptedException If the operation is interrupted
+     * @throws BackstageRequestException If the request fails (non-200 status code)
+     */
+    public static boolean notifyAuthorisationOutcomes(final List<GatewayAuthorisationOutcome> outcomes) throws IOException, InterruptedException {
+        LOGGER.debug("Attempting request to notify authorisation outcome batch. [Outcomes={}]", outcomes);
+
+        HttpResponse<String> response = CLIENT.send(jsonRequest(CONFIRM_BATCH_URI, outcomes), HttpResponse.BodyHandlers.ofString());
+
+        if (response.statusCode() == 404 || response.statusCode() == 405) {
+            return false;
+        }
+        if (response.statusCode() != 200) {
+            throw new BackstageRequestException(response.statusCode(), String.format("Backstage POST confirmation batch request failed! Status code: %s, Headers: %s, Body: %s", response.statusCode(), response.headers(), response.body()));
+        }
+
+        LOGGER.debug("Successfully notified authentication outcome batch. [Outcomes={}]", outcomes.size());
+        return true;
+    }
+
+    /**
+     * Sends a batch of log entries to the backstage server. When enabled, the batch is sent in the compact log batch
+     * format, see {@link CompactLogBatchEncoder}. Should backstage not support the compact format, all batches are sent
+     * as JSON from then on.
      *
      * @param logEntries The list of log entries to send
      * @throws IOException If an I/O error occurs during the request
      * @throws InterruptedException If the operation is interrupted
-     * @throws IllegalStateException If the request fails (non-200 status code)
+     * @throws BackstageRequestException If the request fails (non-200 status code)
      */
     public static void sendLogs(final List<BackstageLogEntry> logEntries) throws IOException, InterruptedException {
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(LOGS_URL))
-                .header("X-Auth-Token", ApplicationProperties.getString("backstage_api_auth_token"))
-                .header("Content-Type", "application/json")
-                .timeout(Duration.ofMillis(ApplicationProperties.getInteger("request_timeout")))
-                .POST(HttpRequest.BodyPublishers.ofString(MAPPER.writeValueAsString(logEntries)))
+        if (isCompactLogBatchEnabled) {
+            HttpResponse<String> response = CLIENT.send(
+                    logsRequest(CompactLogBatchEncoder.CONTENT_TYPE, HttpRequest.BodyPublishers.ofByteArray(CompactLogBatchEncoder.encode(logEntries))),
+                    HttpResponse.BodyHandlers.ofString()
+            );
+
+            if (response.statusCode() != 415 && response.statusCode() != 404) {
+                verifyLogsResponse(response);
+                return;
+            }
+
+            isCompactLogBatchEnabled = false;
+            LOGGER.warn("Backstage does not support compact log batches. Falling back to JSON log batches. [Status code: {}]", response.statusCode());
+        }
+
+        HttpResponse<String> response = CLIENT.send(
+                logsRequest("application/json", HttpRequest.BodyPublishers.ofByteArray(MAPPER.writeValueAsBytes(logEntries))),
+                HttpResponse.BodyHandlers.ofString()
+        );
+        verifyLogsResponse(response);
+    }
+
+    private static HttpRequest logsRequest(final String contentType, final HttpRequest.BodyPublisher body) {
+        return TEMPLATE.copy()
+                .uri(LOGS_URI)
+                .header("Content-Type", contentType)
+                .POST(body)
                 .build();
+    }
 
-        HttpResponse<String> response = CLIENT.send(request, HttpResponse.BodyHandlers.ofString());
+    private static HttpRequest jsonRequest(final URI uri, final Object body) throws IOException {
+        return TEMPLATE.copy()
+                .uri(uri)
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofByteArray(MAPPER.writeValueAsBytes(body)))
+                .build();
+    }
 
+    private static void verifyLogsResponse(final HttpResponse<String> response) {
         if (response.statusCode() != 200) {
-            throw new IllegalStateException(String.format("Backstage POST logs request failed! Status code: %s, Headers: %s, Body: %s", response.statusCode(), response.headers(), response.body()));
+            throw new BackstageRequestException(response.statusCode(), String.format("Backstage POST logs request failed! Status code: %s, Headers: %s, Body: %s", response.statusCode(), response.headers(), response.body()));
         }
     }
 
@@ -116,26 +218,20 @@ public class BackstageClient {
      *
      * @param heartbeatType The type of heartbeat. Valid values are "GATEWAY" or "DATABASE".
      * @param identifier The identifier for the heartbeat
+     * @param metrics The summary of the agent's metrics since the previous heartbeat
      * @throws IOException If an I/O error occurs during the request
      * @throws InterruptedException If the operation is interrupted
-     * @throws IllegalStateException If the request fails (non-200 status code)
+     * @throws BackstageRequestException If the request fails (non-200 status code)
      */
-    public static void sendHeartbeat(final String heartbeatType, final String identifier) throws IOException, InterruptedException {
+    public static void sendHeartbeat(final String heartbeatType, final String identifier, final GatewayMetricsSummary metrics) throws IOException, InterruptedException {
         LOGGER.trace("Sending heartbeat to backstage. [Type={}, Identifier={}]", heartbeatType, identifier);
 
-        String url = HEARTBEAT_URL + "?type=" + URLEncoder.encode(heartbeatType, "UTF-8") + "&identifier=" + URLEncoder.encode(identifier, "UTF-8");
-
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(url))
-                .header("X-Auth-Token", ApplicationProperties.getString("backstage_api_auth_token"))
-                .timeout(Duration.ofMillis(ApplicationProperties.getInteger("request_timeout")))
-                .POST(HttpRequest.BodyPublishers.noBody())
-                .build();
+        String url = HEARTBEAT_URL + "?type=" + URLEncoder.encode(heartbeatType, StandardCharsets.UTF_8) + "&identifier=" + URLEncoder.encode(identifier, StandardCharsets.UTF_8);
 
-        HttpResponse<String> response = CLIENT.send(request, HttpResponse.BodyHandlers.ofString());
+        HttpResponse<String> response = CLIENT.send(jsonRequest(URI.create(url), metrics), HttpResponse.BodyHandlers.ofString());
 
         if (response.statusCode() != 200) {
-            throw new IllegalStateException(String.format("Backstage POST heartbeat request failed! Status code: %s, Headers: %s, Body: %s", response.statusCode(), response.headers(), response.body()));
+            throw new BackstageRequestException(response.statusCode(), String.format("Backstage POST heartbeat request failed! Status code: %s, Headers: %s, Body: %s", response.statusCode(), response.headers(), response.body()));
         }
 
         LOGGER.trace("Successfully sent heartbeat to backstage. [Type={}, Identifier={}]", heartbeatType, identifier);
@@ -4,35 +4,56 @@ import ch.qos.logback.classic.spi.ILoggingEvent;
 import ch.qos.logback.classic.spi.IThrowableProxy;
 import ch.qos.logback.classic.spi.ThrowableProxyUtil;
 import ch.qos.logback.core.AppenderBase;
+import com.orpheum.orchestrator.unifiAgent.metrics.AgentMetrics;
+import com.orpheum.orchestrator.unifiAgent.metrics.Counter;
 import com.orpheum.orchestrator.unifiAgent.model.BackstageLogEntry;
+import com.orpheum.orchestrator.unifiAgent.spool.BackstageSpool;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
-
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Ships logs to backstage in batches. Logging threads only ever add their entry to a bounded
+ * {@link DropOldestRingBuffer}, which evicts the oldest entries once full, and wake the sender thread once a full batch
+ * is buffered. They hence never block on one another nor on backstage, however slow backstage is to respond.
+ *
+ * A single sender thread drains the buffer in batches of up to `batchSize` entries, either as soon as a full batch is
+ * buffered or every `timeoutMillis`. A batch which fails to be sent is retried every `timeoutMillis`, up to
+ * `maxRetryCount` times, after which it is spooled to disk for replay, see {@link BackstageSpool}. Logs keep being
+ * buffered meanwhile, up to `bufferSize` entries. While spooled batches are pending replay, newer batches are spooled
+ * straight away rather than sent, keeping batches in order and sparing the buffer from an ongoing outage.
+ */
 public class BackstageGatewayLogAppender extends AppenderBase<ILoggingEvent> {
 
     private static final String SITE_FRIENDLY_NAME = ApplicationProperties.getString("site_friendly_name");
 
+    private static final String DROPPED_LOGS_METRIC = "backstage_logs_dropped_total";
+    private static final String DROPPED_LOGS_HELP = "Logs dropped rather than shipped to backstage, by reason";
+
     private int batchSize;
+    private int bufferSize;
     private long timeoutMillis;
     private int maxRetryCount;
 
-    private final List<BackstageLogEntry> eventBuffer = Collections.synchronizedList(new ArrayList<>());
-    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
-
-    private final AtomicLong lastSentTime = new AtomicLong(System.currentTimeMillis());
-    private final AtomicBoolean sendingInProgress = new AtomicBoolean(false);
-    private final AtomicInteger retryCount = new AtomicInteger(0);
+    private DropOldestRingBuffer<BackstageLogEntry> eventBuffer;
+    private Counter failedLogs;
+    private Thread sender;
 
     @Override
     public void start() {
+        // Retains the previous bound of twice the batch size, unless configured otherwise
+        eventBuffer = new DropOldestRingBuffer<>((bufferSize > 0) ? bufferSize : batchSize * 2);
+
+        AgentMetrics.functionCounter(DROPPED_LOGS_METRIC, DROPPED_LOGS_HELP, eventBuffer::dropped, "reason", "buffer_full");
+        failedLogs = AgentMetrics.counter(DROPPED_LOGS_METRIC, DROPPED_LOGS_HELP, "reason", "send_failed");
+
+        sender = new Thread(this::sendLogs, "backstage-log-sender");
+        sender.setDaemon(true);
+
         super.start();
-        scheduler.scheduleAtFixedRate(this::checkTimeoutAndSend, timeoutMillis, timeoutMillis, TimeUnit.MILLISECONDS);
+        sender.start();
     }
 
     @Override
@@ -46,14 +67,10 @@ public class BackstageGatewayLogAppender extends AppenderBase<ILoggingEvent> {
                 extractStacktrace(eventObject)
         );
 
-        eventBuffer.add(logEvent);
+        eventBuffer.offer(logEvent);
 
-        if (eventBuffer.size() > (batchSize * 2)) {
-            // Avoid unbounded buffer growth by removing the oldest log if batch size is exceeded by more than double
-            eventBuffer.remove(0);
-        }
         if (eventBuffer.size() >= batchSize) {
-            triggerSend();
+            LockSupport.unpark(sender);
         }
     }
 
@@ -67,46 +84,57 @@ public class BackstageGatewayLogAppender extends AppenderBase<ILoggingEvent> {
         return stacktrace;
     }
 
-    private void checkTimeoutAndSend() {
-        long now = System.currentTimeMillis();
-        if (now - lastSentTime.get() >= timeoutMillis) {
-            triggerSend();
-        }
-    }
-
-    private void triggerSend() {
-        if (sendingInProgress.compareAndSet(false, true)) {
-            scheduler.submit(this::sendLogs);
-        }
-    }
-
     private void sendLogs() {
-        List<BackstageLogEntry> pendingLogs = new ArrayList<>(eventBuffer);
-        boolean success = false;
-        try {
-            if (!pendingLogs.isEmpty()) {
-                BackstageClient.sendLogs(pendingLogs);
+        final long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        final List<BackstageLogEntry> pendingLogs = new ArrayList<>(batchSize);
+        int retryCount = 0;
+        long lastSentNanos = System.nanoTime();
+
+        while (isStarted()) {
+            final boolean isRetry = !pendingLogs.isEmpty();
+            final long waitedNanos = System.nanoTime() - lastSentNanos;
+            // Retries wait out the full timeout, whereas fresh batches are sent as soon as they are full
+            if (waitedNanos < timeoutNanos && (isRetry || eventBuffer.size() < batchSize)) {
+                LockSupport.parkNanos(this, timeoutNanos - waitedNanos);
+                continue;
+            }
+
+            if (!isRetry) {
+                eventBuffer.drainTo(pendingLogs, batchSize);
             }
-            success = true;
-        } catch (Exception e) {
-            retryCount.incrementAndGet();
-            addError("Failed to send logs", e);
-        } finally {
-            if (success || retryCount.get() >= maxRetryCount) {
+
+            try {
                 if (!pendingLogs.isEmpty()) {
-                    eventBuffer.removeAll(pendingLogs);
+                    if (BackstageSpool.hasPendingLogs()) {
+                        spool(pendingLogs);
+                    } else {
+                        BackstageClient.sendLogs(pendingLogs);
+                    }
+                }
+                pendingLogs.clear();
+                retryCount = 0;
+            } catch (Exception e) {
+                addError("Failed to send logs", e);
+                if (++retryCount >= maxRetryCount) {
+                    spool(pendingLogs);
+                    pendingLogs.clear();
+                    retryCount = 0;
                 }
-                retryCount.set(0);
             }
-            lastSentTime.set(System.currentTimeMillis());
-            sendingInProgress.set(false);
+            lastSentNanos = System.nanoTime();
+        }
+    }
+
+    private void spool(final List<BackstageLogEntry> logs) {
+        if (!BackstageSpool.spoolLogs(logs)) {
+            failedLogs.add(logs.size());
         }
     }
 
     @Override
     public void stop() {
         super.stop();
-        scheduler.shutdown();
+        LockSupport.unpark(sender);
     }
 
     // Config setters
@@ -114,6 +142,10 @@ public class BackstageGatewayLogAppender extends AppenderBase<ILoggingEvent> {
         this.batchSize = batchSize;
     }
 
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
     public void setTimeoutMillis(long timeoutMillis) {
         this.timeoutMillis = timeoutMillis;
     }
@@ -0,0 +1,28 @@
+package com.orpheum.orchestrator.unifiAgent.support;
+
+/**
+ * Signals that backstage answered a request with a non-200 status code, carrying the status code so that callers can
+ * tell requests worth retrying from those which backstage will never accept.
+ */
+public class BackstageRequestException extends IllegalStateException {
+
+    private final int statusCode;
+
+    public BackstageRequestException(final int statusCode, final String message) {
+        super(message);
+        this.statusCode = statusCode;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * @return whether the request may succeed if sent again, false for client errors other than request timeouts and
+     * rate limiting
+     */
+    public boolean isRetryable() {
+        return statusCode < 400 || statusCode >= 500 || statusCode == 408 || statusCode == 429;
+    }
+
+}
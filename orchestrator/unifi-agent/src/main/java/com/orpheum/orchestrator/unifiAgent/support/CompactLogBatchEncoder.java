@@ -0,0 +1,125 @@
+package com.orpheum.orchestrator.unifiAgent.support;
+
+import com.orpheum.orchestrator.unifiAgent.model.BackstageLogEntry;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Encodes log batches into backstage's compact log batch format, as an alternative to a JSON array of
+ * {@link BackstageLogEntry}. The format is gzip compressed, and laid out as
+ *
+ * <ul>
+ *     <li>A header, made up of a magic number and the format version;</li>
+ *     <li>A dictionary of the batch's distinct levels, logger names and site names;</li>
+ *     <li>A table of the batch's distinct stack traces, so that a stack trace repeated across the batch is sent once;</li>
+ *     <li>The entries, each made up of its timestamp as a delta from the previous entry's, its level, logger name,
+ *     site name and stack trace as references into the above, and its message.</li>
+ * </ul>
+ *
+ * Integers are written as unsigned varints, with timestamp deltas zigzag encoded. Strings are written as their UTF-8
+ * length followed by their bytes. References and nullable strings are offset by one, with zero standing for null.
+ * Backstage's decoder must be kept in line with this class.
+ */
+final class CompactLogBatchEncoder {
+
+    static final String CONTENT_TYPE = "application/vnd.orpheum.log-batch.v1";
+
+    private static final int MAGIC = 0x4F4C4200; // OLB
+    private static final byte FORMAT_VERSION = 1;
+
+    private CompactLogBatchEncoder() {
+    }
+
+    static byte[] encode(final List<BackstageLogEntry> entries) throws IOException {
+        final Table dictionary = new Table();
+        final Table stacktraces = new Table();
+        final int[][] references = new int[entries.size()][];
+        for (int i = 0; i < entries.size(); i++) {
+            final BackstageLogEntry entry = entries.get(i);
+            references[i] = new int[]{
+                    dictionary.reference(entry.logLevel()),
+                    dictionary.reference(entry.loggerName()),
+                    dictionary.reference(entry.siteFriendlyName()),
+                    stacktraces.reference(entry.stacktrace())
+            };
+        }
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(256 + (entries.size() * 64));
+        try (DataOutputStream output = new DataOutputStream(new GZIPOutputStream(bytes))) {
+            output.writeInt(MAGIC);
+            output.writeByte(FORMAT_VERSION);
+            dictionary.write(output);
+            stacktraces.write(output);
+
+            writeVarint(output, entries.size());
+            long previousTimestamp = 0L;
+            for (int i = 0; i < entries.size(); i++) {
+                final BackstageLogEntry entry = entries.get(i);
+                final long timestamp = (entry.timestamp() != null) ? entry.timestamp() : 0L;
+                final long delta = timestamp - previousTimestamp;
+                writeVarint(output, (delta << 1) ^ (delta >> 63));
+                previousTimestamp = timestamp;
+
+                for (int reference : references[i]) {
+                    writeVarint(output, reference);
+                }
+                writeNullableString(output, entry.message());
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeNullableString(final DataOutputStream output, final String value) throws IOException {
+        if (value == null) {
+            writeVarint(output, 0L);
+            return;
+        }
+        final byte[] encoded = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(output, encoded.length + 1L);
+        output.write(encoded);
+    }
+
+    private static void writeVarint(final DataOutputStream output, long value) throws IOException {
+        while ((value & ~0x7FL) != 0L) {
+            output.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        output.writeByte((int) value);
+    }
+
+    /**
+     * A table of distinct strings, referenced by their position in the table offset by one.
+     */
+    private static final class Table {
+
+        private final Map<String, Integer> references = new HashMap<>();
+        private final List<String> values = new ArrayList<>();
+
+        private int reference(final String value) {
+            if (value == null) {
+                return 0;
+            }
+            return references.computeIfAbsent(value, key -> {
+                values.add(key);
+                return values.size();
+            });
+        }
+
+        private void write(final DataOutputStream output) throws IOException {
+            writeVarint(output, values.size());
+            for (String value : values) {
+                writeNullableString(output, value);
+            }
+        }
+
+    }
+
+}
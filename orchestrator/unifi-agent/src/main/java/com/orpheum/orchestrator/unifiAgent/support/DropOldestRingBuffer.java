@@ -0,0 +1,119 @@
+package com.orpheum.orchestrator.unifiAgent.support;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded, array backed ring buffer for many producers and a single draining consumer, which never blocks its
+ * producers. Once full, every offer evicts the oldest element to make room for its own.
+ *
+ * Each slot carries a sequence number, as per Dmitry Vyukov's bounded queue, telling producers and consumers whether
+ * the slot is free to write or ready to read for their current lap around the buffer. Producers and consumers each
+ * claim their position with a single CAS, so no lock is ever taken. Evicting the oldest element is a regular poll
+ * performed by the producer, which the algorithm supports alongside the draining consumer.
+ */
+final class DropOldestRingBuffer<E> {
+
+    private final int mask;
+    private final AtomicReferenceArray<E> elements;
+    private final AtomicLongArray sequences;
+
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private final LongAdder dropped = new LongAdder();
+
+    /**
+     * @param capacity the maximum number of buffered elements, rounded up to a power of two
+     */
+    DropOldestRingBuffer(final int capacity) {
+        final int size = (capacity <= 1) ? 2 : Integer.highestOneBit(capacity - 1) << 1;
+        this.mask = size - 1;
+        this.elements = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Adds the element, evicting the oldest buffered element should the buffer be full.
+     */
+    void offer(final E element) {
+        while (true) {
+            final long position = tail.get();
+            final int index = (int) position & mask;
+            final long difference = sequences.get(index) - position;
+
+            if (difference == 0L) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    elements.set(index, element);
+                    // Publishes the element to consumers
+                    sequences.set(index, position + 1);
+                    return;
+                }
+            } else if (difference < 0L) {
+                // The slot still holds the element from the previous lap, i.e. the buffer is full
+                if (poll() != null) {
+                    dropped.increment();
+                }
+            }
+            // Otherwise another producer claimed the position in the meantime, so retry with the latest tail
+        }
+    }
+
+    /**
+     * @return the oldest buffered element, or null if the buffer is empty
+     */
+    E poll() {
+        while (true) {
+            final long position = head.get();
+            final int index = (int) position & mask;
+            final long difference = sequences.get(index) - (position + 1);
+
+            if (difference == 0L) {
+                if (head.compareAndSet(position, position + 1)) {
+                    final E element = elements.getAndSet(index, null);
+                    // Frees the slot for the producers' next lap
+                    sequences.set(index, position + mask + 1);
+                    return element;
+                }
+            } else if (difference < 0L) {
+                // Either empty, or the oldest slot has been claimed by a producer which has yet to publish its element
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Moves up to the given number of the oldest buffered elements into the batch.
+     *
+     * @return the number of elements drained
+     */
+    int drainTo(final List<E> batch, final int maxElements) {
+        int drained = 0;
+        E element;
+        while (drained < maxElements && (element = poll()) != null) {
+            batch.add(element);
+            drained++;
+        }
+        return drained;
+    }
+
+    /**
+     * @return the approximate number of buffered elements
+     */
+    int size() {
+        return (int) Math.max(0L, Math.min(tail.get() - head.get(), mask + 1L));
+    }
+
+    /**
+     * @return the number of elements evicted to make room for newer ones
+     */
+    long dropped() {
+        return dropped.sum();
+    }
+
+}
@@ -1,29 +1,53 @@
 package com.orpheum.orchestrator.unifiAgent.support;
 
-import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.orpheum.orchestrator.unifiAgent.metrics.AgentMetrics;
+import com.orpheum.orchestrator.unifiAgent.metrics.Counter;
+import com.orpheum.orchestrator.unifiAgent.metrics.LatencyHistogram;
 import com.orpheum.orchestrator.unifiAgent.model.GatewayAuthConnection;
 import com.orpheum.orchestrator.unifiAgent.model.UnifiGatewayActiveDevice;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.net.http.WebSocket;
+import java.nio.charset.StandardCharsets;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.X509Certificate;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
 
 /**
- * Encapsulates calls to the UniFi gateway
+ * Encapsulates calls to the UniFi gateway.
+ *
+ * Calls authenticated via an admin session recover from the session having expired on the gateway, i.e. the gateway
+ * responding with a 401, or a 403 whose body reports a stale CSRF token or expired session. The session is renewed once
+ * via the registered {@link SessionRenewer}, and the call replayed with the renewed session. Any other 403 is a genuine
+ * permission failure, which is returned as is rather than replacing a healthy session.
  */
 public class UnifiGatewayClient {
 
@@ -32,6 +56,25 @@ public class UnifiGatewayClient {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(UnifiGatewayClient.class);
 
+    private static final CallMetrics LOGIN_METRICS = CallMetrics.of("login");
+    private static final CallMetrics AUTHORIZE_DEVICE_METRICS = CallMetrics.of("authorize_device");
+    private static final CallMetrics GET_ACTIVE_DEVICES_METRICS = CallMetrics.of("get_active_devices");
+    private static final CallMetrics GET_GUEST_SESSIONS_METRICS = CallMetrics.of("get_guest_sessions");
+    private static final CallMetrics LOGOUT_METRICS = CallMetrics.of("logout");
+
+    // Marks a 403 as a rejected session, rather than the admin lacking the permissions for the call
+    private static final Pattern SESSION_REJECTION = Pattern.compile("csrf|expired", Pattern.CASE_INSENSITIVE);
+
+    private static volatile SessionRenewer sessionRenewer;
+
+    /**
+     * Registers the renewer used to recover sessions which have expired on the gateway. Until registered, calls made
+     * with an expired session fail as is.
+     */
+    public static void setSessionRenewer(SessionRenewer renewer) {
+        sessionRenewer = renewer;
+    }
+
     public static UnifiGatewayLoginResponse login(GatewayAuthConnection connection) throws IOException, InterruptedException {
         LOGGER.debug("Attempting UniFi gateway admin login. [Username: {}]", connection.username());
 
@@ -47,7 +90,7 @@ public class UnifiGatewayClient {
                             """, connection.username(), connection.password())))
                 .build();
 
-        HttpResponse<String> loginResponse = CLIENT.send(loginRequest, HttpResponse.BodyHandlers.ofString());
+        HttpResponse<String> loginResponse = send(LOGIN_METRICS, loginRequest, HttpResponse.BodyHandlers.ofString());
 
         if (loginResponse.statusCode() != 200) {
             throw new IllegalStateException(String.format("Unifi gateway login request failed! [Status code: %s, Headers: %s, Body: %s]", loginResponse.statusCode(), loginResponse.headers(), loginResponse.body()));
@@ -64,22 +107,19 @@ public class UnifiGatewayClient {
     public static void authorizeDevice(GatewayAuthConnection connection, String macAddress, String accessPointMacAddress) throws IOException, InterruptedException {
         LOGGER.debug("Attempting UniFi gateway device authorization. [Auth username: {}, MAC address:{}, AP MAC address: {}]", connection.username(), macAddress, accessPointMacAddress);
 
-        final HttpRequest authRequest = HttpRequest.newBuilder()
-                .uri(URI.create("https://localhost/proxy/network/api/s/default/cmd/stamgr"))
-                .header("Content-Type", "application/json")
-                .header("Cookie", connection.cookie())
-                .header("X-Csrf-Token", connection.csrfToken())
-                .timeout(Duration.ofMillis(ApplicationProperties.getInteger("request_timeout")))
-                .POST(HttpRequest.BodyPublishers.ofString(String.format("""
+        final String authBody = String.format("""
                                    {
                                         "cmd":"authorize-guest",
                                         "mac":"%s",
                                         "ap_mac": "%s"
                                    }
-                            """, macAddress, accessPointMacAddress)))
-                .build();
+                            """, macAddress, accessPointMacAddress);
 
-        HttpResponse<String> authResponse = CLIENT.send(authRequest, HttpResponse.BodyHandlers.ofString());
+        HttpResponse<String> authResponse = sendAuthenticated(AUTHORIZE_DEVICE_METRICS, connection,
+                session -> authenticatedRequest(session, "https://localhost/proxy/network/api/s/default/cmd/stamgr")
+                        .POST(HttpRequest.BodyPublishers.ofString(authBody))
+                        .build(),
+                HttpResponse.BodyHandlers.ofString());
 
         if (authResponse.statusCode() != 200) {
             throw new IllegalStateException(String.format("Unifi gateway device authorization request failed! [Status code: %s, Headers: %s, Body: %s]", authResponse.statusCode(), authResponse.headers(), authResponse.body()));
@@ -88,44 +128,94 @@ public class UnifiGatewayClient {
         LOGGER.debug("Device authorization successful. [Auth username: {}, MAC address:{}, AP MAC address: {}]", connection.username(), macAddress, accessPointMacAddress);
     }
 
-    public static List<UnifiGatewayActiveDevice> getActiveDevices(GatewayAuthConnection connection) throws IOException, InterruptedException {
+    /**
+     * Retrieves the gateway's active devices, retaining only those matching the provided filter. The response is parsed
+     * as it is streamed in, one device at a time, so neither the full response body nor any filtered out device is
+     * ever held in memory.
+     *
+     * @param connection The authenticated connection used to perform the request
+     * @param filter     The filter which active devices must match to be returned
+     * @return The active devices matching the filter
+     */
+    public static List<UnifiGatewayActiveDevice> getActiveDevices(GatewayAuthConnection connection, Predicate<UnifiGatewayActiveDevice> filter) throws IOException, InterruptedException {
         LOGGER.trace("Attempting UniFi gateway get active devices. [Username: {}]", connection.username());
 
-        final HttpRequest getDevicesRequest = HttpRequest.newBuilder()
-                .uri(URI.create("https://localhost/proxy/network/v2/api/site/default/clients/active?includeTrafficUsage=false&includeUnifiDevices=false"))
-                .header("Content-Type", "application/json")
-                .header("Cookie", connection.cookie())
-                .header("X-Csrf-Token", connection.csrfToken())
-                .timeout(Duration.ofMillis(ApplicationProperties.getInteger("request_timeout")))
-                .GET()
-                .build();
-
-        HttpResponse<String> getDevicesResponse = CLIENT.send(getDevicesRequest, HttpResponse.BodyHandlers.ofString());
+        HttpResponse<InputStream> getDevicesResponse = sendAuthenticated(GET_ACTIVE_DEVICES_METRICS, connection,
+                session -> authenticatedRequest(session, "https://localhost/proxy/network/v2/api/site/default/clients/active?includeTrafficUsage=false&includeUnifiDevices=false")
+                        .GET()
+                        .build(),
+                HttpResponse.BodyHandlers.ofInputStream());
+
+        final List<UnifiGatewayActiveDevice> devices = new ArrayList<>();
+        try (InputStream body = getDevicesResponse.body()) {
+            if (getDevicesResponse.statusCode() != 200) {
+                throw new IllegalStateException(String.format("UniFi gateway get active devices request failed! [Status code: %s, Headers: %s, Body: %s]", getDevicesResponse.statusCode(), getDevicesResponse.headers(), new String(body.readAllBytes(), StandardCharsets.UTF_8)));
+            }
+
+            try (JsonParser parser = MAPPER.getFactory().createParser(body)) {
+                if (parser.nextToken() != JsonToken.START_ARRAY) {
+                    throw new IllegalStateException(String.format("UniFi gateway get active devices response is not an array! [Token: %s]", parser.currentToken()));
+                }
 
-        if (getDevicesResponse.statusCode() != 200) {
-            throw new IllegalStateException(String.format("UniFi gateway get active devices request failed! [Status code: %s, Headers: %s, Body: %s]", getDevicesResponse.statusCode(), getDevicesResponse.headers(), getDevicesResponse.body()));
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    final UnifiGatewayActiveDevice device = MAPPER.readValue(parser, UnifiGatewayActiveDevice.class);
+                    if (filter.test(device)) {
+                        devices.add(device);
+                    }
+                }
+            }
         }
 
-        final List<UnifiGatewayActiveDevice> devices = MAPPER.readValue(getDevicesResponse.body(), new TypeReference<List<UnifiGatewayActiveDevice>>() {});
-
         LOGGER.trace("UniFi gateway get active devices successful. [Username:{}, Devices: {}]", connection.username(), devices);
 
         return devices;
     }
 
+    /**
+     * Retrieves the end of the guest sessions started on the gateway within the provided lookback window.
+     *
+     * @param connection  The authenticated connection used to perform the request
+     * @param withinHours The lookback window, in hours
+     * @return The guest session ends as epoch milliseconds, keyed by the guest's MAC address. Should a guest have had
+     * multiple sessions within the window, the latest session end is returned.
+     */
+    public static Map<String, Long> getGuestSessionEnds(GatewayAuthConnection connection, Integer withinHours) throws IOException, InterruptedException {
+        LOGGER.trace("Attempting UniFi gateway get guest sessions. [Username: {}]", connection.username());
+
+        HttpResponse<String> getGuestsResponse = sendAuthenticated(GET_GUEST_SESSIONS_METRICS, connection,
+                session -> authenticatedRequest(session, "https://localhost/proxy/network/api/s/default/stat/guest?within=" + withinHours)
+                        .GET()
+                        .build(),
+                HttpResponse.BodyHandlers.ofString());
+
+        if (getGuestsResponse.statusCode() != 200) {
+            throw new IllegalStateException(String.format("UniFi gateway get guest sessions request failed! [Status code: %s, Headers: %s, Body: %s]", getGuestsResponse.statusCode(), getGuestsResponse.headers(), getGuestsResponse.body()));
+        }
+
+        final Map<String, Long> sessionEnds = new HashMap<>();
+        for (JsonNode guest : MAPPER.readTree(getGuestsResponse.body()).path("data")) {
+            final JsonNode mac = guest.get("mac");
+            final JsonNode end = guest.get("end");
+            if (mac != null && end != null && end.canConvertToLong()) {
+                // The gateway reports session ends in epoch seconds
+                sessionEnds.merge(mac.asText(), end.asLong() * 1000L, Math::max);
+            }
+        }
+
+        LOGGER.trace("UniFi gateway get guest sessions successful. [Username:{}, Session ends: {}]", connection.username(), sessionEnds);
+
+        return sessionEnds;
+    }
+
     public static void logout(GatewayAuthConnection connection) throws IOException, InterruptedException {
         LOGGER.debug("Attempting UniFi gateway admin logout. [Username:{}]", connection.username());
 
-        final HttpRequest logoutRequest = HttpRequest.newBuilder()
-                .uri(URI.create("https://localhost/api/auth/logout"))
-                .header("Content-Type", "application/json")
-                .header("Cookie", connection.cookie())
-                .header("X-Csrf-Token", connection.csrfToken())
-                .timeout(Duration.ofMillis(ApplicationProperties.getInteger("request_timeout")))
+        // Never replayed, as a session rejected by the gateway is already as good as logged out
+        final HttpRequest logoutRequest = authenticatedRequest(connection, "https://localhost/api/auth/logout")
                 .POST(HttpRequest.BodyPublishers.ofString(""))
                 .build();
 
-        HttpResponse<String> logoutResponse = CLIENT.send(logoutRequest, HttpResponse.BodyHandlers.ofString());
+        HttpResponse<String> logoutResponse = send(LOGOUT_METRICS, logoutRequest, HttpResponse.BodyHandlers.ofString());
 
         if (logoutResponse.statusCode() != 200) {
             throw new IllegalStateException(String.format("UniFi gateway logout request failed! [Username: %s, Status code: %s, Headers: %s, Body: %s]", connection.username(), logoutResponse.statusCode(), logoutResponse.headers(), logoutResponse.body()));
@@ -133,8 +223,172 @@ public class UnifiGatewayClient {
         LOGGER.debug("UniFi gateway admin logout successful. [Username:{}]", connection.username());
     }
 
+    /**
+     * Opens the gateway's local event stream websocket, authenticated via the provided connection's session.
+     *
+     * @param connection The authenticated connection used for the websocket handshake
+     * @param url        The event stream URL
+     * @param listener   The listener receiving the event stream's messages
+     * @return A future completing once the websocket handshake has completed
+     */
+    public static CompletableFuture<WebSocket> openEventStream(GatewayAuthConnection connection, String url, WebSocket.Listener listener) {
+        LOGGER.debug("Attempting to open UniFi gateway event stream. [Username: {}, URL: {}]", connection.username(), url);
+
+        return CLIENT.newWebSocketBuilder()
+                .header("Cookie", connection.cookie())
+                .header("X-Csrf-Token", connection.csrfToken())
+                .connectTimeout(Duration.ofMillis(ApplicationProperties.getInteger("request_timeout")))
+                .buildAsync(URI.create(url), listener);
+    }
+
+    private static HttpRequest.Builder authenticatedRequest(GatewayAuthConnection session, String uri) {
+        return HttpRequest.newBuilder()
+                .uri(URI.create(uri))
+                .header("Content-Type", "application/json")
+                .header("Cookie", session.cookie())
+                .header("X-Csrf-Token", session.csrfToken())
+                .timeout(Duration.ofMillis(ApplicationProperties.getInteger("request_timeout")));
+    }
+
+    /**
+     * Sends a request authenticated via the provided connection's session. Should the gateway reject the session as
+     * expired, the session is renewed and the request, rebuilt for the renewed session, is replayed. A request is only
+     * ever replayed once, with the replay's response returned as is.
+     */
+    private static <T> HttpResponse<T> sendAuthenticated(CallMetrics metrics, GatewayAuthConnection connection, Function<GatewayAuthConnection, HttpRequest> request, HttpResponse.BodyHandler<T> bodyHandler) throws IOException, InterruptedException {
+        HttpResponse<T> response = send(metrics, request.apply(connection), bodyHandler);
+        final SessionRenewer renewer = sessionRenewer;
+        if (renewer == null || (response.statusCode() != 401 && response.statusCode() != 403)) {
+            return response;
+        }
+
+        String body = null;
+        if (response.statusCode() == 403) {
+            // Only the body tells a stale session apart from a permission failure. Streamed bodies are buffered, so that
+            // the caller can still read the body should the response be returned as is.
+            if (response.body() instanceof InputStream stream) {
+                final byte[] bytes;
+                try (stream) {
+                    bytes = stream.readAllBytes();
+                }
+                body = new String(bytes, StandardCharsets.UTF_8);
+                response = withBody(response, new ByteArrayInputStream(bytes));
+            } else {
+                body = String.valueOf(response.body());
+            }
+        }
+        if (!isSessionRejected(response.statusCode(), body)) {
+            return response;
+        }
+
+        if (response.body() instanceof InputStream stream) {
+            stream.close();
+        }
+        LOGGER.info("UniFi gateway rejected session. Renewing session and replaying request. [Username: {}, Status code: {}]", connection.username(), response.statusCode());
+        final GatewayAuthConnection renewed = renewer.renew(connection);
+
+        metrics.replays().increment();
+        return send(metrics, request.apply(renewed), bodyHandler);
+    }
+
+    /**
+     * @return whether the gateway rejected the session itself, i.e. a 401 once the session cookie expires, or a 403
+     * reporting the CSRF token as stale or the session as expired
+     */
+    static boolean isSessionRejected(int statusCode, String body) {
+        return statusCode == 401 || (statusCode == 403 && body != null && SESSION_REJECTION.matcher(body).find());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> HttpResponse<T> withBody(HttpResponse<T> response, InputStream body) {
+        return new BufferedResponse<>(response, (T) body);
+    }
+
+    /**
+     * Sends the request, recording the call's latency up to the response being received. For streamed responses, this
+     * is up to the response's headers being received. Any call failing with an exception or a non-200 response is
+     * additionally counted as an error.
+     */
+    private static <T> HttpResponse<T> send(CallMetrics metrics, HttpRequest request, HttpResponse.BodyHandler<T> bodyHandler) throws IOException, InterruptedException {
+        final long startNanos = System.nanoTime();
+        try {
+            final HttpResponse<T> response = CLIENT.send(request, bodyHandler);
+            if (response.statusCode() != 200) {
+                metrics.errors().increment();
+            }
+            return response;
+        } catch (IOException | RuntimeException e) {
+            metrics.errors().increment();
+            throw e;
+        } finally {
+            metrics.latency().recordSince(startNanos);
+        }
+    }
+
     public record UnifiGatewayLoginResponse(String cookie, String csrfToken) { }
 
+    /**
+     * A response whose streamed body has been read into memory.
+     */
+    private record BufferedResponse<T>(HttpResponse<T> response, T body) implements HttpResponse<T> {
+
+        @Override
+        public int statusCode() {
+            return response.statusCode();
+        }
+
+        @Override
+        public HttpRequest request() {
+            return response.request();
+        }
+
+        @Override
+        public Optional<HttpResponse<T>> previousResponse() {
+            return response.previousResponse();
+        }
+
+        @Override
+        public HttpHeaders headers() {
+            return response.headers();
+        }
+
+        @Override
+        public Optional<SSLSession> sslSession() {
+            return response.sslSession();
+        }
+
+        @Override
+        public URI uri() {
+            return response.uri();
+        }
+
+        @Override
+        public HttpClient.Version version() {
+            return response.version();
+        }
+
+    }
+
+    /**
+     * Renews a session which has expired on the gateway, returning the renewed session.
+     */
+    @FunctionalInterface
+    public interface SessionRenewer {
+        GatewayAuthConnection renew(GatewayAuthConnection expired) throws IOException, InterruptedException;
+    }
+
+    private record CallMetrics(LatencyHistogram latency, Counter errors, Counter replays) {
+
+        private static CallMetrics of(String call) {
+            return new CallMetrics(
+                    AgentMetrics.latency("unifi_gateway_request_duration_seconds", "Time taken for the UniFi gateway to respond, by call", "call", call),
+                    AgentMetrics.counter("unifi_gateway_request_errors_total", "UniFi gateway calls which failed or were not successful, by call", "call", call),
+                    AgentMetrics.counter("unifi_gateway_request_replays_total", "UniFi gateway calls replayed after renewing a session rejected as expired, by call", "call", call)
+            );
+        }
+
+    }
+
     private static ObjectMapper createObjectMapper() {
         ObjectMapper objectMapper = new ObjectMapper();
         objectMapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
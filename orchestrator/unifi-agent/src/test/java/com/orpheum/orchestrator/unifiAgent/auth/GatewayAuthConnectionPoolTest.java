@@ -0,0 +1,82 @@
+package com.orpheum.orchestrator.unifiAgent.auth;
+
+import com.orpheum.orchestrator.unifiAgent.auth.GatewayAuthConnectionManager.AuthCredentials;
+import com.orpheum.orchestrator.unifiAgent.model.GatewayAuthConnection;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class GatewayAuthConnectionPoolTest {
+
+    private static final long BORROW_TIMEOUT_MS = 5_000L;
+
+    private final GatewayAuthConnectionPool pool = new GatewayAuthConnectionPool(
+            List.of(new AuthCredentials("admin", "password")), 1, BORROW_TIMEOUT_MS, 60_000L);
+    private final ExecutorService executor = Executors.newFixedThreadPool(2);
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    void connectedSlotWakesSharedAndExclusiveWaiters() throws Exception {
+        final Future<GatewayAuthConnection> shared = await(pool::borrowShared);
+        final Future<GatewayAuthConnection> exclusive = await(pool::borrow);
+
+        final GatewayAuthConnectionPool.Slot slot = pool.slot("admin");
+        assertThat(pool.claimMaintenance(slot)).isEqualTo(GatewayAuthConnectionPool.Maintenance.CONNECT);
+        final GatewayAuthConnection session = slot.session().refresh("cookie", "token");
+        pool.onConnected(slot, session);
+
+        // Well within the borrow timeout, which a waiter missing the signal would otherwise run into
+        assertThat(shared.get(1, TimeUnit.SECONDS)).isEqualTo(session);
+        assertThat(exclusive.get(1, TimeUnit.SECONDS)).isEqualTo(session);
+    }
+
+    @Test
+    void returnedSlotWakesExclusiveWaiter() throws Exception {
+        final GatewayAuthConnectionPool.Slot slot = pool.slot("admin");
+        pool.claimMaintenance(slot);
+        pool.onConnected(slot, slot.session().refresh("cookie", "token"));
+
+        final GatewayAuthConnection borrowed = pool.borrow();
+        final Future<GatewayAuthConnection> exclusive = await(pool::borrow);
+        pool.giveBack(borrowed);
+
+        assertThat(exclusive.get(1, TimeUnit.SECONDS)).isEqualTo(borrowed);
+    }
+
+    /**
+     * Submits the borrow, returning once the borrower is waiting on the pool.
+     */
+    private Future<GatewayAuthConnection> await(final Callable<GatewayAuthConnection> borrow) throws InterruptedException {
+        final Thread[] borrower = new Thread[1];
+        final Future<GatewayAuthConnection> future = executor.submit(() -> {
+            synchronized (borrower) {
+                borrower[0] = Thread.currentThread();
+            }
+            return borrow.call();
+        });
+
+        final long deadlineMs = System.currentTimeMillis() + BORROW_TIMEOUT_MS;
+        while (System.currentTimeMillis() < deadlineMs) {
+            synchronized (borrower) {
+                if (borrower[0] != null && borrower[0].getState() == Thread.State.TIMED_WAITING) {
+                    return future;
+                }
+            }
+            Thread.sleep(10L);
+        }
+        throw new IllegalStateException("Borrower never started waiting.");
+    }
+
+}
@@ -0,0 +1,68 @@
+package com.orpheum.orchestrator.unifiAgent.gateway;
+
+import com.orpheum.orchestrator.unifiAgent.model.UnifiGatewayActiveDevice;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AuthorisedDeviceStoreTest {
+
+    private static final UnifiGatewayActiveDevice DEVICE = new UnifiGatewayActiveDevice("aa:bb:cc:dd:ee:01", "aa:bb:cc:dd:ee:ff", "192.168.1.20", null, "Site", true);
+
+    private final AuthorisedDeviceStore store = new AuthorisedDeviceStore();
+
+    @Test
+    void pastSessionEndIsIgnoredWhileDeviceIsAuthorised() {
+        store.stamp(DEVICE, 1L);
+
+        store.updateSessionEnds(Map.of(DEVICE.id(), System.currentTimeMillis() - 60_000L));
+        store.stamp(DEVICE, 2L);
+
+        assertThat(store.getByIp(DEVICE.ip())).contains(DEVICE);
+        assertThat(store.snapshot()).singleElement().satisfies(entry -> assertThat(entry.sessionEndMs()).isEqualTo(-1L));
+    }
+
+    @Test
+    void futureSessionEndIsApplied() {
+        final long sessionEndMs = System.currentTimeMillis() + 3_600_000L;
+        store.stamp(DEVICE, 1L);
+
+        store.updateSessionEnds(Map.of(DEVICE.id(), sessionEndMs));
+        store.stamp(DEVICE, 2L);
+
+        assertThat(store.getByIp(DEVICE.ip())).contains(DEVICE);
+        assertThat(store.snapshot()).singleElement().satisfies(entry -> assertThat(entry.sessionEndMs()).isEqualTo(sessionEndMs));
+    }
+
+    @Test
+    void lapsedSessionEndFallsBackToDefaultExpiryWhenStillAuthorised() {
+        // The cache's clock is frozen, so that the entry is still live once its session end has passed on the wall clock
+        final AtomicLong nanos = new AtomicLong();
+        final AuthorisedDeviceStore store = new AuthorisedDeviceStore(nanos::get);
+        store.stamp(DEVICE, 1L);
+        store.updateSessionEnds(Map.of(DEVICE.id(), System.currentTimeMillis() + 50L));
+
+        sleep(100L);
+        assertThat(store.getByIp(DEVICE.ip())).contains(DEVICE);
+
+        // The next sync still reports the device as authorised, well after its reported session end
+        store.stamp(DEVICE, 2L);
+        nanos.addAndGet(TimeUnit.SECONDS.toNanos(1L));
+
+        assertThat(store.getByIp(DEVICE.ip())).contains(DEVICE);
+        assertThat(store.snapshot()).singleElement().satisfies(entry -> assertThat(entry.sessionEndMs()).isEqualTo(-1L));
+    }
+
+    private static void sleep(final long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
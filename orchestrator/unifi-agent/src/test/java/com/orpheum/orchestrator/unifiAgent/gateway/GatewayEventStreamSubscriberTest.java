@@ -0,0 +1,128 @@
+package com.orpheum.orchestrator.unifiAgent.gateway;
+
+import com.orpheum.orchestrator.unifiAgent.support.ApplicationProperties;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.net.http.WebSocket;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class GatewayEventStreamSubscriberTest {
+
+    private static final String SITE_IDENTIFIER = ApplicationProperties.getString("site_identifier");
+    private static final String MAC = "aa:bb:cc:dd:ee:01";
+    private static final String IP = "192.168.1.20";
+
+    // Only ever asked for further messages
+    private static final WebSocket WEB_SOCKET = (WebSocket) Proxy.newProxyInstance(
+            WebSocket.class.getClassLoader(), new Class<?>[]{WebSocket.class}, (proxy, method, args) -> null);
+
+    private GatewayActiveDeviceCacheManager cacheManager;
+    private GatewayEventStreamSubscriber subscriber;
+
+    @BeforeEach
+    void setUp() {
+        cacheManager = new GatewayActiveDeviceCacheManager();
+        subscriber = new GatewayEventStreamSubscriber(cacheManager, null);
+    }
+
+    @Test
+    void authorisedClientSyncIsCached() {
+        receive(clientSync(MAC, IP, SITE_IDENTIFIER, true));
+
+        assertThat(cacheManager.resolveAuthorisedCachedDeviceByIp(IP)).hasValueSatisfying(device -> assertThat(device.id()).isEqualTo(MAC));
+    }
+
+    @Test
+    void partialClientSyncDeltasAreIgnored() {
+        receive(clientSync(MAC, IP, SITE_IDENTIFIER, true));
+
+        // Neither authorized nor essid
+        receive("""
+                {"meta":{"rc":"ok","message":"sta:sync"},"data":[{"mac":"%s","rx_bytes":1024,"tx_bytes":2048}]}
+                """.formatted(MAC));
+        // No authorized
+        receive("""
+                {"meta":{"rc":"ok","message":"sta:sync"},"data":[{"mac":"%s","ip":"%s","essid":"%s","signal":-60}]}
+                """.formatted(MAC, IP, SITE_IDENTIFIER));
+        // No essid
+        receive("""
+                {"meta":{"rc":"ok","message":"sta:sync"},"data":[{"mac":"%s","ip":"%s","authorized":false}]}
+                """.formatted(MAC, IP));
+
+        assertThat(cacheManager.resolveAuthorisedCachedDeviceByIp(IP)).isPresent();
+    }
+
+    @Test
+    void deauthorisedClientSyncIsRemoved() {
+        receive(clientSync(MAC, IP, SITE_IDENTIFIER, true));
+        receive(clientSync(MAC, IP, SITE_IDENTIFIER, false));
+
+        assertThat(cacheManager.resolveAuthorisedCachedDeviceByIp(IP)).isEmpty();
+    }
+
+    @Test
+    void clientSyncsForOtherSsidsAreIgnored() {
+        receive(clientSync(MAC, IP, SITE_IDENTIFIER + " Staff", true));
+
+        assertThat(cacheManager.resolveAuthorisedCachedDeviceByIp(IP)).isEmpty();
+    }
+
+    @Test
+    void disconnectionEventsAreIgnored() {
+        receive(clientSync(MAC, IP, SITE_IDENTIFIER, true));
+
+        receive("""
+                {"meta":{"rc":"ok","message":"events"},"data":[
+                    {"key":"EVT_WG_Disconnected","guest":"%s","ssid":"%s"},
+                    {"key":"EVT_WU_Disconnected","user":"%s","ssid":"%s"}
+                ]}
+                """.formatted(MAC, SITE_IDENTIFIER, MAC, SITE_IDENTIFIER));
+
+        assertThat(cacheManager.resolveAuthorisedCachedDeviceByIp(IP)).isPresent();
+    }
+
+    @Test
+    void authorisationEndedEventIsRemoved() {
+        receive(clientSync(MAC, IP, SITE_IDENTIFIER, true));
+
+        receive("""
+                {"meta":{"rc":"ok","message":"events"},"data":[{"key":"EVT_WG_AUTHORIZATION_ENDED","guest":"%s"}]}
+                """.formatted(MAC));
+
+        assertThat(cacheManager.resolveAuthorisedCachedDeviceByIp(IP)).isEmpty();
+    }
+
+    @Test
+    void messagesDeliveredInPartsAreAccumulated() {
+        final String message = clientSync(MAC, IP, SITE_IDENTIFIER, true);
+        final int split = message.length() / 2;
+
+        subscriber.onText(WEB_SOCKET, message.substring(0, split), false);
+        assertThat(cacheManager.resolveAuthorisedCachedDeviceByIp(IP)).isEmpty();
+        subscriber.onText(WEB_SOCKET, message.substring(split), true);
+
+        assertThat(cacheManager.resolveAuthorisedCachedDeviceByIp(IP)).isPresent();
+    }
+
+    @Test
+    void malformedMessagesAreSkipped() {
+        receive("{\"meta\":");
+        receive(clientSync(MAC, IP, SITE_IDENTIFIER, true));
+
+        assertThat(cacheManager.resolveAuthorisedCachedDeviceByIp(IP)).isPresent();
+    }
+
+    private void receive(final String message) {
+        subscriber.onText(WEB_SOCKET, message, true);
+    }
+
+    private static String clientSync(final String mac, final String ip, final String essid, final boolean authorized) {
+        return """
+                {"meta":{"rc":"ok","message":"sta:sync"},"data":[{"mac":"%s","ap_mac":"aa:bb:cc:dd:ee:ff","ip":"%s","essid":"%s","authorized":%s,"is_guest":true}]}
+                """.formatted(mac, ip, essid, authorized);
+    }
+
+}
@@ -0,0 +1,102 @@
+package com.orpheum.orchestrator.unifiAgent.spool;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.orpheum.orchestrator.unifiAgent.metrics.AgentMetrics;
+import com.orpheum.orchestrator.unifiAgent.support.BackstageRequestException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SpoolReplayTest {
+
+    private static final long SEGMENT_BYTES = 4096L;
+    private static final long QUOTA_BYTES = 65536L;
+
+    @TempDir
+    Path directory;
+
+    private final List<String> sent = new ArrayList<>();
+
+    @Test
+    void rejectedEntryIsDiscardedAndReplayContinues() throws IOException {
+        final DiskSpool spool = DiskSpool.open(directory, SEGMENT_BYTES, QUOTA_BYTES);
+        final SpoolReplay<String> replay = replay("rejected", spool, entry -> {
+            if (entry.equals("poison")) {
+                throw new BackstageRequestException(400, "Bad request");
+            }
+            sent.add(entry);
+        });
+
+        replay.spool("first");
+        replay.spool("poison");
+        replay.spool("second");
+        replay.replay();
+
+        assertThat(sent).containsExactly("first", "second");
+        assertThat(spool.isEmpty()).isTrue();
+        assertThat(AgentMetrics.sum("backstage_spool_failures_total", "spool", "rejected")).isEqualTo(1L);
+        assertThat(AgentMetrics.sum("backstage_spool_replayed_total", "spool", "rejected")).isEqualTo(2L);
+        spool.close();
+    }
+
+    @Test
+    void retryableFailuresKeepEntryForReplayAfterReopen() throws IOException {
+        for (Exception failure : List.of(new BackstageRequestException(503, "Unavailable"), new BackstageRequestException(429, "Too many requests"), new BackstageRequestException(408, "Request timeout"), new IOException("Connection reset"))) {
+            final DiskSpool spool = DiskSpool.open(directory, SEGMENT_BYTES, QUOTA_BYTES);
+            final SpoolReplay<String> failing = replay("retryable", spool, entry -> {
+                if (failure instanceof IOException e) {
+                    throw e;
+                }
+                throw (BackstageRequestException) failure;
+            });
+
+            failing.spool("entry");
+            failing.replay();
+
+            assertThat(spool.isEmpty()).as("%s", failure).isFalse();
+            failing.close();
+
+            final DiskSpool reopened = DiskSpool.open(directory, SEGMENT_BYTES, QUOTA_BYTES);
+            replay("retryable", reopened, sent::add).replay();
+
+            assertThat(sent).as("%s", failure).containsExactly("entry");
+            assertThat(reopened.isEmpty()).isTrue();
+            reopened.close();
+            sent.clear();
+        }
+    }
+
+    @Test
+    void acknowledgedEntriesAreNotReplayedAfterReopen() throws IOException {
+        final DiskSpool spool = DiskSpool.open(directory, SEGMENT_BYTES, QUOTA_BYTES);
+        final SpoolReplay<String> replay = replay("reopen", spool, entry -> {
+            if (entry.equals("second")) {
+                throw new IOException("Connection reset");
+            }
+            sent.add(entry);
+        });
+
+        replay.spool("first");
+        replay.spool("second");
+        replay.spool("third");
+        replay.replay();
+        replay.close();
+
+        final DiskSpool reopened = DiskSpool.open(directory, SEGMENT_BYTES, QUOTA_BYTES);
+        replay("reopen", reopened, sent::add).replay();
+
+        assertThat(sent).containsExactly("first", "second", "third");
+        reopened.close();
+    }
+
+    private static SpoolReplay<String> replay(final String name, final DiskSpool spool, final SpoolReplay.Sender<String> sender) {
+        return new SpoolReplay<>(name, new TypeReference<>() {}, sender, spool, 1000L, 1000L);
+    }
+
+}
@@ -0,0 +1,34 @@
+package com.orpheum.orchestrator.unifiAgent.support;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class UnifiGatewayClientTest {
+
+    @Test
+    void expiredSessionIsRejected() {
+        assertThat(UnifiGatewayClient.isSessionRejected(401, null)).isTrue();
+        assertThat(UnifiGatewayClient.isSessionRejected(401, "{\"error\":{\"code\":401,\"message\":\"Unauthorized\"}}")).isTrue();
+    }
+
+    @Test
+    void staleCsrfTokenIsRejected() {
+        assertThat(UnifiGatewayClient.isSessionRejected(403, "{\"meta\":{\"rc\":\"error\",\"msg\":\"api.err.InvalidCsrfToken\"},\"data\":[]}")).isTrue();
+        assertThat(UnifiGatewayClient.isSessionRejected(403, "{\"error\":{\"code\":403,\"message\":\"Session expired\"}}")).isTrue();
+    }
+
+    @Test
+    void permissionFailureIsNotRejected() {
+        assertThat(UnifiGatewayClient.isSessionRejected(403, "{\"meta\":{\"rc\":\"error\",\"msg\":\"api.err.NoPermission\"},\"data\":[]}")).isFalse();
+        assertThat(UnifiGatewayClient.isSessionRejected(403, "")).isFalse();
+        assertThat(UnifiGatewayClient.isSessionRejected(403, null)).isFalse();
+    }
+
+    @Test
+    void otherResponsesAreNotRejected() {
+        assertThat(UnifiGatewayClient.isSessionRejected(200, "{}")).isFalse();
+        assertThat(UnifiGatewayClient.isSessionRejected(500, "CSRF")).isFalse();
+    }
+
+}